@@ -1,44 +1,82 @@
+import metrics.Metrics;
 import model.Book;
 import model.Borrower;
+import model.Hold;
 import model.Transaction;
+import persistence.BulkLoader;
+import persistence.PersistenceEngine;
+import server.LibraryServer;
+import service.BatchResult;
 import service.BookInventory;
+import service.BookQuery;
 import service.BorrowerRegistry;
+import service.FinePolicy;
 import service.LendingTracker;
+import service.Library;
+import service.LibraryListener;
 import service.OverdueManager;
+import service.ReportEngine;
 import service.Reports;
 import util.SortUtils;
-import util.SearchUtils;
+import util.TextIndex;
 
 import java.io.*;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main.java
  * Top-level console application that wires the multi-file library system together.
  *
- * Files used for persistence (CSV-ish):
- *  - books.txt         -> title,author,isbn,category,year,publisher,shelf
+ * Files used for persistence:
+ *  - snapshot/         -> segmented binary snapshot; only changed segments are rewritten (see persistence.SegmentedSnapshot)
+ *  - journal.log       -> every change since the snapshot was last compacted, replayed on startup
+ *  - journal.log.1     -> while a compaction rotates the journal, the changes it did not cover (replayed first)
+ * Changed segments are saved in the background every -Dlibrary.autosaveSeconds (default 60, 0 = off)
+ * and on exit. A library.snap from an older version is converted on first start. Only open loans are
+ * loaded at startup; older history is read from the snapshot when a report or history lookup needs it
+ * (-Dlibrary.history.lazy=false loads it all).
+ *
+ * CSV files, imported on first start (no snapshot yet) and written by "Export CSV":
+ *  - books.txt         -> title,author,isbn,category,year,publisher,shelf,copies (copies optional, default 1)
  *  - borrowers.txt     -> name,id,contact,fines (fines optional, default 0)
  *  - transactions.txt  -> isbn,borrowerId,borrowDate(ISO),returnDate(ISO),returned(true/false)
+ *  - holds.txt         -> isbn,borrowerId,placedDate(ISO),ready(true/false)
+ *
+ * "java Main --server [port]" runs headless instead: the same services behind the line protocol in
+ * server.Protocol on 127.0.0.1 (default port 7070) until the process is stopped.
+ *
+ * Metrics (see the metrics package) are shown by menu 17 and exposed over JMX as library:type=Metrics;
+ * -Dlibrary.metrics.dumpSeconds=N also appends them to metrics.log every N seconds.
  *
  * Keep the remaining services & utils in the packages described in the project layout.
  */
 public class Main {
     private static final Scanner scanner = new Scanner(System.in);
     private static final DateTimeFormatter DF = DateTimeFormatter.ISO_LOCAL_DATE;
+    private static final int SEARCH_PAGE_SIZE = 10;
+    private static final int DEFAULT_PORT = 7070;
+    private static final long AUTOSAVE_SECONDS = Long.getLong("library.autosaveSeconds", 60);
 
-    // core services
-    private static final BookInventory inventory = new BookInventory();
-    private static final BorrowerRegistry registry = new BorrowerRegistry();
-    private static final LendingTracker lending = new LendingTracker();
-    private static final OverdueManager overdueManager = new OverdueManager();
+    // core services (thread-safe; this console is one desk on the shared library)
+    private static final Library library = new Library(FinePolicy.fromSystemProperties());
+    private static final BookInventory inventory = library.inventory;
+    private static final BorrowerRegistry registry = library.registry;
+    private static final LendingTracker lending = library.lending;
+    private static final OverdueManager overdueManager = library.overdue;
+    private static final PersistenceEngine store = new PersistenceEngine(new File("."), library);
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--server")) {
+            runServer(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+            return;
+        }
         System.out.println("=== Ebenezer Community Library (Console) ===");
         // Attempt to load persisted data if available
-        loadAll();
+        if (!loadAll()) return;
+        startMetrics();
 
         while (true) {
             showMainMenu();
@@ -47,7 +85,7 @@ public class Main {
                 case "1": addBook(); break;
                 case "2": listBooks(); break;
                 case "3": searchBooks(); break;
-                case "4": sortBooksByTitle(); break;
+                case "4": sortBooks(); break;
                 case "5": addBorrower(); break;
                 case "6": listBorrowers(); break;
                 case "7": borrowBook(); break;
@@ -55,7 +93,14 @@ public class Main {
                 case "9": checkOverduesAndApplyFines(); break;
                 case "10": showReportsMenu(); break;
                 case "11": saveAll(); System.out.println("Saved."); break;
-                case "0": saveAll(); System.out.println("Bye."); return;
+                case "12": showBorrowerLoans(); break;
+                case "13": exportCsv(); break;
+                case "14": importBooks(); break;
+                case "15": processReturns(); break;
+                case "16": findBorrower(); break;
+                case "17": System.out.print(Metrics.dump()); break;
+                case "18": showHoldsMenu(); break;
+                case "0": shutdown(); System.out.println("Bye."); return;
                 default: System.out.println("Invalid option."); break;
             }
         }
@@ -66,8 +111,8 @@ public class Main {
         System.out.println("Main Menu:");
         System.out.println(" 1) Add Book");
         System.out.println(" 2) List Books (by category)");
-        System.out.println(" 3) Search Books (linear/binary)");
-        System.out.println(" 4) Sort Books by Title (merge sort)");
+        System.out.println(" 3) Search Books (title/author/isbn/keyword)");
+        System.out.println(" 4) Sort Books (title/author/year/category)");
         System.out.println(" 5) Add Borrower");
         System.out.println(" 6) List Borrowers");
         System.out.println(" 7) Borrow a Book");
@@ -75,6 +120,13 @@ public class Main {
         System.out.println(" 9) Overdue Check & Apply Fines");
         System.out.println("10) Reports");
         System.out.println("11) Save Now");
+        System.out.println("12) Borrower's Current Loans");
+        System.out.println("13) Export CSV Files");
+        System.out.println("14) Import Books from CSV File");
+        System.out.println("15) Process Returns (list of ISBNs)");
+        System.out.println("16) Find Borrower (name/contact)");
+        System.out.println("17) Show Metrics");
+        System.out.println("18) Holds & Copies");
         System.out.println(" 0) Exit (auto-save)");
         System.out.print("Select: ");
     }
@@ -88,55 +140,106 @@ public class Main {
         System.out.print("Year: "); int year = safeIntInput(2020);
         System.out.print("Publisher: "); String publisher = scanner.nextLine().trim();
         System.out.print("Shelf Location: "); String shelf = scanner.nextLine().trim();
+        System.out.print("Copies (default 1): "); int copies = Math.max(1, safeIntInput(1));
         Book b = new Book(title, author, isbn, category, year, publisher, shelf);
-        inventory.addBook(b);
+        b.copies = copies;
+        if (!inventory.addBook(b)) { System.out.println("A book with ISBN " + isbn + " already exists."); return; }
         System.out.println("Book added: " + title);
     }
 
     private static void listBooks() {
-        inventory.listBooksSortedByTitle(); // uses merge sort internally for display (stable)
+        inventory.listBooksSortedByTitle(); // walks the maintained title index (stable for equal titles)
     }
 
     private static void searchBooks() {
-        System.out.print("Search by (title/author/isbn): ");
+        System.out.print("Search by (title/author/isbn/keyword/filter): ");
         String field = scanner.nextLine().trim().toLowerCase();
+        if (field.equals("filter")) { filterBooks(); return; }
         System.out.print("Query: ");
         String q = scanner.nextLine().trim();
-        List<Book> all = inventory.getAllBooks();
-        if (all.isEmpty()) { System.out.println("No books in inventory."); return; }
+        if (inventory.size() == 0) { System.out.println("No books in inventory."); return; }
 
         switch (field) {
             case "isbn":
-                Book byIsbn = SearchUtils.linearSearchByISBN(all, q);
+                Book byIsbn = inventory.searchByISBN(q);
                 System.out.println(byIsbn == null ? "Not found." : byIsbn);
                 break;
             case "title":
-                // try binary on sorted list for exact match; fallback to substring linear scanning
-                List<Book> sorted = new ArrayList<>(all);
-                SortUtils.mergeSortByTitle(sorted);
-                Book exact = SearchUtils.binarySearchByTitle(sorted, q);
+                // exact match via the sorted title index; fallback to substring matches from the text index
+                Book exact = library.cache.searchByTitle(q);
                 if (exact != null) System.out.println("Exact match: " + exact);
                 else {
                     System.out.println("No exact title; substring matches:");
-                    for (Book b : sorted) if (b.title.toLowerCase().contains(q.toLowerCase())) System.out.println(" - " + b);
+                    for (Book b : library.cache.searchTitleContaining(q)) System.out.println(" - " + b);
                 }
                 break;
             case "author":
-                List<Book> found = new ArrayList<>();
-                for (Book b : all) if (b.author.toLowerCase().contains(q.toLowerCase())) found.add(b);
+                List<Book> found = library.cache.searchAuthorContaining(q);
                 if (found.isEmpty()) System.out.println("No matches.");
                 else found.forEach(System.out::println);
                 break;
+            case "keyword":
+                System.out.print("Match all terms? (y/n): ");
+                boolean matchAll = !scanner.nextLine().trim().equalsIgnoreCase("n");
+                int page = 0;
+                while (true) {
+                    TextIndex.SearchResult r = library.cache.searchKeywords(q, matchAll, page, SEARCH_PAGE_SIZE);
+                    if (r.total == 0) { System.out.println("No matches."); break; }
+                    int pages = (r.total + SEARCH_PAGE_SIZE - 1) / SEARCH_PAGE_SIZE;
+                    System.out.println("Page " + (page + 1) + " of " + pages + " (" + r.total + " matches):");
+                    r.books.forEach(b -> System.out.println(" - " + b));
+                    if (page + 1 >= pages) break;
+                    System.out.print("Next page? (y/n): ");
+                    if (!scanner.nextLine().trim().equalsIgnoreCase("y")) break;
+                    page++;
+                }
+                break;
             default:
                 System.out.println("Unknown field.");
         }
     }
 
-    private static void sortBooksByTitle() {
-        List<Book> all = inventory.getAllBooks();
-        SortUtils.mergeSortByTitle(all);
-        System.out.println("Books sorted by title:");
-        all.forEach(System.out::println);
+    // composite attribute query; blank answers leave that attribute unconstrained
+    private static void filterBooks() {
+        BookQuery query = inventory.query();
+        boolean any = false;
+        System.out.print("Category: "); String v = scanner.nextLine().trim();
+        if (!v.isEmpty()) { query.category(v); any = true; }
+        System.out.print("Author: "); v = scanner.nextLine().trim();
+        if (!v.isEmpty()) { query.author(v); any = true; }
+        System.out.print("Publisher: "); v = scanner.nextLine().trim();
+        if (!v.isEmpty()) { query.publisher(v); any = true; }
+        System.out.print("Shelf Location: "); v = scanner.nextLine().trim();
+        if (!v.isEmpty()) { query.shelf(v); any = true; }
+        System.out.print("Year from: "); int from = safeIntInput(Integer.MIN_VALUE);
+        System.out.print("Year to: "); int to = safeIntInput(Integer.MAX_VALUE);
+        if (from != Integer.MIN_VALUE || to != Integer.MAX_VALUE) { query.yearBetween(from, to); any = true; }
+        if (!any) { System.out.println("No conditions given."); return; }
+        int n = 0;
+        for (Book b : query.execute()) { System.out.println(" - " + b); n++; }
+        System.out.println(n == 0 ? "No matches." : n + " match(es).");
+    }
+
+    private static void sortBooks() {
+        System.out.print("Sort by title/author/year/category (default title): ");
+        String field = scanner.nextLine().trim().toUpperCase();
+        if (field.isEmpty() || field.equals("TITLE")) {
+            // the title index is already in order
+            System.out.println("Books sorted by title:");
+            inventory.getBooksSortedByTitle().forEach(System.out::println);
+            return;
+        }
+        SortUtils.Key key;
+        try {
+            key = SortUtils.Key.valueOf(field);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Unknown field.");
+            return;
+        }
+        List<Book> books = new ArrayList<>(inventory.getAllBooks());
+        SortUtils.sort(books, key);
+        System.out.println("Books sorted by " + field.toLowerCase() + ":");
+        books.forEach(System.out::println);
     }
 
     // ---------- Borrower ----------
@@ -144,16 +247,34 @@ public class Main {
         System.out.print("Name: "); String name = scanner.nextLine().trim();
         System.out.print("ID: "); String id = scanner.nextLine().trim();
         System.out.print("Contact: "); String contact = scanner.nextLine().trim();
+        if (id.indexOf(',') >= 0) { System.out.println("Borrower not added: ID may not contain a comma."); return; }
         Borrower b = new Borrower(name, id, contact);
-        registry.addBorrower(b);
-        System.out.println("Borrower added: " + name + " (ID: " + id + ")");
+        // registered only if the id is new, so an existing borrower's fines and loans are never replaced
+        BatchResult<Borrower> r = registry.registerBorrowers(List.of(b));
+        if (r.failed() > 0) System.out.println("Borrower not added: " + r.failures().get(0).error + ".");
+        else System.out.println("Borrower added: " + name + " (ID: " + id + ")");
     }
 
     private static void listBorrowers() {
-        List<Borrower> list = registry.getAllBorrowers();
-        if (list.isEmpty()) { System.out.println("No borrowers registered."); return; }
-        list.sort(Comparator.comparing(br -> br.name.toLowerCase()));
-        list.forEach(System.out::println);
+        if (registry.size() == 0) { System.out.println("No borrowers registered."); return; }
+        // the registry keeps borrowers in name order; page through it
+        BorrowerRegistry.Page page = registry.listByName(null, SEARCH_PAGE_SIZE);
+        while (true) {
+            page.borrowers.forEach(System.out::println);
+            if (page.next == null) break;
+            System.out.print("More? (y/n): ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("y")) break;
+            page = registry.listByName(page.next, SEARCH_PAGE_SIZE);
+        }
+    }
+
+    private static void findBorrower() {
+        System.out.print("Name (or part of it) or contact number: ");
+        String q = scanner.nextLine().trim();
+        if (q.isEmpty()) return;
+        List<Borrower> found = q.matches("[+\\d][\\d\\s-]*") ? registry.findByContact(q) : registry.findByNamePrefix(q, 50);
+        if (found.isEmpty()) System.out.println("No matches.");
+        else found.forEach(System.out::println);
     }
 
     // ---------- Borrow & Return ----------
@@ -167,10 +288,15 @@ public class Main {
 
         System.out.print("Borrow period in days (e.g. 30): ");
         int days = safeIntInput(30);
-        LocalDate borrowDate = LocalDate.now();
-        Transaction t = new Transaction(isbn, bid, borrowDate, borrowDate.plusDays(days));
-        lending.borrowBook(t);
-        overdueManager.addTransaction(t);
+        Transaction t = library.borrow(isbn, bid, LocalDate.now(), days);
+        if (t == null) {
+            if (lending.findOpenLoan(isbn, bid) != null) { System.out.println(br.name + " already has this book."); return; }
+            System.out.println("No copy available (" + book.copies + " cop" + (book.copies == 1 ? "y" : "ies")
+                    + ", " + lending.waitingCount(isbn) + " waiting).");
+            System.out.print("Place a hold? (y/n): ");
+            if (scanner.nextLine().trim().equalsIgnoreCase("y")) placeHold(isbn, br);
+            return;
+        }
         System.out.println("Borrow recorded: " + book.title + " for " + br.name + " (due " + t.returnDate.format(DF) + ")");
     }
 
@@ -179,20 +305,107 @@ public class Main {
         Borrower br = registry.getBorrower(bid);
         if (br == null) { System.out.println("Unknown borrower."); return; }
         System.out.print("Book ISBN to return: "); String isbn = scanner.nextLine().trim();
-        // mark transaction returned in lending tracker
-        lending.returnBook(isbn, bid);
-        // simple fine logic demonstration: OverdueManager will process on check
-        System.out.println("Return processed (transaction flagged as returned). Run Overdue Check to apply fines if needed.");
+        // close the open loan in the lending tracker (indexed by isbn + borrower)
+        Transaction t = lending.returnBook(isbn, bid);
+        if (t == null) { System.out.println("No open loan of that book for " + br.name + "."); return; }
+        // any fine accrued since the last overdue run is charged by the OverdueManager on return
+        System.out.printf("Return processed. %s's fines: %.2f%n", br.name, br.fines);
+    }
+
+    private static void showBorrowerLoans() {
+        System.out.print("Borrower ID: "); String bid = scanner.nextLine().trim();
+        Borrower br = registry.getBorrower(bid);
+        if (br == null) { System.out.println("Unknown borrower."); return; }
+        Collection<Transaction> loans = lending.getOpenLoans(bid);
+        if (loans.isEmpty()) System.out.println(br.name + " has no books out.");
+        else System.out.println(br.name + " has " + loans.size() + " book(s) out:");
+        for (Transaction t : loans) {
+            System.out.println(" - " + titleOf(t.isbn) + " (due " + t.returnDate.format(DF) + ")");
+        }
+        Collection<Hold> held = lending.getHoldsOf(bid);
+        if (!held.isEmpty()) System.out.println("Holds:");
+        for (Hold h : held) System.out.println(" - " + titleOf(h.isbn) + ": " + holdStatus(h.isbn, bid));
+    }
+
+    // ---------- Holds & copies ----------
+    private static void showHoldsMenu() {
+        System.out.println("Holds & Copies:");
+        System.out.println("1) Availability of a book");
+        System.out.println("2) Place a hold");
+        System.out.println("3) Cancel a hold");
+        System.out.println("4) Holds on a book");
+        System.out.println("5) Set number of copies");
+        System.out.print("Choose: ");
+        String opt = scanner.nextLine().trim();
+        if (!List.of("1", "2", "3", "4", "5").contains(opt)) { System.out.println("Invalid option."); return; }
+        System.out.print("Book ISBN: "); String isbn = scanner.nextLine().trim();
+        Book book = inventory.searchByISBN(isbn);
+        if (book == null) { System.out.println("Book not found."); return; }
+        switch (opt) {
+            case "1":
+                System.out.println(book.title + ": " + book.copies + " cop" + (book.copies == 1 ? "y" : "ies") + ", "
+                        + lending.copiesAvailable(isbn) + " available, " + lending.waitingCount(isbn) + " waiting.");
+                break;
+            case "2": {
+                System.out.print("Borrower ID: "); String bid = scanner.nextLine().trim();
+                Borrower br = registry.getBorrower(bid);
+                if (br == null) { System.out.println("Unknown borrower."); return; }
+                placeHold(isbn, br);
+                break;
+            }
+            case "3": {
+                System.out.print("Borrower ID: "); String bid = scanner.nextLine().trim();
+                System.out.println(lending.cancelHold(isbn, bid) ? "Hold cancelled." : "No hold on that book for " + bid + ".");
+                break;
+            }
+            case "4": {
+                List<Hold> queue = lending.getHolds(isbn);
+                if (queue.isEmpty()) { System.out.println("No holds on " + book.title + "."); return; }
+                for (Hold h : queue) {
+                    Borrower br = registry.getBorrower(h.borrowerId);
+                    System.out.println(" - " + (br == null ? h.borrowerId : br.name + " (" + h.borrowerId + ")")
+                            + " since " + h.placedDate.format(DF) + ": " + holdStatus(isbn, h.borrowerId));
+                }
+                break;
+            }
+            default: {
+                System.out.print("Copies (currently " + book.copies + "): ");
+                int copies = safeIntInput(book.copies);
+                if (copies < 0) { System.out.println("Copies cannot be negative."); return; }
+                inventory.setCopies(isbn, copies);
+                System.out.println(book.title + " now has " + copies + " cop" + (copies == 1 ? "y" : "ies") + ".");
+            }
+        }
+    }
+
+    private static void placeHold(String isbn, Borrower br) {
+        Hold h = lending.placeHold(isbn, br.id, LocalDate.now());
+        if (h == null) { System.out.println(br.name + " already holds or has borrowed this book."); return; }
+        System.out.println("Hold placed for " + br.name + ": " + holdStatus(isbn, br.id));
+    }
+
+    private static String holdStatus(String isbn, String bid) {
+        int pos = lending.holdPosition(isbn, bid);
+        if (pos == 0) return "ready for pickup";
+        return pos < 0 ? "no hold" : "number " + pos + " in the queue";
+    }
+
+    private static String titleOf(String isbn) {
+        Book book = inventory.searchByISBN(isbn);
+        return book == null ? "ISBN " + isbn : book.title;
     }
 
     // ---------- Overdue / Fines ----------
     private static void checkOverduesAndApplyFines() {
-        System.out.println("Running overdue check (shows items > 14 days overdue)...");
-        overdueManager.checkOverdue();
-        // NOTE: to actually apply fines to Borrower objects you'd locate overdue transactions
-        // and update the Borrower.fines value here based on days overdue and your fine policy.
-        // For brevity, the OverdueManager currently prints overdue items. You can extend it to
-        // accept a reference to the registry and apply fines directly.
+        LocalDate today = LocalDate.now();
+        System.out.println("Running overdue check (" + overdueManager.getPolicy() + ")...");
+        OverdueManager.RunSummary run = overdueManager.run(today);
+        System.out.println(run);
+        List<Transaction> overdue = overdueManager.getOverdueLoans(today);
+        if (overdue.isEmpty()) { System.out.println("No overdue loans."); return; }
+        for (Transaction t : overdue) {
+            System.out.printf("Overdue: %s | Fine so far: %.2f%n", t, overdueManager.fineFor(t, today));
+        }
     }
 
     // ---------- Reports ----------
@@ -202,131 +415,171 @@ public class Main {
             System.out.println(" 1) Most borrowed books (all time)");
             System.out.println(" 2) Top borrowers by fines");
             System.out.println(" 3) Inventory distribution by category");
+            System.out.println(" 4) Most borrowed books (last 30 days)");
+            System.out.println(" 5) Most borrowed books (this year)");
+            System.out.println(" 6) Borrower loan history");
+            System.out.println(" 7) Book loan history");
+            System.out.println(" 8) Loan analytics by category and month (parallel)");
             System.out.println(" 0) Back");
             System.out.print("Choose: ");
             String choice = scanner.nextLine().trim();
             if (choice.equals("0")) return;
             switch (choice) {
                 case "1":
-                    Reports.mostBorrowedBooks(lending.getAllTransactions());
+                    Reports.mostBorrowedBooks(library.cache, readTopK());
                     break;
                 case "2":
-                    Reports.topBorrowersByFines(registry.getAllBorrowers());
+                    Reports.topBorrowersByFines(library.cache, registry, readTopK());
                     break;
                 case "3":
                     Reports.inventoryByCategory(inventory.getBooksByCategory());
                     break;
+                case "4":
+                    Reports.mostBorrowedLastDays(library.cache, 30, readTopK());
+                    break;
+                case "5":
+                    Reports.mostBorrowedThisYear(library.cache, readTopK());
+                    break;
+                case "6":
+                    System.out.print("Borrower ID: ");
+                    Reports.borrowerHistory(lending.getHistory(), scanner.nextLine().trim());
+                    break;
+                case "7":
+                    System.out.print("ISBN: ");
+                    Reports.bookHistory(lending.getHistory(), scanner.nextLine().trim());
+                    break;
+                case "8":
+                    System.out.print("Months back (default 12): ");
+                    int months = Math.max(1, safeIntInput(12));
+                    LocalDate today = LocalDate.now();
+                    ReportEngine engine = new ReportEngine(inventory, registry, lending.getHistory());
+                    Reports.analytics(engine.run(today.minusMonths(months - 1).withDayOfMonth(1), today, today, 5), 15);
+                    break;
                 default:
                     System.out.println("Invalid.");
             }
         }
     }
 
-    // ---------- Persistence (simple CSV readers/writers) ----------
-    private static final String BOOKS_FILE = "books.txt";
-    private static final String BORROWERS_FILE = "borrowers.txt";
-    private static final String TRANSACTIONS_FILE = "transactions.txt";
+    private static int readTopK() {
+        System.out.print("How many (default 5): ");
+        return Math.max(1, safeIntInput(5));
+    }
 
+    // ---------- Persistence (CSV snapshot + journal, see persistence.PersistenceEngine) ----------
     private static void saveAll() {
         try {
-            saveBooks();
-            saveBorrowers();
-            saveTransactions();
+            store.checkpoint();
             System.out.println("Data saved.");
         } catch (IOException ex) {
             System.out.println("Failed to save: " + ex.getMessage());
         }
     }
 
-    private static void loadAll() {
+    private static void exportCsv() {
+        System.out.print("Export directory (Enter for current): ");
+        String d = scanner.nextLine().trim();
+        File target = new File(d.isEmpty() ? "." : d);
         try {
-            loadBooks();
-            loadBorrowers();
-            loadTransactions();
-            System.out.println("Loaded persisted data (if any).");
+            store.exportCsv(target);
+            System.out.println("Exported books.txt, borrowers.txt and transactions.txt to " + target.getAbsolutePath());
         } catch (IOException ex) {
-            System.out.println("No persisted data found or failed to load: " + ex.getMessage());
+            System.out.println("Failed to export: " + ex.getMessage());
         }
     }
 
-    private static void saveBooks() throws IOException {
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(BOOKS_FILE))) {
-            for (Book b : inventory.getAllBooks()) {
-                // title,author,isbn,category,year,publisher,shelf
-                w.write(escapeCsv(b.title) + "," + escapeCsv(b.author) + "," + b.isbn + "," +
-                        escapeCsv(b.category) + "," + b.year + "," + escapeCsv(b.publisher) + "," + escapeCsv(b.shelfLocation));
-                w.newLine();
-            }
+    // ---------- Batch operations ----------
+    private static void importBooks() {
+        System.out.print("Books file (books.txt format): ");
+        File file = new File(scanner.nextLine().trim());
+        try {
+            BulkLoader.Result<Book> loaded = BulkLoader.load(file, BulkLoader.BOOK);
+            BatchResult<Book> result = inventory.addBooks(loaded.rows);
+            System.out.println("Imported " + result.succeeded() + " book(s); " + result.failed() + " rejected, "
+                    + loaded.stats.malformed + " malformed line(s).");
+            printFailures(result);
+        } catch (IOException ex) {
+            System.out.println("Failed to import: " + ex.getMessage());
         }
     }
 
-    private static void loadBooks() throws IOException {
-        File f = new File(BOOKS_FILE);
-        if (!f.exists()) return;
-        try (BufferedReader r = new BufferedReader(new FileReader(f))) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                String[] p = splitCsvLine(line, 7);
-                if (p.length < 7) continue;
-                Book b = new Book(unescapeCsv(p[0]), unescapeCsv(p[1]), p[2], unescapeCsv(p[3]), Integer.parseInt(p[4]), unescapeCsv(p[5]), unescapeCsv(p[6]));
-                inventory.addBook(b);
-            }
+    private static void processReturns() {
+        System.out.print("ISBNs (comma or space separated): ");
+        List<String> isbns = new ArrayList<>();
+        for (String isbn : scanner.nextLine().trim().split("[,\\s]+")) {
+            if (!isbn.isEmpty()) isbns.add(isbn);
         }
+        BatchResult<String> result = lending.returnMany(isbns);
+        System.out.println("Checked in " + result.succeeded() + " book(s); " + result.failed() + " rejected.");
+        printFailures(result);
     }
 
-    private static void saveBorrowers() throws IOException {
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(BORROWERS_FILE))) {
-            for (Borrower br : registry.getAllBorrowers()) {
-                // name,id,contact,fines
-                w.write(escapeCsv(br.name) + "," + br.id + "," + escapeCsv(br.contact) + "," + br.fines);
-                w.newLine();
-            }
+    private static void printFailures(BatchResult<?> result) {
+        List<? extends BatchResult.Item<?>> failures = result.failures();
+        for (int i = 0; i < Math.min(10, failures.size()); i++) System.out.println(" - " + failures.get(i));
+        if (failures.size() > 10) System.out.println(" ... and " + (failures.size() - 10) + " more");
+    }
+
+    private static void shutdown() {
+        try {
+            store.close();
+            System.out.println("Data saved.");
+        } catch (IOException ex) {
+            System.out.println("Failed to save: " + ex.getMessage());
         }
     }
 
-    private static void loadBorrowers() throws IOException {
-        File f = new File(BORROWERS_FILE);
-        if (!f.exists()) return;
-        try (BufferedReader r = new BufferedReader(new FileReader(f))) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                String[] p = splitCsvLine(line, 4);
-                if (p.length < 3) continue;
-                String name = unescapeCsv(p[0]);
-                String id = p[1];
-                String contact = unescapeCsv(p[2]);
-                Borrower br = new Borrower(name, id, contact);
-                if (p.length >= 4) {
-                    try { br.fines = Double.parseDouble(p[3]); } catch (Exception ignored) {}
+    // false if the saved data could not be loaded: starting anyway would accept changes with no journal to record them
+    private static boolean loadAll() {
+        try {
+            int replayed = store.open();
+            store.getLoadStats().forEach(st -> System.out.println("  " + st));
+            overdueManager.startScheduler(1, TimeUnit.HOURS); // accrues fines in the background
+            if (AUTOSAVE_SECONDS > 0) store.startAutosave(AUTOSAVE_SECONDS, TimeUnit.SECONDS);
+            lending.addListener(new LibraryListener() {
+                @Override
+                public void holdReady(Hold h) {
+                    Borrower br = registry.getBorrower(h.borrowerId);
+                    System.out.println("[hold] " + titleOf(h.isbn) + " is held for pickup by " + (br == null ? h.borrowerId : br.name) + ".");
                 }
-                registry.addBorrower(br);
-            }
+            });
+            System.out.println("Loaded persisted data (if any)" + (replayed > 0 ? "; replayed " + replayed + " journaled change(s)." : "."));
+            return true;
+        } catch (IOException ex) {
+            System.out.println("Failed to load persisted data: " + ex.getMessage());
+            System.out.println("Not starting; fix or move the data files and try again.");
+            return false;
         }
     }
 
-    private static void saveTransactions() throws IOException {
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(TRANSACTIONS_FILE))) {
-            for (Transaction t : lending.getAllTransactions()) {
-                // isbn,borrowerId,borrowDate(return ISO),returnDate,returned
-                w.write(t.isbn + "," + t.borrowerId + "," + t.borrowDate.format(DF) + "," + t.returnDate.format(DF) + "," + t.returned);
-                w.newLine();
+    private static void runServer(int port) throws Exception {
+        System.out.println("=== Ebenezer Community Library (Server) ===");
+        if (!loadAll()) return;
+        startMetrics();
+        LibraryServer server = new LibraryServer(library);
+        int bound = server.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException ignored) {
+                // exiting anyway; the journal is what matters
             }
-        }
+            shutdown();
+        }, "library-shutdown"));
+        System.out.println("Listening on 127.0.0.1:" + bound + " (Ctrl+C to stop).");
+        Thread.currentThread().join();
     }
 
-    private static void loadTransactions() throws IOException {
-        File f = new File(TRANSACTIONS_FILE);
-        if (!f.exists()) return;
-        try (BufferedReader r = new BufferedReader(new FileReader(f))) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                String[] p = line.split(",", -1);
-                if (p.length < 5) continue;
-                Transaction t = new Transaction(p[0], p[1], LocalDate.parse(p[2], DF), LocalDate.parse(p[3], DF));
-                t.returned = Boolean.parseBoolean(p[4]);
-                lending.borrowBook(t);           // add to the lending queue / storage
-                overdueManager.addTransaction(t); // add to overdue manager
-            }
+    private static void startMetrics() {
+        library.registerMetrics();
+        Metrics.registerMBean();
+        long seconds = Long.getLong("library.metrics.dumpSeconds", 0);
+        if (seconds <= 0) return;
+        try {
+            PrintStream log = new PrintStream(new FileOutputStream("metrics.log", true), false, "UTF-8");
+            Metrics.startReporter(seconds, TimeUnit.SECONDS, log);
+        } catch (IOException ex) {
+            System.out.println("Metrics log disabled: " + ex.getMessage());
         }
     }
 
@@ -336,27 +589,4 @@ public class Main {
         if (s.isEmpty()) return defaultVal;
         try { return Integer.parseInt(s); } catch (Exception e) { return defaultVal; }
     }
-
-    // Simple escaping/unescaping for commas in text fields (very small CSV helper)
-    private static String escapeCsv(String s) {
-        if (s == null) return "";
-        return s.replace(",", ";;"); // lightweight escape
-    }
-    private static String unescapeCsv(String s) { return s == null ? "" : s.replace(";;", ","); }
-
-    // split but preserve empty fields; limit specifies expected columns
-    private static String[] splitCsvLine(String line, int limit) {
-        String[] parts = line.split(",", -1);
-        // if more parts than limit, join extras into last column
-        if (parts.length <= limit) return parts;
-        String[] out = new String[limit];
-        System.arraycopy(parts, 0, out, 0, limit - 1);
-        // join remaining parts into last
-        StringBuilder sb = new StringBuilder(parts[limit - 1]);
-        for (int i = limit; i < parts.length; i++) {
-            sb.append(",").append(parts[i]);
-        }
-        out[limit - 1] = sb.toString();
-        return out;
-    }
 }
@@ -0,0 +1,61 @@
+package bench;
+
+import model.Book;
+import service.CompactCatalogue;
+
+import java.lang.ref.Reference;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Heap bytes per book for a synthetic catalogue from {@link DatasetGenerator}, held three ways:
+ * <ul>
+ *  <li>{@code strings}: {@link Book}s with a fresh String in every field, as loading used to create them;</li>
+ *  <li>{@code pooled}: {@link Book}s as now constructed, with repeated fields shared;</li>
+ *  <li>{@code compact}: a {@link CompactCatalogue} (dictionary codes, packed ISBNs and year/copies).</li>
+ * </ul>
+ * Each figure is the growth of used heap, after full collections, while only that form is reachable;
+ * the pool of distinct repeated values is filled beforehand and charged to none of them.
+ *
+ * Usage: java -Xmx4g bench.CatalogueFootprint [books]   (default 1,000,000)
+ */
+public class CatalogueFootprint {
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        DatasetGenerator gen = new DatasetGenerator(42);
+        // fills Book's pool of repeated values first, so no form is charged for it
+        gen.books(n);
+        System.out.printf("%-10s %14s %10s%n", "form", "heap bytes", "per book");
+        long strings = measure("strings", n, () -> {
+            List<Book> books = gen.books(n);
+            for (Book b : books) {
+                b.author = new String(b.author);
+                b.category = new String(b.category);
+                b.publisher = new String(b.publisher);
+                b.shelfLocation = new String(b.shelfLocation);
+            }
+            return books;
+        });
+        long pooled = measure("pooled", n, () -> gen.books(n));
+        long compact = measure("compact", n, () -> CompactCatalogue.of(gen.books(n)));
+        System.out.printf("%npooled is %.1fx and compact %.1fx smaller than strings%n",
+                (double) strings / pooled, (double) strings / compact);
+        CompactCatalogue c = CompactCatalogue.of(gen.books(Math.min(n, 1000)));
+        System.out.printf("compact's own estimate: %.0f bytes per book%n", (double) c.footprintBytes() / c.size());
+    }
+
+    private static long measure(String form, int n, Supplier<Object> build) {
+        long before = usedAfterGc();
+        Object held = build.get();
+        long bytes = usedAfterGc() - before;
+        System.out.printf("%-10s %,14d %,10.1f%n", form, bytes, (double) bytes / n);
+        Reference.reachabilityFence(held);
+        return bytes;
+    }
+
+    private static long usedAfterGc() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
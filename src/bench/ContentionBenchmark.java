@@ -0,0 +1,101 @@
+package bench;
+
+import model.Book;
+import model.Borrower;
+import service.Library;
+import service.LoanHistory;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Borrow/return contention benchmark for the concurrent service layer.
+ *
+ * First checks atomicity (many desks racing for one ISBN must produce exactly one loan), then
+ * measures borrow+return throughput for 1, 2, 4, ... threads over a shared {@link Library}.
+ *
+ * Usage: java bench.ContentionBenchmark [books] [secondsPerRun]
+ */
+public class ContentionBenchmark {
+    public static void main(String[] args) throws Exception {
+        int books = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        Library library = new Library();
+        for (int i = 0; i < books; i++) {
+            library.inventory.addBook(new Book("Title " + i, "Author " + (i % 997), "isbn-" + i, "cat" + (i % 20), 1950 + i % 70, "pub", "S" + (i % 40)));
+        }
+        int borrowers = Math.max(1000, books / 10);
+        for (int i = 0; i < borrowers; i++) library.registry.addBorrower(new Borrower("Member " + i, "m" + i, "0"));
+
+        checkAtomicBorrow(library, Math.max(8, cores * 4), 1_000);
+
+        System.out.printf("%nborrow+return throughput, %d books, %d cores%n", books, cores);
+        run(library, 1, books, borrowers, seconds); // warm-up
+        double base = 0;
+        for (int threads = 1; threads <= Math.max(2, cores * 2); threads *= 2) {
+            double opsPerSec = run(library, threads, books, borrowers, seconds);
+            if (base == 0) base = opsPerSec;
+            System.out.printf("threads=%-3d %,14.0f ops/s   x%.2f%n", threads, opsPerSec, opsPerSec / base);
+        }
+    }
+
+    private static void checkAtomicBorrow(Library library, int desks, int rounds) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(desks);
+        int violations = 0;
+        for (int r = 0; r < rounds; r++) {
+            String isbn = "isbn-" + r;
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger wins = new AtomicInteger();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int d = 0; d < desks; d++) {
+                String member = "m" + d;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    if (library.borrow(isbn, member, LocalDate.now(), 14) != null) wins.incrementAndGet();
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) f.get();
+            if (wins.get() != 1) violations++;
+            LoanHistory.Cursor c = library.lending.getHistory().cursor();
+            while (c.next()) {
+                if (!c.returned() && c.isbn().equals(isbn)) library.giveBack(isbn, c.borrowerId());
+            }
+        }
+        pool.shutdown();
+        System.out.printf("atomic borrow: %d desks x %d rounds, %d double-lend violations%n", desks, rounds, violations);
+        if (violations > 0) throw new IllegalStateException("book lent more than once");
+    }
+
+    private static double run(Library library, int threads, int books, int borrowers, int seconds) throws Exception {
+        LongAdder ops = new LongAdder();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                LocalDate today = LocalDate.now();
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 256; i++) {
+                        String isbn = "isbn-" + rnd.nextInt(books);
+                        String member = "m" + rnd.nextInt(borrowers);
+                        if (library.borrow(isbn, member, today, 14) != null) library.giveBack(isbn, member);
+                    }
+                    ops.add(256);
+                }
+            }));
+        }
+        for (Future<?> f : futures) f.get();
+        pool.shutdown();
+        return ops.sum() * 1e9 / (System.nanoTime() - start);
+    }
+}
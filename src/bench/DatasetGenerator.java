@@ -0,0 +1,103 @@
+package bench;
+
+import model.Book;
+import model.Borrower;
+import model.Transaction;
+import persistence.CsvSnapshot;
+import service.Library;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Deterministic synthetic catalogue, membership and loan history for benchmarks. Field values
+ * repeat the way real data does (a few hundred categories, tens of thousands of authors) and
+ * loan popularity is skewed towards a small set of titles.
+ *
+ * Usage: java bench.DatasetGenerator books borrowers transactions [outDir]  (writes the CSV files)
+ */
+public class DatasetGenerator {
+    private static final String[] WORDS = {"love", "river", "light", "house", "night", "garden", "bible", "king",
+            "war", "peace", "stone", "city", "song", "heart", "journey", "secret", "shadow", "story", "mountain",
+            "sea", "fire", "child", "road", "winter", "summer", "faith", "grace", "silver", "golden", "bridge"};
+
+    private final long seed;
+
+    public DatasetGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    public List<Book> books(int n) {
+        Random r = new Random(seed);
+        List<Book> out = new ArrayList<>(n);
+        int authors = Math.max(10, n / 20), publishers = Math.max(5, n / 2000);
+        for (int i = 0; i < n; i++) {
+            String title = WORDS[r.nextInt(WORDS.length)] + " " + WORDS[r.nextInt(WORDS.length)] + " " + Integer.toString(i, 36);
+            out.add(new Book(title, "Author " + r.nextInt(authors), isbn(i), "category-" + r.nextInt(200),
+                    1900 + r.nextInt(125), "Publisher " + r.nextInt(publishers), "S" + r.nextInt(400)));
+        }
+        return out;
+    }
+
+    public List<Borrower> borrowers(int n) {
+        Random r = new Random(seed + 1);
+        List<Borrower> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Borrower b = new Borrower(WORDS[r.nextInt(WORDS.length)] + " " + Integer.toString(i, 36), memberId(i),
+                    String.format("05%08d", r.nextInt(100_000_000)));
+            b.fines = r.nextInt(20) == 0 ? r.nextInt(4000) / 100.0 : 0;
+            out.add(b);
+        }
+        return out;
+    }
+
+    /** Loans over the last five years; about 1 in 50 is still open (at most one per ISBN). */
+    public List<Transaction> transactions(int n, int books, int borrowers) {
+        Random r = new Random(seed + 2);
+        List<Transaction> out = new ArrayList<>(n);
+        LocalDate today = LocalDate.now();
+        Set<Integer> lent = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            // squared uniform skews popularity towards low book indexes
+            double u = r.nextDouble();
+            int book = (int) (u * u * books);
+            LocalDate from = today.minusDays(r.nextInt(5 * 365));
+            Transaction t = new Transaction(isbn(book), memberId(r.nextInt(borrowers)), from, from.plusDays(7 + r.nextInt(28)));
+            t.returned = r.nextInt(50) != 0 || !lent.add(book);
+            out.add(t);
+        }
+        return out;
+    }
+
+    public static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+
+    public static String memberId(int i) {
+        return "M" + i;
+    }
+
+    /** A fully loaded library of the given shape. */
+    public Library library(int books, int borrowers, int transactions) {
+        Library library = new Library();
+        library.inventory.bulkLoad(books(books));
+        library.registry.bulkLoad(borrowers(borrowers));
+        library.lending.bulkLoad(transactions(transactions, books, borrowers));
+        return library;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("usage: DatasetGenerator books borrowers transactions [outDir]");
+            return;
+        }
+        int books = Integer.parseInt(args[0]), borrowers = Integer.parseInt(args[1]), transactions = Integer.parseInt(args[2]);
+        File dir = new File(args.length > 3 ? args[3] : ".");
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        DatasetGenerator gen = new DatasetGenerator(42);
+        new CsvSnapshot(dir).save(0, gen.books(books), gen.borrowers(borrowers), gen.transactions(transactions, books, borrowers), List.of());
+        System.out.println("Wrote " + books + " books, " + borrowers + " borrowers, " + transactions + " transactions to " + dir.getAbsolutePath());
+    }
+}
@@ -0,0 +1,154 @@
+package bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Minimal JMH-style runner: warm-up and measured iterations of a fixed wall-clock length, average
+ * time per operation with a 99.9% confidence half-width, results kept for JSON export and for
+ * comparison against a previous export.
+ */
+public class Harness {
+    /** One benchmark operation. Return something derived from the work so the JIT cannot drop it. */
+    public interface Op {
+        Object run(int i) throws Exception;
+    }
+
+    public static class Result {
+        public final String benchmark;
+        public final int size;
+        public final double nsPerOp;
+        public final double error;
+        public final int iterations;
+
+        Result(String benchmark, int size, double nsPerOp, double error, int iterations) {
+            this.benchmark = benchmark;
+            this.size = size;
+            this.nsPerOp = nsPerOp;
+            this.error = error;
+            this.iterations = iterations;
+        }
+
+        public double opsPerSecond() {
+            return 1e9 / nsPerOp;
+        }
+
+        String key() {
+            return benchmark + "@" + size;
+        }
+    }
+
+    private final int warmups, iterations;
+    private final long iterationNanos;
+    private final List<Result> results = new ArrayList<>();
+    private volatile int sink;
+
+    public Harness(int warmups, int iterations, long iterationMillis) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMillis * 1_000_000L;
+    }
+
+    public List<Result> results() {
+        return results;
+    }
+
+    /** Measures {@code op}; {@code setup} (may be null) runs before every iteration, outside the timing. */
+    public Result measure(String name, int size, Runnable setup, Op op) {
+        for (int w = 0; w < warmups; w++) iteration(setup, op);
+        double[] samples = new double[iterations];
+        for (int it = 0; it < iterations; it++) samples[it] = iteration(setup, op);
+        double mean = Arrays.stream(samples).average().orElse(0);
+        double var = 0;
+        for (double s : samples) var += (s - mean) * (s - mean);
+        double sd = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+        double error = iterations > 1 ? 3.29 * sd / Math.sqrt(iterations) : 0;
+        Result r = new Result(name, size, mean, error, iterations);
+        results.add(r);
+        System.out.printf("%-32s %10d %16.1f +- %-12.1f ns/op %14.1f ops/s%n", name, size, mean, error, r.opsPerSecond());
+        return r;
+    }
+
+    public Result measure(String name, int size, Op op) {
+        return measure(name, size, null, op);
+    }
+
+    // one iteration: repeat op until the iteration time has elapsed; returns ns/op
+    private double iteration(Runnable setup, Op op) {
+        if (setup != null) setup.run();
+        long ops = 0, start = System.nanoTime(), elapsed;
+        int h = 0;
+        try {
+            do {
+                for (int k = 0; k < 16; k++) {
+                    Object o = op.run((int) ops++);
+                    if (o != null) h += o.hashCode();
+                }
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < iterationNanos);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        sink += h;
+        return (double) elapsed / ops;
+    }
+
+    /** Runs {@code body} with System.out discarded (for code under test that prints). */
+    public static <T> T quietly(Supplier<T> body) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            return body.get();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /** Writes results as a JSON array, one object per line, in the spirit of JMH's -rf json. */
+    public void writeJson(File file) throws IOException {
+        StringBuilder sb = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            sb.append(String.format(Locale.ROOT,
+                    "  {\"benchmark\": \"%s\", \"size\": %d, \"mode\": \"avgt\", \"unit\": \"ns/op\", \"score\": %.3f, \"error\": %.3f, \"iterations\": %d, \"jvm\": \"%s\"}%s%n",
+                    r.benchmark, r.size, r.nsPerOp, r.error, r.iterations, System.getProperty("java.version"),
+                    i + 1 < results.size() ? "," : ""));
+        }
+        sb.append("]\n");
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Reads benchmark@size -> ns/op back from a file written by {@link #writeJson}. */
+    public static Map<String, Double> readJson(File file) throws IOException {
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String name = field(line, "benchmark"), size = field(line, "size"), score = field(line, "score");
+            if (name != null && size != null && score != null) scores.put(name + "@" + size, Double.parseDouble(score));
+        }
+        return scores;
+    }
+
+    /** Prints each result next to the baseline score with the relative change. */
+    public void compare(Map<String, Double> baseline) {
+        System.out.printf("%n%-32s %10s %14s %14s %9s%n", "benchmark", "size", "baseline", "current", "change");
+        for (Result r : results) {
+            Double before = baseline.get(r.key());
+            if (before == null) continue;
+            System.out.printf("%-32s %10d %14.1f %14.1f %+8.1f%%%n", r.benchmark, r.size, before, r.nsPerOp,
+                    (r.nsPerOp - before) / before * 100);
+        }
+    }
+
+    private static String field(String line, String name) {
+        int i = line.indexOf("\"" + name + "\":");
+        if (i < 0) return null;
+        int from = i + name.length() + 3;
+        while (from < line.length() && (line.charAt(from) == ' ' || line.charAt(from) == '"')) from++;
+        int to = from;
+        while (to < line.length() && ",}\"".indexOf(line.charAt(to)) < 0) to++;
+        return line.substring(from, to).trim();
+    }
+}
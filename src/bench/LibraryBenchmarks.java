@@ -0,0 +1,219 @@
+package bench;
+
+import model.Book;
+import model.Transaction;
+import persistence.BinarySnapshot;
+import persistence.BulkLoader;
+import persistence.CsvSnapshot;
+import persistence.Journal;
+import persistence.PersistenceEngine;
+import persistence.SegmentedSnapshot;
+import service.Library;
+import service.Reports;
+import util.SearchUtils;
+import util.SortUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Benchmark suite for the catalogue, lending, overdue, report and persistence hot paths over
+ * synthetic datasets from {@link DatasetGenerator}. For each size n the library holds n books,
+ * max(100, n/10) borrowers and n historical transactions.
+ *
+ * Usage: java bench.LibraryBenchmarks [--sizes 10000,100000] [--only name-substring]
+ *        [--warmup 2] [--iterations 5] [--time millis] [--json out.json] [--baseline old.json]
+ *
+ * Run with a large heap (e.g. -Xmx16g) for the 1M and 10M sizes.
+ */
+public class LibraryBenchmarks {
+    private final Harness harness;
+    private final String only;
+
+    LibraryBenchmarks(Harness harness, String only) {
+        this.harness = harness;
+        this.only = only;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) opts.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        Harness harness = new Harness(Integer.parseInt(opts.getOrDefault("warmup", "2")),
+                Integer.parseInt(opts.getOrDefault("iterations", "5")),
+                Long.parseLong(opts.getOrDefault("time", "1000")));
+        LibraryBenchmarks suite = new LibraryBenchmarks(harness, opts.get("only"));
+        System.out.printf("%-32s %10s %16s   %-12s %20s%n", "benchmark", "size", "score", "error", "throughput");
+        for (String s : opts.getOrDefault("sizes", "10000,100000").split(",")) suite.runAll(Integer.parseInt(s.trim()));
+        if (opts.containsKey("json")) {
+            harness.writeJson(new File(opts.get("json")));
+            System.out.println("Results written to " + opts.get("json"));
+        }
+        if (opts.containsKey("baseline")) harness.compare(Harness.readJson(new File(opts.get("baseline"))));
+    }
+
+    private boolean enabled(String name) {
+        return only == null || name.contains(only);
+    }
+
+    private void bench(String name, int n, Runnable setup, Harness.Op op) {
+        if (enabled(name)) harness.measure(name, n, setup, op);
+    }
+
+    private void bench(String name, int n, Harness.Op op) {
+        bench(name, n, null, op);
+    }
+
+    void runAll(int n) throws IOException {
+        int borrowers = Math.max(100, n / 10);
+        DatasetGenerator gen = new DatasetGenerator(42);
+        Library library = gen.library(n, borrowers, n);
+        List<Book> books = new ArrayList<>(library.inventory.getAllBooks());
+        String[] titles = new String[Math.min(n, 4096)];
+        for (int i = 0; i < titles.length; i++) titles[i] = books.get((int) ((long) i * n / titles.length)).title;
+        Random rnd = new Random(7);
+
+        // ---------- catalogue ----------
+        bench("catalogue.addBooksBatch1000", n, i -> {
+            Library fresh = new Library();
+            return fresh.inventory.addBooks(books.subList(0, Math.min(1000, n))).succeeded();
+        });
+        bench("sort.mergeSortByTitle", n, i -> {
+            List<Book> copy = new ArrayList<>(books);
+            SortUtils.mergeSortByTitle(copy);
+            return copy.get(0);
+        });
+        bench("sort.byAuthor", n, i -> {
+            List<Book> copy = new ArrayList<>(books);
+            SortUtils.sort(copy, SortUtils.Key.AUTHOR);
+            return copy.get(0);
+        });
+        bench("sort.topKByYear", n, i -> SortUtils.topK(books, SortUtils.Key.YEAR, 20));
+        bench("search.isbn", n, i -> library.inventory.searchByISBN(DatasetGenerator.isbn(rnd.nextInt(n))));
+        if (n <= 100_000) {
+            bench("search.isbnLinearScan", n, i -> SearchUtils.linearSearchByISBN(books, DatasetGenerator.isbn(rnd.nextInt(n))));
+        }
+        bench("search.titleExact", n, i -> library.inventory.searchByTitle(titles[i % titles.length]));
+        bench("search.titlePrefix", n, i -> library.inventory.searchByTitlePrefix(titles[i % titles.length].substring(0, 6)));
+        bench("search.titleSubstring", n, i -> library.inventory.searchTitleContaining("den lig"));
+        bench("search.authorSubstring", n, i -> library.inventory.searchAuthorContaining("or 12"));
+        Book probe = books.get(n / 2);
+        bench("search.compositeQuery", n, i -> {
+            int count = 0;
+            for (Book b : library.inventory.query().category(probe.category).yearBetween(probe.year - 5, probe.year + 5).shelf(probe.shelfLocation).execute()) count++;
+            return count;
+        });
+        bench("search.keywordAnd", n, i -> library.inventory.searchKeywords("love river", true, 0, 10));
+        bench("search.keywordAndCached", n, i -> library.cache.searchKeywords("love river", true, 0, 10));
+        bench("search.authorSubstringCached", n, i -> library.cache.searchAuthorContaining("or 12").size());
+
+        // ---------- lending ----------
+        bench("lending.borrowReturn", n, i -> {
+            String isbn = DatasetGenerator.isbn(rnd.nextInt(n));
+            String member = DatasetGenerator.memberId(rnd.nextInt(borrowers));
+            Transaction t = library.borrow(isbn, member, LocalDate.now(), 14);
+            return t == null ? null : library.giveBack(isbn, member);
+        });
+        bench("lending.borrowManyReturnMany100", n, i -> {
+            List<Transaction> loans = new ArrayList<>(100);
+            List<String> isbns = new ArrayList<>(100);
+            for (int k = 0; k < 100; k++) {
+                String isbn = DatasetGenerator.isbn(rnd.nextInt(n));
+                loans.add(new Transaction(isbn, DatasetGenerator.memberId(rnd.nextInt(borrowers)), LocalDate.now(), LocalDate.now().plusDays(14)));
+                isbns.add(isbn);
+            }
+            library.lending.borrowMany(loans);
+            return library.lending.returnMany(isbns).succeeded();
+        });
+        bench("lending.openLoansOfBorrower", n, i -> library.lending.getOpenLoans(DatasetGenerator.memberId(rnd.nextInt(borrowers))));
+
+        // ---------- overdue ----------
+        LocalDate[] day = {LocalDate.now()};
+        bench("overdue.dailyRun", n, i -> {
+            day[0] = day[0].plusDays(1);
+            return library.overdue.run(day[0]);
+        });
+
+        // ---------- read views ----------
+        bench("views.allBooksParallelCount", n, i -> library.inventory.getAllBooks().parallelStream().filter(b -> b.year >= 2000).count());
+        bench("views.historySnapshot", n, i -> library.lending.getAllTransactions().size());
+
+        // ---------- reports ----------
+        bench("reports.mostBorrowedBooks", n, i -> Harness.quietly(() -> {
+            Reports.mostBorrowedBooks(library.cache, 5);
+            return null;
+        }));
+        bench("reports.topBorrowersByFines", n, i -> Harness.quietly(() -> {
+            Reports.topBorrowersByFines(library.cache, library.registry, 5);
+            return null;
+        }));
+
+        // ---------- persistence ----------
+        File dir = Files.createTempDirectory("library-bench").toFile();
+        try {
+            Collection<Book> all = library.inventory.getAllBooks();
+            Collection<model.Borrower> members = library.registry.getAllBorrowers();
+            List<Transaction> history = library.lending.getAllTransactions();
+            new CsvSnapshot(dir).save(0, all, members, history, List.of());
+            File snap = new File(dir, BinarySnapshot.FILE);
+            BinarySnapshot.write(snap, 0, null, all, members, history, List.of());
+
+            bench("persistence.csvLoadTransactions", n, i -> BulkLoader.load(new File(dir, CsvSnapshot.TRANSACTIONS_FILE), BulkLoader.TRANSACTION).rows.size());
+            bench("persistence.csvSave", n, i -> {
+                new CsvSnapshot(dir).save(0, all, members, history, List.of());
+                return null;
+            });
+            bench("persistence.binarySave", n, i -> {
+                BinarySnapshot.write(snap, 0, null, all, members, history, List.of());
+                return null;
+            });
+            bench("persistence.binaryLoad", n, i -> BinarySnapshot.read(snap).transactions.size());
+            if (enabled("persistence.compactOneChange")) {
+                // a copy of the library opened from the CSV files above, saved as segments
+                Library copy = new Library();
+                try (PersistenceEngine store = new PersistenceEngine(dir, copy)) {
+                    store.open();
+                    model.Borrower member = copy.registry.getBorrower(DatasetGenerator.memberId(0));
+                    bench("persistence.compactOneChange", n, i -> {
+                        copy.registry.setFines(member, i % 100);
+                        return store.compact();
+                    });
+                }
+            }
+            if (enabled("persistence.openSegments")) {
+                // startup from segments; only open loans are loaded unless -Dlibrary.history.lazy=false
+                if (!new SegmentedSnapshot(dir).exists()) {
+                    try (PersistenceEngine store = new PersistenceEngine(dir, new Library())) {
+                        store.open();
+                    }
+                }
+                bench("persistence.openSegments", n, i -> {
+                    Library copy = new Library();
+                    try (PersistenceEngine store = new PersistenceEngine(dir, copy)) {
+                        store.open();
+                    }
+                    return copy.lending.openLoanCount();
+                });
+            }
+            if (enabled("persistence.journalAppendSync")) {
+                try (Journal journal = new Journal(new File(dir, "bench.log"), 0, 0, 1024)) {
+                    bench("persistence.journalAppendSync", n, i -> {
+                        journal.append("F,M1,0.5");
+                        journal.sync();
+                        return null;
+                    });
+                }
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) for (File child : files) delete(child);
+        f.delete();
+    }
+}
@@ -0,0 +1,43 @@
+package bench;
+
+import service.Library;
+import service.ReportEngine;
+
+import java.time.LocalDate;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Scaling benchmark for {@link ReportEngine}: runs the full-history report on fork-join pools of
+ * 1, 2, 4, ... threads over one synthetic library and prints rows/second and the speed-up over
+ * one thread.
+ *
+ * Usage: java -Xmx8g bench.ReportEngineBenchmark [historyRows] [runsPerPool]   (default 1,000,000 and 5;
+ *        10,000,000 rows needs about 4 GB)
+ */
+public class ReportEngineBenchmark {
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int cores = Runtime.getRuntime().availableProcessors();
+        Library library = new DatasetGenerator(42).library(Math.max(1000, rows / 10), Math.max(100, rows / 20), rows);
+        LocalDate today = LocalDate.now();
+        LocalDate from = today.minusYears(5);
+
+        System.out.printf("report over %,d history rows, %d cores%n", rows, cores);
+        double base = 0;
+        for (int threads = 1; threads <= Math.max(2, cores * 2); threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                ReportEngine engine = new ReportEngine(library.inventory, library.registry, library.lending.getHistory(), pool);
+                engine.run(from, today, today, 10); // warm-up
+                long best = Long.MAX_VALUE;
+                for (int r = 0; r < runs; r++) best = Math.min(best, engine.run(from, today, today, 10).nanos);
+                double rowsPerSec = rows / (best / 1e9);
+                if (base == 0) base = rowsPerSec;
+                System.out.printf("threads=%-3d %8.1f ms %,16.0f rows/s   x%.2f%n", threads, best / 1e6, rowsPerSec, rowsPerSec / base);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+}
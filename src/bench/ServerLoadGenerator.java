@@ -0,0 +1,164 @@
+package bench;
+
+import metrics.Histogram;
+import server.LibraryServer;
+import service.Library;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator for {@link LibraryServer}: N clients, each on a virtual thread with its own
+ * connection, send a mix of lookups, searches, borrow/return pairs and reports, keeping
+ * {@code depth} requests in flight (pipelined), and report throughput and request latency.
+ *
+ * Latency is measured per request, from writing its line to reading its full response, so with
+ * pipelining it includes the time spent queued behind earlier requests on the same connection.
+ *
+ * Usage: java bench.ServerLoadGenerator [--connect port] [--clients 1,16,128,512] [--depth 1,16]
+ *                                       [--seconds 5] [--books 100000]
+ * Without --connect an in-process server is started over a generated library.
+ */
+public class ServerLoadGenerator {
+    public static void main(String[] args) throws Exception {
+        int port = -1, seconds = 5, books = 100_000;
+        int[] clientCounts = {1, 16, 128, 512}, depths = {1, 16};
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--connect": port = Integer.parseInt(args[++i]); break;
+                case "--clients": clientCounts = ints(args[++i]); break;
+                case "--depth": depths = ints(args[++i]); break;
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "--books": books = Integer.parseInt(args[++i]); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        int borrowers = Math.max(1000, books / 10);
+        LibraryServer server = null;
+        if (port < 0) {
+            Library library = new DatasetGenerator(42).library(books, borrowers, books * 2);
+            server = new LibraryServer(library);
+            port = server.start(0);
+        }
+        System.out.printf("server 127.0.0.1:%d, %d books, %d cores%n", port, books, Runtime.getRuntime().availableProcessors());
+        run(port, 8, 4, Math.min(2, seconds), books, borrowers); // warm-up
+        System.out.printf("%-8s %-6s %14s %10s %10s %10s %10s %7s%n", "clients", "depth", "req/s", "mean(us)", "p50(us)", "p99(us)", "max(us)", "errors");
+        for (int clients : clientCounts) {
+            for (int depth : depths) run(port, clients, depth, seconds, books, borrowers).print(clients, depth);
+        }
+        if (server != null) server.close();
+    }
+
+    private static class Run {
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final Histogram latency = new Histogram();
+        long nanos;
+
+        void print(int clients, int depth) {
+            Histogram.Snapshot s = latency.snapshot();
+            System.out.printf("%-8d %-6d %,14.0f %10.1f %10.1f %10.1f %10.1f %7d%n", clients, depth,
+                    requests.sum() * 1e9 / nanos, s.mean() / 1e3, s.percentile(0.50) / 1e3,
+                    s.percentile(0.99) / 1e3, s.max / 1e3, errors.sum());
+        }
+    }
+
+    private static Run run(int port, int clients, int depth, int seconds, int books, int borrowers) throws Exception {
+        Run run = new Run();
+        CountDownLatch connected = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Throwable> failures = new ArrayList<>();
+        long start;
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                int id = c;
+                pool.execute(() -> {
+                    try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                        s.setTcpNoDelay(true);
+                        connected.countDown();
+                        go.await();
+                        client(s, id, depth, System.nanoTime() + seconds * 1_000_000_000L, books, borrowers, run);
+                    } catch (Exception ex) {
+                        synchronized (failures) {
+                            failures.add(ex);
+                        }
+                        connected.countDown();
+                    }
+                });
+            }
+            connected.await();
+            start = System.nanoTime();
+            go.countDown();
+        }
+        run.nanos = System.nanoTime() - start;
+        if (!failures.isEmpty()) throw new IllegalStateException(failures.size() + " client(s) failed", failures.get(0));
+        return run;
+    }
+
+    private static void client(Socket s, int id, int depth, long deadline, int books, int borrowers, Run run) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+        SplittableRandom r = new SplittableRandom(id);
+        String member = DatasetGenerator.memberId(id % borrowers);
+        long[] sent = new long[depth];
+        int inFlight = 0, head = 0;
+        boolean stopping = false;
+        // isbns this client has borrowed and not yet returned
+        ArrayList<String> onLoan = new ArrayList<>();
+        while (true) {
+            while (!stopping && inFlight < depth) {
+                out.write(nextRequest(r, member, books, onLoan));
+                out.write('\n');
+                sent[(head + inFlight++) % depth] = System.nanoTime();
+            }
+            out.flush();
+            if (inFlight == 0) break;
+            String status = in.readLine();
+            if (status == null) throw new EOFException("server closed the connection");
+            if (status.startsWith("OK ")) {
+                for (int n = Integer.parseInt(status.substring(3)); n > 0; n--) in.readLine();
+            } else {
+                run.errors.increment();
+            }
+            long now = System.nanoTime();
+            run.latency.record(now - sent[head]);
+            run.requests.increment();
+            head = (head + 1) % depth;
+            inFlight--;
+            if (now >= deadline) stopping = true;
+        }
+        out.write("QUIT\n");
+        out.flush();
+        in.readLine();
+    }
+
+    // 40% lookups, 20% keyword searches for one title's id token, 15% borrows, 15% returns, 10% reports
+    private static String nextRequest(SplittableRandom r, String member, int books, List<String> onLoan) {
+        int p = r.nextInt(100);
+        if (p < 40) return "BOOK " + DatasetGenerator.isbn(r.nextInt(books));
+        if (p < 60) return "SEARCH keyword " + Integer.toString(r.nextInt(books), 36);
+        if (p < 75 || (p < 90 && onLoan.isEmpty())) {
+            String isbn = DatasetGenerator.isbn(r.nextInt(books));
+            onLoan.add(isbn); // a failed borrow just makes the matching return fail too
+            return "BORROW " + isbn + " " + member;
+        }
+        if (p < 90) return "RETURN " + onLoan.remove(onLoan.size() - 1) + " " + member;
+        return r.nextBoolean() ? "TOP 10" : "RECENT 30 10";
+    }
+
+    private static int[] ints(String csv) {
+        String[] p = csv.split(",");
+        int[] out = new int[p.length];
+        for (int i = 0; i < p.length; i++) out[i] = Integer.parseInt(p[i].trim());
+        return out;
+    }
+}
@@ -0,0 +1,20 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** A monotonically increasing count; striped, so concurrent increments don't contend. */
+public class Counter {
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        if (Metrics.ENABLED) count.increment();
+    }
+
+    public void add(long n) {
+        if (Metrics.ENABLED) count.add(n);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+}
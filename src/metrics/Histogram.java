@@ -0,0 +1,85 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A log-linear histogram of non-negative longs, in the style of HdrHistogram: values below 32 are
+ * counted exactly, larger ones in 32 linear sub-buckets per power of two, so any recorded value is
+ * reported within about 3% over the whole long range. Recording is a few atomic adds, no locks.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        if (!Metrics.ENABLED) return;
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int index(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) ((v >>> shift) - SUB_COUNT);
+    }
+
+    // midpoint of the bucket's value range
+    static long valueAt(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / SUB_COUNT - 1;
+        long low = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+        return low + ((1L << shift) >>> 1);
+    }
+
+    public Snapshot snapshot() {
+        long[] c = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            c[i] = counts.get(i);
+            n += c[i];
+        }
+        return new Snapshot(c, n, sum.sum(), max.get());
+    }
+
+    /** Counts frozen at one moment; percentiles are bucket midpoints. */
+    public static class Snapshot {
+        private final long[] counts;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /** The value at quantile {@code q} (0..1), e.g. 0.99 for p99. */
+        public long percentile(double q) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(valueAt(i), max);
+            }
+            return max;
+        }
+    }
+}
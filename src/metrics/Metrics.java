@@ -0,0 +1,121 @@
+package metrics;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide metrics: named counters, timers, histograms and gauges. Services keep the instances
+ * they update in static fields, e.g. {@code static final Timer BORROW = Metrics.timer("lending.borrow")}.
+ *
+ * Metrics are on unless the JVM is started with {@code -Dlibrary.metrics=false}. The switch is a
+ * static final constant, so when it is off every update is a dead branch that the JIT removes.
+ */
+public final class Metrics {
+    public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("library.metrics"));
+
+    private static final Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService reporter;
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public static Timer timer(String name) {
+        return TIMERS.computeIfAbsent(name, n -> new Timer());
+    }
+
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /** Registers (or replaces) a gauge read on demand, e.g. an index size. */
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    static Map<String, Counter> counters() {
+        return new TreeMap<>(COUNTERS);
+    }
+
+    static Map<String, Timer> timers() {
+        return new TreeMap<>(TIMERS);
+    }
+
+    static Map<String, Histogram> histograms() {
+        return new TreeMap<>(HISTOGRAMS);
+    }
+
+    static Map<String, LongSupplier> gauges() {
+        return new TreeMap<>(GAUGES);
+    }
+
+    /** All metrics as a text table; timer columns are in microseconds. */
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("== metrics ").append(LocalDateTime.now().withNano(0)).append(ENABLED ? "" : " (disabled)").append(" ==\n");
+        gauges().forEach((name, g) -> sb.append(String.format("gauge     %-34s %,d%n", name, g.getAsLong())));
+        counters().forEach((name, c) -> sb.append(String.format("counter   %-34s %,d%n", name, c.get())));
+        histograms().forEach((name, h) -> {
+            Histogram.Snapshot s = h.snapshot();
+            sb.append(String.format("histogram %-34s n=%,d mean=%.1f p50=%d p99=%d max=%d%n",
+                    name, s.count, s.mean(), s.percentile(0.50), s.percentile(0.99), s.max));
+        });
+        timers().forEach((name, t) -> {
+            Histogram.Snapshot s = t.snapshot();
+            if (s.count == 0) return;
+            sb.append(String.format("timer     %-34s n=%,d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus%n",
+                    name, s.count, s.mean() / 1e3, s.percentile(0.50) / 1e3, s.percentile(0.99) / 1e3,
+                    s.percentile(0.999) / 1e3, s.max / 1e3));
+        });
+        return sb.toString();
+    }
+
+    /** Registers the metrics with the platform MBean server as {@code library:type=Metrics}. */
+    public static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("library:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException ex) {
+            throw new IllegalStateException("cannot register metrics MBean", ex);
+        }
+    }
+
+    /** Writes {@link #dump()} to {@code out} every {@code period} on a daemon thread; replaces any earlier reporter. */
+    public static synchronized void startReporter(long period, TimeUnit unit, PrintStream out) {
+        stopReporter();
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            out.print(dump());
+            out.flush();
+        }, period, period, unit);
+    }
+
+    public static synchronized void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+/**
+ * Exposes every registered metric as a read-only JMX attribute: counters and gauges by name,
+ * timers as {@code <name>.count}, {@code .p50Micros}, {@code .p99Micros} and {@code .maxMicros}.
+ * The attribute list is rebuilt on each request, so metrics registered later show up.
+ */
+class MetricsMBean implements DynamicMBean {
+    private static final String[] TIMER_FIELDS = {"count", "meanMicros", "p50Micros", "p99Micros", "maxMicros"};
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Counter c = Metrics.counters().get(attribute);
+        if (c != null) return c.get();
+        LongSupplier g = Metrics.gauges().get(attribute);
+        if (g != null) return g.getAsLong();
+        int dot = attribute.lastIndexOf('.');
+        Timer t = dot < 0 ? null : Metrics.timers().get(attribute.substring(0, dot));
+        if (t == null) throw new AttributeNotFoundException(attribute);
+        Histogram.Snapshot s = t.snapshot();
+        switch (attribute.substring(dot + 1)) {
+            case "count": return (double) s.count;
+            case "meanMicros": return s.mean() / 1e3;
+            case "p50Micros": return s.percentile(0.50) / 1e3;
+            case "p99Micros": return s.percentile(0.99) / 1e3;
+            case "maxMicros": return s.max / 1e3;
+            default: throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            try {
+                list.add(new Attribute(a, getAttribute(a)));
+            } catch (AttributeNotFoundException ignored) {
+                // skipped, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("dump".equals(actionName)) return Metrics.dump();
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attrs = new ArrayList<>();
+        for (String name : Metrics.counters().keySet()) attrs.add(attr(name, "java.lang.Long", "counter"));
+        for (String name : Metrics.gauges().keySet()) attrs.add(attr(name, "java.lang.Long", "gauge"));
+        for (String name : Metrics.timers().keySet()) {
+            for (String f : TIMER_FIELDS) attrs.add(attr(name + "." + f, "java.lang.Double", "timer"));
+        }
+        MBeanOperationInfo dump = new MBeanOperationInfo("dump", "all metrics as text", new MBeanParameterInfo[0],
+                "java.lang.String", MBeanOperationInfo.INFO);
+        return new MBeanInfo(getClass().getName(), "Library metrics", attrs.toArray(new MBeanAttributeInfo[0]),
+                null, new MBeanOperationInfo[] {dump}, null);
+    }
+
+    private static MBeanAttributeInfo attr(String name, String type, String description) {
+        return new MBeanAttributeInfo(name, type, description, true, false, false);
+    }
+}
@@ -0,0 +1,22 @@
+package metrics;
+
+/**
+ * Latency of an operation in nanoseconds, as a {@link Histogram}. Use as
+ * {@code long t = TIMER.start(); ... TIMER.stop(t);}; with metrics disabled both calls are
+ * constant-folded away.
+ */
+public class Timer {
+    private final Histogram histogram = new Histogram();
+
+    public long start() {
+        return Metrics.ENABLED ? System.nanoTime() : 0L;
+    }
+
+    public void stop(long start) {
+        if (Metrics.ENABLED) histogram.record(System.nanoTime() - start);
+    }
+
+    public Histogram.Snapshot snapshot() {
+        return histogram.snapshot();
+    }
+}
@@ -1,22 +1,30 @@
 package model;
 
+import util.StringPool;
+
 public class Book {
+    // authors, categories, publishers and shelves repeat across the catalogue; one instance per value
+    private static final StringPool FIELDS = new StringPool();
+
     public String title, author, isbn, category, publisher, shelfLocation;
     public int year;
+    // copies the library owns; availability is this minus copies out or held for pickup. The one field
+    // changed in place once catalogued (BookInventory.setCopies), hence volatile
+    public volatile int copies = 1;
 
     public Book(String title, String author, String isbn, String category, int year, String publisher, String shelfLocation) {
         this.title = title;
-        this.author = author;
+        this.author = FIELDS.canonical(author);
         this.isbn = isbn;
-        this.category = category;
+        this.category = FIELDS.canonical(category);
         this.year = year;
-        this.publisher = publisher;
-        this.shelfLocation = shelfLocation;
+        this.publisher = FIELDS.canonical(publisher);
+        this.shelfLocation = FIELDS.canonical(shelfLocation);
     }
 
     @Override
     public String toString() {
         return String.format("%s by %s | ISBN: %s | Category: %s | Year: %d | Publisher: %s | Shelf: %s",
-                title, author, isbn, category, year, publisher, shelfLocation);
+                title, author, isbn, category, year, publisher, shelfLocation) + (copies == 1 ? "" : " | Copies: " + copies);
     }
 }
@@ -0,0 +1,22 @@
+package model;
+
+import java.time.LocalDate;
+
+/** A borrower's place in the queue for an ISBN; {@code ready} once a returned copy has been set aside for them. */
+public class Hold {
+    public final String isbn, borrowerId;
+    public final LocalDate placedDate;
+    public boolean ready;
+
+    public Hold(String isbn, String borrowerId, LocalDate placedDate) {
+        this.isbn = isbn;
+        this.borrowerId = borrowerId;
+        this.placedDate = placedDate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ISBN: %s | Borrower ID: %s | Placed: %s | %s",
+                isbn, borrowerId, placedDate, ready ? "Ready for pickup" : "Waiting");
+    }
+}
@@ -0,0 +1,361 @@
+package persistence;
+
+import model.Book;
+import model.Borrower;
+import model.Hold;
+import model.Transaction;
+import service.LoanHistory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Versioned binary snapshot of the whole library ({@code library.snap}), now read only to convert
+ * older data and kept for benchmarks; its sections also serve as {@link SegmentedSnapshot}'s segments.
+ *
+ * Layout (all ints big-endian, "varint" = unsigned LEB128, "str" = varint length + UTF-8):
+ * <pre>
+ *  header   : int magic "ECLS", short version, long lsn,
+ *             long last overdue run epoch day (Long.MIN_VALUE = never; since version 2)
+ *  strings  : varint n, n x str       -- author/category/publisher/shelf dictionary
+ *  books    : varint n, n x (str title, varint author, str isbn, varint category,
+ *                            zigzag year, varint publisher, varint shelf, varint copies (since version 3))
+ *  borrowers: varint n, n x (str name, str id, str contact, double fines)
+ *  keys     : varint n, n x str       -- ISBN/borrower-id dictionary for transactions and holds
+ *  loans    : varint n, n x (varint isbn, varint borrower, int borrowEpochDay, zigzag dueDays),
+ *             then ceil(n/64) longs of bit-packed returned flags
+ *  holds    : varint n, n x (varint isbn, varint borrower, int placedEpochDay, byte ready)
+ *             -- each ISBN's holds in queue order (since version 3)
+ *  footer   : long crc32 of everything above, int magic
+ * </pre>
+ */
+public class BinarySnapshot {
+    public static final String FILE = "library.snap";
+    private static final int MAGIC = 0x45434C53; // "ECLS"
+    private static final short VERSION = 3;
+    private static final long NO_RUN = Long.MIN_VALUE;
+
+    /** Decoded snapshot contents. */
+    public static class Contents {
+        public final long lsn;
+        public final LocalDate lastOverdueRun;
+        public final List<Book> books;
+        public final List<Borrower> borrowers;
+        public final List<Transaction> transactions;
+        public final List<Hold> holds;
+        /** History left on disk, or null if {@link #transactions} is all of it; if set, transactions are the open loans, at {@link #openRows}. */
+        public final LoanHistory.Archive archive;
+        public final int[] openRows;
+
+        Contents(long lsn, LocalDate lastOverdueRun, List<Book> books, List<Borrower> borrowers, List<Transaction> transactions,
+                 List<Hold> holds) {
+            this(lsn, lastOverdueRun, books, borrowers, transactions, holds, null, null);
+        }
+
+        Contents(long lsn, LocalDate lastOverdueRun, List<Book> books, List<Borrower> borrowers, List<Transaction> transactions,
+                 List<Hold> holds, LoanHistory.Archive archive, int[] openRows) {
+            this.lsn = lsn;
+            this.lastOverdueRun = lastOverdueRun;
+            this.books = books;
+            this.borrowers = borrowers;
+            this.transactions = transactions;
+            this.holds = holds;
+            this.archive = archive;
+            this.openRows = openRows;
+        }
+    }
+
+    /** Writes the snapshot to a temp file, fsyncs it and renames it over {@code file}. */
+    public static void write(File file, long lsn, LocalDate lastOverdueRun, Collection<Book> books, Collection<Borrower> borrowers,
+                             Collection<Transaction> transactions, Collection<Hold> holds) throws IOException {
+        writeFile(file, MAGIC, out -> {
+            out.writeShort(VERSION);
+            out.writeLong(lsn);
+            out.writeLong(lastOverdueRun == null ? NO_RUN : lastOverdueRun.toEpochDay());
+            writeBooks(out, books);
+            writeBorrowers(out, borrowers);
+            writeLoansAndHolds(out, transactions, holds);
+        });
+    }
+
+    /** Reads and verifies a snapshot; a bad magic, unknown version or checksum mismatch is an IOException. */
+    public static Contents read(File file) throws IOException {
+        ByteBuffer buf = readFile(file, MAGIC);
+        short version = buf.getShort();
+        if (version > VERSION) throw new IOException(file + ": unsupported snapshot version " + version);
+        long lsn = buf.getLong();
+        long lastRun = version >= 2 ? buf.getLong() : NO_RUN;
+        List<Book> books = readBooks(buf, version >= 3);
+        List<Borrower> borrowers = readBorrowers(buf);
+        List<Transaction> transactions = new ArrayList<>();
+        List<Hold> holds = new ArrayList<>();
+        readLoansAndHolds(buf, version >= 3, transactions, holds);
+        if (buf.hasRemaining()) throw new IOException(file + ": trailing bytes in snapshot");
+        return new Contents(lsn, lastRun == NO_RUN ? null : LocalDate.ofEpochDay(lastRun), books, borrowers, transactions, holds);
+    }
+
+    // ---------- framing and sections, shared with SegmentedSnapshot ----------
+
+    interface Body {
+        void write(Output out) throws IOException;
+    }
+
+    /** Writes {@code magic}, the body and a crc32 + magic footer to a temp file, fsyncs it and renames it over {@code file}. */
+    static void writeFile(File file, int magic, Body body) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            CRC32 crc = new CRC32();
+            Output out = new Output(new CheckedOutputStream(fos, crc));
+            out.writeInt(magic);
+            body.write(out);
+            out.flush();
+            long checksum = crc.getValue();
+            DataOutputStream footer = new DataOutputStream(fos);
+            footer.writeLong(checksum);
+            footer.writeInt(magic);
+            footer.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Verifies a file written by {@link #writeFile}; returns its body, positioned after the magic and limited before the footer. */
+    static ByteBuffer readFile(File file, int magic) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (data.length < 4 + 12) throw new IOException(file + ": truncated snapshot");
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int bodyLen = data.length - 12;
+        if (buf.getInt(bodyLen + 8) != magic) throw new IOException(file + ": missing snapshot footer");
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, bodyLen);
+        if (crc.getValue() != buf.getLong(bodyLen)) throw new IOException(file + ": snapshot checksum mismatch");
+        if (buf.getInt() != magic) throw new IOException(file + ": not a library snapshot");
+        buf.limit(bodyLen);
+        return buf;
+    }
+
+    static void writeBooks(Output out, Collection<Book> books) throws IOException {
+        Dictionary strings = new Dictionary();
+        for (Book b : books) {
+            strings.id(b.author);
+            strings.id(b.category);
+            strings.id(b.publisher);
+            strings.id(b.shelfLocation);
+        }
+        strings.write(out);
+        out.writeVarint(books.size());
+        for (Book b : books) {
+            out.writeString(b.title);
+            out.writeVarint(strings.id(b.author));
+            out.writeString(b.isbn);
+            out.writeVarint(strings.id(b.category));
+            out.writeVarint(zigzag(b.year));
+            out.writeVarint(strings.id(b.publisher));
+            out.writeVarint(strings.id(b.shelfLocation));
+            out.writeVarint(b.copies);
+        }
+    }
+
+    static List<Book> readBooks(ByteBuffer buf, boolean withCopies) {
+        String[] strings = readDictionary(buf);
+        int nBooks = readVarint(buf);
+        List<Book> books = new ArrayList<>(nBooks);
+        for (int i = 0; i < nBooks; i++) {
+            String title = readString(buf);
+            String author = strings[readVarint(buf)];
+            String isbn = readString(buf);
+            String category = strings[readVarint(buf)];
+            int year = unzigzag(readVarint(buf));
+            String publisher = strings[readVarint(buf)];
+            String shelf = strings[readVarint(buf)];
+            Book book = new Book(title, author, isbn, category, year, publisher, shelf);
+            if (withCopies) book.copies = readVarint(buf);
+            books.add(book);
+        }
+        return books;
+    }
+
+    static void writeBorrowers(Output out, Collection<Borrower> borrowers) throws IOException {
+        out.writeVarint(borrowers.size());
+        for (Borrower br : borrowers) {
+            out.writeString(br.name);
+            out.writeString(br.id);
+            out.writeString(br.contact);
+            out.writeDouble(br.fines);
+        }
+    }
+
+    static List<Borrower> readBorrowers(ByteBuffer buf) {
+        int nBorrowers = readVarint(buf);
+        List<Borrower> borrowers = new ArrayList<>(nBorrowers);
+        for (int i = 0; i < nBorrowers; i++) {
+            Borrower br = new Borrower(readString(buf), readString(buf), readString(buf));
+            br.fines = buf.getDouble();
+            borrowers.add(br);
+        }
+        return borrowers;
+    }
+
+    static void writeLoansAndHolds(Output out, Collection<Transaction> transactions, Collection<Hold> holds) throws IOException {
+        Dictionary keys = new Dictionary();
+        for (Transaction t : transactions) {
+            keys.id(t.isbn);
+            keys.id(t.borrowerId);
+        }
+        for (Hold h : holds) {
+            keys.id(h.isbn);
+            keys.id(h.borrowerId);
+        }
+        keys.write(out);
+        out.writeVarint(transactions.size());
+        long[] returned = new long[(transactions.size() + 63) / 64];
+        int i = 0;
+        for (Transaction t : transactions) {
+            out.writeVarint(keys.id(t.isbn));
+            out.writeVarint(keys.id(t.borrowerId));
+            long borrowDay = t.borrowDate.toEpochDay();
+            out.writeInt((int) borrowDay);
+            out.writeVarint(zigzag((int) (t.returnDate.toEpochDay() - borrowDay)));
+            if (t.returned) returned[i >>> 6] |= 1L << (i & 63);
+            i++;
+        }
+        for (long word : returned) out.writeLong(word);
+
+        out.writeVarint(holds.size());
+        for (Hold h : holds) {
+            out.writeVarint(keys.id(h.isbn));
+            out.writeVarint(keys.id(h.borrowerId));
+            out.writeInt((int) h.placedDate.toEpochDay());
+            out.writeByte(h.ready ? 1 : 0);
+        }
+    }
+
+    /** Appends the loans (and, if {@code withHolds}, the holds) of a section written by {@link #writeLoansAndHolds}. */
+    static void readLoansAndHolds(ByteBuffer buf, boolean withHolds, List<Transaction> transactions, List<Hold> holds) {
+        String[] keys = readDictionary(buf);
+        int nLoans = readVarint(buf);
+        int first = transactions.size();
+        for (int i = 0; i < nLoans; i++) {
+            String isbn = keys[readVarint(buf)];
+            String borrowerId = keys[readVarint(buf)];
+            long borrowDay = buf.getInt();
+            long dueDay = borrowDay + unzigzag(readVarint(buf));
+            transactions.add(new Transaction(isbn, borrowerId, LocalDate.ofEpochDay(borrowDay), LocalDate.ofEpochDay(dueDay)));
+        }
+        for (int w = 0; w < (nLoans + 63) / 64; w++) {
+            long word = buf.getLong();
+            while (word != 0) {
+                int bit = Long.numberOfTrailingZeros(word);
+                transactions.get(first + w * 64 + bit).returned = true;
+                word &= word - 1;
+            }
+        }
+        if (!withHolds) return;
+        int nHolds = readVarint(buf);
+        for (int i = 0; i < nHolds; i++) {
+            Hold h = new Hold(keys[readVarint(buf)], keys[readVarint(buf)], LocalDate.ofEpochDay(buf.getInt()));
+            h.ready = buf.get() != 0;
+            holds.add(h);
+        }
+    }
+
+    // insertion-ordered string -> id table
+    static class Dictionary {
+        final Map<String, Integer> ids = new LinkedHashMap<>();
+
+        int id(String s) {
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = ids.size();
+                ids.put(s, id);
+            }
+            return id;
+        }
+
+        void write(Output out) throws IOException {
+            out.writeVarint(ids.size());
+            for (String s : ids.keySet()) out.writeString(s);
+        }
+    }
+
+    static String[] readDictionary(ByteBuffer buf) {
+        String[] out = new String[readVarint(buf)];
+        for (int i = 0; i < out.length; i++) out[i] = readString(buf);
+        return out;
+    }
+
+    static String readString(ByteBuffer buf) {
+        int len = readVarint(buf);
+        String s = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    static int readVarint(ByteBuffer buf) {
+        int v = 0, shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            v |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return v;
+    }
+
+    // unsynchronized buffered writer; DataOutputStream would take a lock per varint byte
+    static class Output {
+        private final OutputStream out;
+        private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buf.remaining() < n) flush();
+        }
+
+        void writeVarint(int v) throws IOException {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                buf.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            buf.put((byte) v);
+        }
+
+        void writeByte(int v) throws IOException { ensure(1); buf.put((byte) v); }
+
+        void writeShort(int v) throws IOException { ensure(2); buf.putShort((short) v); }
+
+        void writeInt(int v) throws IOException { ensure(4); buf.putInt(v); }
+
+        void writeLong(long v) throws IOException { ensure(8); buf.putLong(v); }
+
+        void writeDouble(double v) throws IOException { ensure(8); buf.putDouble(v); }
+
+        void writeString(String s) throws IOException {
+            byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            if (bytes.length > buf.remaining()) flush();
+            if (bytes.length > buf.capacity()) out.write(bytes);
+            else buf.put(bytes);
+        }
+
+        void flush() throws IOException {
+            out.write(buf.array(), 0, buf.position());
+            buf.clear();
+        }
+    }
+
+    static int zigzag(int v) { return (v << 1) ^ (v >> 31); }
+
+    static int unzigzag(int v) { return (v >>> 1) ^ -(v & 1); }
+}
@@ -0,0 +1,281 @@
+package persistence;
+
+import model.Book;
+import model.Borrower;
+import model.Hold;
+import model.Transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Fast loader for the CSV snapshot files. Each file is memory-mapped in line-aligned chunks that
+ * are parsed in parallel on the common fork-join pool; each chunk reuses one {@link LineTokenizer},
+ * so per row only the resulting model objects and their strings are allocated. Rows keep file order.
+ */
+public class BulkLoader {
+    private static final int CHUNK_BYTES = 8 << 20;
+
+    /** Rows parsed from one file, the snapshot LSN from its header, and load statistics. */
+    public static class Result<T> {
+        public final List<T> rows;
+        public final long lsn;
+        public final LoadStats stats;
+
+        Result(String file, List<T> rows, long malformed, long lsn, long nanos) {
+            this.rows = rows;
+            this.lsn = lsn;
+            this.stats = new LoadStats(file, rows.size(), malformed, nanos);
+        }
+    }
+
+    /** Parses one line; returns null (or throws a RuntimeException) when the line is malformed. */
+    public interface RowParser<T> {
+        T parse(LineTokenizer line);
+    }
+
+    public static final RowParser<Book> BOOK = line -> {
+        int n = line.split(8);
+        if (n < 7) return null;
+        Book b = new Book(line.text(0), line.text(1), line.raw(2), line.text(3), line.intValue(4), line.text(5), line.text(6));
+        if (n == 8) b.copies = line.intValue(7);
+        return b;
+    };
+
+    public static final RowParser<Borrower> BORROWER = line -> {
+        int n = line.split(4);
+        if (n < 3) return null;
+        Borrower br = new Borrower(line.text(0), line.raw(1), line.text(2));
+        if (n >= 4) {
+            try { br.fines = line.doubleValue(3); } catch (Exception ignored) {}
+        }
+        return br;
+    };
+
+    public static final RowParser<Transaction> TRANSACTION = line -> {
+        if (line.split(Integer.MAX_VALUE) < 5) return null;
+        Transaction t = new Transaction(line.raw(0), line.raw(1), line.date(2), line.date(3));
+        t.returned = line.bool(4);
+        return t;
+    };
+
+    public static final RowParser<Hold> HOLD = line -> {
+        if (line.split(Integer.MAX_VALUE) < 4) return null;
+        Hold h = new Hold(line.raw(0), line.raw(1), line.date(2));
+        h.ready = line.bool(3);
+        return h;
+    };
+
+    public static <T> Result<T> load(File file, RowParser<T> parser) throws IOException {
+        long start = System.nanoTime();
+        if (!file.exists()) return new Result<>(file.getName(), new ArrayList<>(), 0, 0, 0);
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<long[]> chunks = chunk(ch);
+            List<Chunk<T>> parsed = chunks.parallelStream()
+                    .map(c -> parseChunk(ch, c[0], c[1], parser))
+                    .collect(Collectors.toList());
+            int total = 0;
+            long malformed = 0, lsn = 0;
+            for (Chunk<T> c : parsed) {
+                if (c.error != null) throw c.error;
+                total += c.rows.size();
+                malformed += c.malformed;
+                lsn = Math.max(lsn, c.lsn);
+            }
+            List<T> rows = new ArrayList<>(total);
+            for (Chunk<T> c : parsed) rows.addAll(c.rows);
+            return new Result<>(file.getName(), rows, malformed, lsn, System.nanoTime() - start);
+        }
+    }
+
+    // splits the file into [start, end) ranges of roughly CHUNK_BYTES that end just after a newline
+    private static List<long[]> chunk(FileChannel ch) throws IOException {
+        long size = ch.size();
+        List<long[]> chunks = new ArrayList<>();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(start + CHUNK_BYTES, size);
+            while (end < size) {
+                one.clear();
+                ch.read(one, end - 1);
+                if (one.get(0) == '\n') break;
+                end++;
+            }
+            chunks.add(new long[]{start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static class Chunk<T> {
+        final List<T> rows = new ArrayList<>();
+        long malformed, lsn;
+        IOException error;
+    }
+
+    private static <T> Chunk<T> parseChunk(FileChannel ch, long start, long end, RowParser<T> parser) {
+        Chunk<T> out = new Chunk<>();
+        MappedByteBuffer buf;
+        try {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        } catch (IOException e) {
+            out.error = e;
+            return out;
+        }
+        LineTokenizer line = new LineTokenizer(buf);
+        int limit = buf.limit();
+        int pos = 0;
+        while (pos < limit) {
+            int eol = pos;
+            while (eol < limit && buf.get(eol) != '\n') eol++;
+            int lineEnd = eol > pos && buf.get(eol - 1) == '\r' ? eol - 1 : eol;
+            if (lineEnd > pos) {
+                line.reset(pos, lineEnd);
+                // only the file's first line can be the LSN header; anything else is data, even if it starts with '#'
+                if (start == 0 && pos == 0 && line.startsWith("#lsn=")) {
+                    out.lsn = line.longAfter(5);
+                } else {
+                    T row = null;
+                    try {
+                        row = parser.parse(line);
+                    } catch (RuntimeException ignored) {
+                    }
+                    if (row == null) out.malformed++;
+                    else out.rows.add(row);
+                }
+            }
+            pos = eol + 1;
+        }
+        return out;
+    }
+
+    /**
+     * Splits one line of a mapped buffer at commas without copying it. Field text is only
+     * decoded when asked for, and numbers and dates are parsed straight from the bytes.
+     * Text fields use the {@code ;;} comma escape of {@link CsvFormat}.
+     */
+    public static class LineTokenizer {
+        private final ByteBuffer buf;
+        private int start, end, count;
+        private int[] bounds = new int[16]; // field i spans [bounds[2i], bounds[2i+1])
+        private byte[] scratch = new byte[256];
+
+        LineTokenizer(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        void reset(int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.count = 0;
+        }
+
+        /** Splits into at most {@code limit} fields (the last one keeps any extra commas); returns the field count. */
+        public int split(int limit) {
+            count = 0;
+            int from = start;
+            for (int i = start; i < end && count < limit - 1; i++) {
+                if (buf.get(i) == ',') {
+                    add(from, i);
+                    from = i + 1;
+                }
+            }
+            add(from, end);
+            return count;
+        }
+
+        private void add(int from, int to) {
+            if (2 * count + 2 > bounds.length) bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            bounds[2 * count] = from;
+            bounds[2 * count + 1] = to;
+            count++;
+        }
+
+        public String raw(int field) {
+            int from = bounds[2 * field], len = bounds[2 * field + 1] - from;
+            if (len > scratch.length) scratch = new byte[Math.max(len, scratch.length * 2)];
+            buf.get(from, scratch, 0, len);
+            return new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+
+        /** Field with the {@code ;;} escape undone; the replace only runs when a ';' is present. */
+        public String text(int field) {
+            int from = bounds[2 * field], to = bounds[2 * field + 1];
+            for (int i = from; i < to; i++) {
+                if (buf.get(i) == ';') return CsvFormat.unescape(raw(field));
+            }
+            return raw(field);
+        }
+
+        public int intValue(int field) {
+            int from = bounds[2 * field], to = bounds[2 * field + 1];
+            boolean neg = from < to && buf.get(from) == '-';
+            int i = neg ? from + 1 : from;
+            if (i == to || to - i > 9) return Integer.parseInt(raw(field).trim());
+            int v = 0;
+            for (; i < to; i++) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9) return Integer.parseInt(raw(field).trim());
+                v = v * 10 + d;
+            }
+            return neg ? -v : v;
+        }
+
+        public double doubleValue(int field) {
+            return Double.parseDouble(raw(field));
+        }
+
+        public boolean bool(int field) {
+            int from = bounds[2 * field], to = bounds[2 * field + 1];
+            return to - from == 4 && (buf.get(from) | 0x20) == 't' && (buf.get(from + 1) | 0x20) == 'r'
+                    && (buf.get(from + 2) | 0x20) == 'u' && (buf.get(from + 3) | 0x20) == 'e';
+        }
+
+        /** ISO yyyy-MM-dd date, parsed from the bytes on the common fixed-width path. */
+        public LocalDate date(int field) {
+            int from = bounds[2 * field], to = bounds[2 * field + 1];
+            if (to - from == 10 && buf.get(from + 4) == '-' && buf.get(from + 7) == '-') {
+                int y = digits(from, 4), m = digits(from + 5, 2), d = digits(from + 8, 2);
+                if (y >= 0 && m >= 0 && d >= 0) return LocalDate.of(y, m, d);
+            }
+            return LocalDate.parse(raw(field));
+        }
+
+        private int digits(int from, int n) {
+            int v = 0;
+            for (int i = from; i < from + n; i++) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9) return -1;
+                v = v * 10 + d;
+            }
+            return v;
+        }
+
+        boolean startsWith(String prefix) {
+            if (end - start < prefix.length()) return false;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (buf.get(start + i) != prefix.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        long longAfter(int offset) {
+            long v = 0;
+            for (int i = start + offset; i < end; i++) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9) break;
+                v = v * 10 + d;
+            }
+            return v;
+        }
+    }
+}
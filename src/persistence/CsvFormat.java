@@ -0,0 +1,111 @@
+package persistence;
+
+import model.Book;
+import model.Borrower;
+import model.Hold;
+import model.Transaction;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Line format shared by the CSV snapshot files and the journal.
+ *
+ *  - book         -> title,author,isbn,category,year,publisher,shelf,copies (copies optional, default 1)
+ *  - borrower     -> name,id,contact,fines (fines optional, default 0)
+ *  - transaction  -> isbn,borrowerId,borrowDate(ISO),returnDate(ISO),returned(true/false)
+ *  - hold         -> isbn,borrowerId,placedDate(ISO),ready(true/false)
+ *
+ * The parse methods return null for a malformed line instead of throwing.
+ */
+public final class CsvFormat {
+    private static final DateTimeFormatter DF = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    private CsvFormat() {}
+
+    public static String formatBook(Book b) {
+        return escape(b.title) + "," + escape(b.author) + "," + b.isbn + "," +
+                escape(b.category) + "," + b.year + "," + escape(b.publisher) + "," + escape(b.shelfLocation) + "," + b.copies;
+    }
+
+    public static Book parseBook(String line) {
+        String[] p = split(line, 8);
+        if (p.length < 7) return null;
+        try {
+            Book b = new Book(unescape(p[0]), unescape(p[1]), p[2], unescape(p[3]), Integer.parseInt(p[4]), unescape(p[5]), unescape(p[6]));
+            if (p.length == 8) b.copies = Integer.parseInt(p[7]);
+            return b;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static String formatBorrower(Borrower br) {
+        return escape(br.name) + "," + br.id + "," + escape(br.contact) + "," + br.fines;
+    }
+
+    public static Borrower parseBorrower(String line) {
+        String[] p = split(line, 4);
+        if (p.length < 3) return null;
+        Borrower br = new Borrower(unescape(p[0]), p[1], unescape(p[2]));
+        if (p.length >= 4) {
+            try { br.fines = Double.parseDouble(p[3]); } catch (Exception ignored) {}
+        }
+        return br;
+    }
+
+    public static String formatTransaction(Transaction t) {
+        return t.isbn + "," + t.borrowerId + "," + t.borrowDate.format(DF) + "," + t.returnDate.format(DF) + "," + t.returned;
+    }
+
+    public static Transaction parseTransaction(String line) {
+        String[] p = line.split(",", -1);
+        if (p.length < 5) return null;
+        try {
+            Transaction t = new Transaction(p[0], p[1], LocalDate.parse(p[2], DF), LocalDate.parse(p[3], DF));
+            t.returned = Boolean.parseBoolean(p[4]);
+            return t;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    public static String formatHold(Hold h) {
+        return h.isbn + "," + h.borrowerId + "," + h.placedDate.format(DF) + "," + h.ready;
+    }
+
+    public static Hold parseHold(String line) {
+        String[] p = line.split(",", -1);
+        if (p.length < 4) return null;
+        try {
+            Hold h = new Hold(p[0], p[1], LocalDate.parse(p[2], DF));
+            h.ready = Boolean.parseBoolean(p[3]);
+            return h;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Simple escaping/unescaping for commas in text fields (very small CSV helper)
+    public static String escape(String s) {
+        if (s == null) return "";
+        return s.replace(",", ";;"); // lightweight escape
+    }
+
+    public static String unescape(String s) { return s == null ? "" : s.replace(";;", ","); }
+
+    // split but preserve empty fields; limit specifies expected columns
+    public static String[] split(String line, int limit) {
+        String[] parts = line.split(",", -1);
+        // if more parts than limit, join extras into last column
+        if (parts.length <= limit) return parts;
+        String[] out = new String[limit];
+        System.arraycopy(parts, 0, out, 0, limit - 1);
+        // join remaining parts into last
+        StringBuilder sb = new StringBuilder(parts[limit - 1]);
+        for (int i = limit; i < parts.length; i++) {
+            sb.append(",").append(parts[i]);
+        }
+        out[limit - 1] = sb.toString();
+        return out;
+    }
+}
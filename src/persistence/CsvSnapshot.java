@@ -0,0 +1,95 @@
+package persistence;
+
+import model.Book;
+import model.Borrower;
+import model.Hold;
+import model.Transaction;
+import service.BookInventory;
+import service.BorrowerRegistry;
+import service.LendingTracker;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The CSV files (see {@link CsvFormat}): imported on first start when there is no binary
+ * snapshot yet, and written on export for interchange with other tools.
+ * The files themselves are plain rows; the last journal record they include is kept next to
+ * them in {@value #LSN_FILE} (older exports carried it as a leading {@code #lsn=N} line, which
+ * is still read). Every file is replaced atomically (temp file, fsync, rename) when rewritten.
+ */
+public class CsvSnapshot {
+    public static final String BOOKS_FILE = "books.txt";
+    public static final String BORROWERS_FILE = "borrowers.txt";
+    public static final String TRANSACTIONS_FILE = "transactions.txt";
+    public static final String HOLDS_FILE = "holds.txt";
+    public static final String LSN_FILE = "export.lsn";
+
+    private final File dir;
+    // last journal record reflected in each file, as read by load()
+    public long booksLsn, borrowersLsn, transactionsLsn;
+
+    public CsvSnapshot(File dir) {
+        this.dir = dir;
+    }
+
+    /** Bulk-loads the files into the services and returns per-file load statistics; holds.txt is optional. */
+    public List<LoadStats> load(BookInventory inventory, BorrowerRegistry registry, LendingTracker lending) throws IOException {
+        BulkLoader.Result<Book> books = BulkLoader.load(new File(dir, BOOKS_FILE), BulkLoader.BOOK);
+        inventory.bulkLoad(books.rows);
+        BulkLoader.Result<Borrower> borrowers = BulkLoader.load(new File(dir, BORROWERS_FILE), BulkLoader.BORROWER);
+        registry.bulkLoad(borrowers.rows);
+        BulkLoader.Result<Transaction> transactions = BulkLoader.load(new File(dir, TRANSACTIONS_FILE), BulkLoader.TRANSACTION);
+        lending.bulkLoad(transactions.rows);
+        BulkLoader.Result<Hold> holds = BulkLoader.load(new File(dir, HOLDS_FILE), BulkLoader.HOLD);
+        lending.bulkLoadHolds(holds.rows);
+        long saved = readLsn();
+        booksLsn = Math.max(saved, books.lsn);
+        borrowersLsn = Math.max(saved, borrowers.lsn);
+        // holds are journaled with the loans and always saved with them
+        transactionsLsn = Math.max(saved, transactions.lsn);
+        return List.of(books.stats, borrowers.stats, transactions.stats, holds.stats);
+    }
+
+    public void save(long lsn, Iterable<Book> books, Iterable<Borrower> borrowers, Iterable<Transaction> transactions,
+                     Iterable<Hold> holds) throws IOException {
+        // no LSN file while the rows are being replaced: an interrupted export is never mistaken for a complete one
+        Files.deleteIfExists(new File(dir, LSN_FILE).toPath());
+        write(BOOKS_FILE, books, CsvFormat::formatBook);
+        write(BORROWERS_FILE, borrowers, CsvFormat::formatBorrower);
+        write(TRANSACTIONS_FILE, transactions, CsvFormat::formatTransaction);
+        write(HOLDS_FILE, holds, CsvFormat::formatHold);
+        write(LSN_FILE, List.of(lsn), String::valueOf);
+    }
+
+    // 0 when the files came from elsewhere: then the whole journal is replayed over them
+    private long readLsn() throws IOException {
+        File f = new File(dir, LSN_FILE);
+        if (!f.exists()) return 0;
+        String text = Files.readString(f.toPath(), StandardCharsets.UTF_8).trim();
+        try {
+            return text.isEmpty() ? 0 : Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad " + LSN_FILE + ": " + text);
+        }
+    }
+
+    private <T> void write(String name, Iterable<T> items, Function<T, String> format) throws IOException {
+        File target = new File(dir, name);
+        File tmp = new File(dir, name + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             BufferedWriter w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (T item : items) {
+                w.write(format.apply(item));
+                w.newLine();
+            }
+            w.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
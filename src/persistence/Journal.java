@@ -0,0 +1,268 @@
+package persistence;
+
+import metrics.Histogram;
+import metrics.Metrics;
+import metrics.Timer;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only redo log. Every record gets a log sequence number (LSN) and is written as one
+ * line {@code lsn,record}. A single writer thread drains everything appended so far, writes it
+ * in one go and fsyncs once (group commit), so the fsync cost is shared by every record in the
+ * batch. {@link #sync()} blocks until all records appended before the call are durable.
+ */
+public class Journal implements Closeable {
+    private static final Timer FLUSH = Metrics.timer("journal.flush");
+    private static final Timer SYNC = Metrics.timer("journal.syncWait");
+    private static final Histogram BATCH = Metrics.histogram("journal.recordsPerFlush");
+
+    /** One replayed record: its LSN and the text after the LSN column. */
+    public static class Entry {
+        public final long lsn;
+        public final String record;
+
+        Entry(long lsn, String record) {
+            this.lsn = lsn;
+            this.record = record;
+        }
+    }
+
+    private final File file;
+    // replaced when truncation rotates the log; guarded by ioLock
+    private FileChannel channel;
+    private final long maxDelayNanos;
+    private final int maxBatch;
+    private final Thread writer;
+    private final Object ioLock = new Object();
+
+    // guarded by this
+    private List<String> pending = new ArrayList<>();
+    private long lastLsn, durableLsn;
+    private int syncWaiters;
+    private boolean closed;
+    private IOException failure;
+
+    public Journal(File file, long lastLsn, int maxDelayMillis, int maxBatch) throws IOException {
+        this.file = file;
+        this.channel = openForAppend(file);
+        this.lastLsn = this.durableLsn = lastLsn;
+        this.maxDelayNanos = maxDelayMillis * 1_000_000L;
+        this.maxBatch = maxBatch;
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Queues a record for the next group commit and returns its LSN; does not wait for the fsync. */
+    public synchronized long append(String record) {
+        if (closed) throw new IllegalStateException("journal is closed");
+        long lsn = ++lastLsn;
+        pending.add(lsn + "," + record + "\n");
+        if (pending.size() == 1 || pending.size() >= maxBatch) notifyAll();
+        return lsn;
+    }
+
+    public synchronized long lastLsn() {
+        return lastLsn;
+    }
+
+    /** Waits until every record appended so far has been written and fsynced. */
+    public synchronized void sync() throws IOException {
+        long t0 = SYNC.start();
+        long target = lastLsn;
+        syncWaiters++;
+        notifyAll();
+        try {
+            while (durableLsn < target && failure == null) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for journal sync");
+        } finally {
+            syncWaiters--;
+        }
+        if (failure != null) throw failure;
+        SYNC.stop(t0);
+    }
+
+    /**
+     * Drops the records a snapshot covers (LSN up to {@code snapshotLsn}). If newer records have
+     * been appended since (the snapshot was taken in the background), the log is rotated: appends
+     * move on to a fresh file at once, and the previous one is cut down to its uncovered tail
+     * afterwards, without holding up appenders. Otherwise the log is simply emptied.
+     */
+    public void truncateUpTo(long snapshotLsn) throws IOException {
+        sync();
+        File previous = previous(file);
+        // a tail kept by the last rotation is older than anything since; normally this snapshot covers it
+        if (previous.exists() && !dropUpTo(previous, snapshotLsn)) return;
+        synchronized (this) {
+            // holding both locks, no write is in progress, but the writer may already have taken a batch
+            // it has not written yet; that batch lands in the file after this returns. Its records were
+            // appended after the sync() above, so their LSNs are above snapshotLsn: truncating leaves
+            // them intact, and after a rotation they go to the new file, which recovery reads after the old
+            synchronized (ioLock) {
+                if (lastLsn == snapshotLsn) {
+                    channel.truncate(0);
+                    channel.force(true);
+                    return;
+                }
+                channel.close();
+                Files.move(file.toPath(), previous.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                channel = openForAppend(file);
+            }
+        }
+        dropUpTo(previous, snapshotLsn);
+    }
+
+    // the rotated-out log, read before the current one on recovery
+    private static File previous(File file) {
+        return new File(file.getPath() + ".1");
+    }
+
+    // rewrites {@code log} as its records newer than {@code lsn}; returns true if none were left and it was deleted
+    private static boolean dropUpTo(File log, long lsn) throws IOException {
+        byte[] data = Files.readAllBytes(log.toPath());
+        int keepFrom = data.length;
+        for (int start = 0, i = 0; i < data.length; i++) {
+            if (data[i] != '\n') continue;
+            if (lsnOf(data, start) > lsn) {
+                keepFrom = start;
+                break;
+            }
+            start = i + 1;
+        }
+        if (keepFrom == data.length) {
+            Files.delete(log.toPath());
+            return true;
+        }
+        if (keepFrom == 0) return false;
+        File tmp = new File(log.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data, keepFrom, data.length - keepFrom);
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return false;
+    }
+
+    private static FileChannel openForAppend(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // the LSN column of the line starting at {@code start}
+    private static long lsnOf(byte[] data, int start) {
+        long lsn = 0;
+        for (int i = start; i < data.length && data[i] != ','; i++) lsn = lsn * 10 + (data[i] - '0');
+        return lsn;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<String> batch;
+            long upTo;
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty() && !closed) wait();
+                    // hold the batch open briefly so concurrent appenders share one fsync
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    while (pending.size() < maxBatch && syncWaiters == 0 && !closed) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) break;
+                        wait(left / 1_000_000L, (int) (left % 1_000_000L));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending.isEmpty()) {
+                    if (closed) return;
+                    continue;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                upTo = lastLsn;
+            }
+            long t0 = FLUSH.start();
+            try {
+                StringBuilder sb = new StringBuilder();
+                for (String line : batch) sb.append(line);
+                ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                synchronized (ioLock) {
+                    while (buf.hasRemaining()) channel.write(buf);
+                    channel.force(false);
+                }
+                FLUSH.stop(t0);
+                BATCH.record(batch.size());
+                synchronized (this) {
+                    durableLsn = upTo;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads every complete record in {@code file}, after those of a log it was rotated from. A torn
+     * last line (crash mid-write) is cut off so the file can be appended to again.
+     */
+    public static List<Entry> recover(File file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        read(previous(file), entries);
+        read(file, entries);
+        return entries;
+    }
+
+    private static void read(File file, List<Entry> entries) throws IOException {
+        if (!file.exists()) return;
+        byte[] data = Files.readAllBytes(file.toPath());
+        int start = 0, validEnd = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') continue;
+            String line = new String(data, start, i - start, StandardCharsets.UTF_8);
+            int comma = line.indexOf(',');
+            long lsn;
+            try {
+                lsn = comma < 0 ? -1 : Long.parseLong(line.substring(0, comma));
+            } catch (NumberFormatException e) {
+                lsn = -1;
+            }
+            if (lsn < 0) break;
+            entries.add(new Entry(lsn, line.substring(comma + 1)));
+            start = i + 1;
+            validEnd = start;
+        }
+        if (validEnd < data.length) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                ch.truncate(validEnd);
+            }
+        }
+    }
+}
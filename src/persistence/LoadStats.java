@@ -0,0 +1,26 @@
+package persistence;
+
+/** Row count, malformed-row count and elapsed time for loading one file. */
+public class LoadStats {
+    public final String file;
+    public final long rows;
+    public final long malformed;
+    public final long nanos;
+
+    public LoadStats(String file, long rows, long malformed, long nanos) {
+        this.file = file;
+        this.rows = rows;
+        this.malformed = malformed;
+        this.nanos = nanos;
+    }
+
+    public long rowsPerSecond() {
+        return nanos == 0 ? rows : (long) (rows * 1e9 / nanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d rows in %d ms (%d rows/s), %d malformed",
+                file, rows, nanos / 1_000_000, rowsPerSecond(), malformed);
+    }
+}
@@ -0,0 +1,523 @@
+package persistence;
+
+import metrics.Counter;
+import metrics.Metrics;
+import metrics.Timer;
+import model.Book;
+import model.Borrower;
+import model.Hold;
+import model.Transaction;
+import service.*;
+
+import java.io.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable storage for the library: a segmented snapshot ({@link SegmentedSnapshot}) plus a journal
+ * of every mutation since.
+ *
+ * Mutations are appended to the journal as they happen (group-committed by {@link Journal}),
+ * so saving costs as much as the changes made, not the size of the library. Each change is also
+ * recorded, in journal order, against the book, borrower or loan row it touched; compaction
+ * rewrites only the snapshot segments holding those and then drops the journal records they cover.
+ * The cut is taken under a short lock, so compaction can run on a background thread
+ * ({@link #startAutosave}) while desks keep working.
+ *
+ * On startup the snapshot is loaded (or, on first start, the legacy {@link BinarySnapshot} or the
+ * CSV files, which are then written out as segments) and the journal tail is replayed; records
+ * already contained in the snapshot are skipped by LSN. Only open loans are loaded from the
+ * segments; the rest of the history stays on disk and is paged in by reports and history lookups
+ * ({@code -Dlibrary.history.lazy=false} loads all of it).
+ *
+ * Journal records: B=book added, XB=book removed, C=copies changed, P=borrower added, F=fines changed,
+ * L=loan opened, R=loan returned, H=hold placed, XH=hold cancelled, D=overdue run up to an epoch day.
+ * Copies set aside for holds and holds ending in a loan are not journaled: replaying the returns,
+ * holds and loans in order reproduces them.
+ */
+public class PersistenceEngine implements LibraryListener, Closeable {
+    private static final Timer OPEN = Metrics.timer("persistence.open");
+    private static final Timer CHECKPOINT = Metrics.timer("persistence.checkpoint");
+    private static final Timer COMPACT = Metrics.timer("persistence.compact");
+    private static final Timer EXPORT = Metrics.timer("persistence.exportCsv");
+    private static final Counter SAVE_FAILURES = Metrics.counter("persistence.autosaveFailures");
+
+    public static final String JOURNAL_FILE = "journal.log";
+    static final boolean LAZY_HISTORY = Boolean.parseBoolean(System.getProperty("library.history.lazy", "true"));
+
+    private final File dir;
+    private final BookInventory inventory;
+    private final BorrowerRegistry registry;
+    private final LendingTracker lending;
+    private final OverdueManager overdue;
+    private final ReportAggregates reports;
+    private final int compactThreshold;
+    private final SegmentedSnapshot snapshot;
+    private Journal journal;
+    // set while open() replays the journal into the services
+    private boolean replaying;
+    private volatile long snapshotLsn;
+    // last journal record reflected in the loaded books / borrowers / transactions
+    private long booksLsn, borrowersLsn, transactionsLsn;
+    private List<LoadStats> loadStats = new ArrayList<>();
+    // one compaction at a time
+    private final Object compactLock = new Object();
+    private final Object autosaveLock = new Object();
+    private ScheduledExecutorService autosave;
+
+    // guarded by this: changes since the last compaction, and what is needed to place them
+    private SegmentedSnapshot.Delta delta;
+    private int loanRows;
+    // snapshot rows of open loans per (isbn, borrowerId), oldest first, as returnBook closes them
+    private final Map<String, ArrayDeque<Integer>> openRows = new HashMap<>();
+    // the holds as the snapshot should store them: per ISBN, by borrower in placement order
+    private final Map<String, LinkedHashMap<String, Hold>> holds = new HashMap<>();
+
+    public PersistenceEngine(File dir, Library library) {
+        this(dir, library, 10_000);
+    }
+
+    public PersistenceEngine(File dir, Library library, int compactThreshold) {
+        this.dir = dir;
+        this.inventory = library.inventory;
+        this.registry = library.registry;
+        this.lending = library.lending;
+        this.overdue = library.overdue;
+        this.reports = library.reports;
+        this.compactThreshold = compactThreshold;
+        this.snapshot = new SegmentedSnapshot(dir);
+    }
+
+    /** Loads the snapshot, replays the journal tail and starts journaling new mutations. Returns the replayed record count. */
+    public int open() throws IOException {
+        long t0 = OPEN.start();
+        // fines were journaled as they were charged; replaying returns/runs must not charge again
+        overdue.setCharging(false);
+        File legacy = new File(dir, BinarySnapshot.FILE);
+        boolean segmented = snapshot.exists();
+        int replayed = 0;
+        try {
+            if (segmented || legacy.exists()) {
+                long start = System.nanoTime();
+                BinarySnapshot.Contents c = segmented ? snapshot.read(LAZY_HISTORY) : BinarySnapshot.read(legacy);
+                overdue.restoreLastRun(c.lastOverdueRun);
+                inventory.bulkLoad(c.books);
+                registry.bulkLoad(c.borrowers);
+                if (c.archive != null) {
+                    lending.attachArchive(c.archive, c.transactions, c.openRows);
+                    reports.deferArchive(lending.getHistory());
+                } else {
+                    lending.bulkLoad(c.transactions);
+                }
+                lending.bulkLoadHolds(c.holds);
+                booksLsn = borrowersLsn = transactionsLsn = c.lsn;
+                long rows = c.books.size() + c.borrowers.size() + c.transactions.size() + c.holds.size();
+                loadStats = List.of(new LoadStats(segmented ? SegmentedSnapshot.DIR : BinarySnapshot.FILE, rows, 0, System.nanoTime() - start));
+            } else {
+                CsvSnapshot csv = new CsvSnapshot(dir);
+                loadStats = csv.load(inventory, registry, lending);
+                booksLsn = csv.booksLsn;
+                borrowersLsn = csv.borrowersLsn;
+                transactionsLsn = csv.transactionsLsn;
+            }
+            startTracking();
+            File log = new File(dir, JOURNAL_FILE);
+            long lastLsn = Math.max(booksLsn, Math.max(borrowersLsn, transactionsLsn));
+            snapshotLsn = lastLsn;
+            // listening already: replayed changes are tracked for the next compaction, not journaled again
+            synchronized (this) {
+                replaying = true;
+            }
+            try {
+                for (Journal.Entry e : Journal.recover(log)) {
+                    if (replay(e)) replayed++;
+                    lastLsn = Math.max(lastLsn, e.lsn);
+                }
+            } finally {
+                synchronized (this) {
+                    replaying = false;
+                }
+            }
+            journal = new Journal(log, lastLsn, 5, 1024);
+        } finally {
+            // also after a failed load, so a caller that carries on does not lose fine accrual
+            overdue.setCharging(true);
+        }
+        if (!segmented) {
+            // first start, or an older format: lay out the segments once, then work incrementally
+            compactAll();
+            legacy.delete();
+        }
+        OPEN.stop(t0);
+        return replayed;
+    }
+
+    // starts tracking changes against the state just loaded, whose loan rows are the history's rows
+    private void startTracking() {
+        List<Hold> loadedHolds = lending.getAllHolds();
+        synchronized (this) {
+            loanRows = lending.getHistory().size();
+            delta = new SegmentedSnapshot.Delta(loanRows);
+            // nothing is borrowed or returned yet, so the open loans are exactly the open rows
+            Map<String, List<Integer>> rows = new HashMap<>();
+            lending.forEachOpenLoan((t, row) -> rows.computeIfAbsent(loanKey(t.isbn, t.borrowerId), k -> new ArrayList<>(1)).add(row));
+            rows.forEach((key, list) -> {
+                Collections.sort(list);
+                openRows.put(key, new ArrayDeque<>(list));
+            });
+            for (Hold h : loadedHolds) trackHold(h).ready = h.ready;
+            // copies set aside while the holds were loaded are not journaled; save them with the next compaction
+            delta.holds = true;
+        }
+        inventory.addListener(this);
+        registry.addListener(this);
+        lending.addListener(this);
+        overdue.addListener(this);
+    }
+
+    /** Rows/second and malformed-line counts of the snapshot files read by {@link #open()}. */
+    public List<LoadStats> getLoadStats() {
+        return loadStats;
+    }
+
+    /** Makes every change so far durable; compacts when the journal has grown past the threshold. */
+    public void checkpoint() throws IOException {
+        requireOpen();
+        long t0 = CHECKPOINT.start();
+        journal.sync();
+        if (journal.lastLsn() - snapshotLsn >= compactThreshold) compact();
+        CHECKPOINT.stop(t0);
+    }
+
+    /**
+     * Writes the snapshot segments touched since the last compaction and drops the journal records
+     * they now cover. Mutations are only held up while the changes are handed over, not while they
+     * are written. Returns the number of segments rewritten.
+     */
+    public int compact() throws IOException {
+        requireOpen();
+        synchronized (compactLock) {
+            long t0 = COMPACT.start();
+            SegmentedSnapshot.Delta changes;
+            List<Hold> heldNow;
+            long lsn;
+            synchronized (this) {
+                lsn = journal.lastLsn();
+                changes = delta;
+                delta = new SegmentedSnapshot.Delta(loanRows);
+                heldNow = changes.holds ? trackedHolds() : List.of();
+            }
+            if (changes.isEmpty()) {
+                COMPACT.stop(t0);
+                return 0;
+            }
+            int written;
+            try {
+                written = snapshot.write(lsn, changes, heldNow);
+            } catch (IOException | RuntimeException ex) {
+                // keep the changes for the next attempt; the previous manifest is still intact
+                synchronized (this) {
+                    changes.addAll(delta);
+                    delta = changes;
+                }
+                throw ex;
+            }
+            snapshotLsn = lsn;
+            journal.truncateUpTo(lsn);
+            COMPACT.stop(t0);
+            return written;
+        }
+    }
+
+    // rewrites every segment from the in-memory state; only while opening, before anyone else mutates
+    private void compactAll() throws IOException {
+        synchronized (compactLock) {
+            long t0 = COMPACT.start();
+            long lsn = journal.lastLsn();
+            snapshot.writeAll(lsn, overdue.getLastRun(), inventory.getAllBooks(), registry.getAllBorrowers(),
+                    lending.getAllTransactions(), lending.getAllHolds());
+            synchronized (this) {
+                delta = new SegmentedSnapshot.Delta(loanRows);
+            }
+            snapshotLsn = lsn;
+            journal.truncateUpTo(lsn);
+            COMPACT.stop(t0);
+        }
+    }
+
+    /**
+     * Compacts every {@code period} on a background daemon thread, so saving never blocks a desk
+     * and a crash loses at most the journal replay since the last run, not the changes themselves.
+     */
+    public void startAutosave(long period, TimeUnit unit) {
+        synchronized (autosaveLock) {
+            stopAutosave();
+            autosave = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread th = new Thread(r, "library-autosave");
+                th.setDaemon(true);
+                return th;
+            });
+            autosave.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (IOException ex) {
+                    SAVE_FAILURES.increment();
+                    System.err.println("autosave failed: " + ex);
+                }
+            }, period, period, unit);
+        }
+    }
+
+    /** Stops autosaving, letting a compaction in progress finish (interrupting it would close the journal's channel). */
+    public void stopAutosave() {
+        synchronized (autosaveLock) {
+            if (autosave == null) return;
+            autosave.shutdown();
+            try {
+                autosave.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            autosave = null;
+        }
+    }
+
+    /** Writes the current state as books.txt / borrowers.txt / transactions.txt (plus holds.txt and export.lsn) in {@code target}. */
+    public void exportCsv(File target) throws IOException {
+        requireOpen();
+        long t0 = EXPORT.start();
+        journal.sync();
+        if (!target.isDirectory() && !target.mkdirs()) throw new IOException("cannot create " + target);
+        new CsvSnapshot(target).save(journal.lastLsn(), inventory.getAllBooks(), registry.getAllBorrowers(), lending.getAllTransactions(),
+                lending.getAllHolds());
+        EXPORT.stop(t0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopAutosave();
+        // never opened (or open failed): nothing was journaled, so there is nothing to save
+        if (journal == null) return;
+        compact();
+        journal.close();
+    }
+
+    private void requireOpen() {
+        if (journal == null) throw new IllegalStateException("persistence engine is not open");
+    }
+
+    // ---------- journaling and change tracking ----------
+    // each change is journaled and tracked under this engine's lock, so the tracked changes are
+    // exactly those up to the journal's last LSN; nothing is journaled while replaying
+
+    private void append(String record) {
+        if (replaying) return;
+        // a change with no journal to record it would be lost on restart; refuse it rather than drop it
+        if (journal == null) throw new IllegalStateException("journal is not open");
+        journal.append(record);
+    }
+
+    @Override
+    public synchronized void bookAdded(Book book) {
+        append("B," + CsvFormat.formatBook(book));
+        delta.books.put(book.isbn, book);
+    }
+
+    @Override
+    public synchronized void bookRemoved(Book book) {
+        append("XB," + book.isbn);
+        delta.books.put(book.isbn, null);
+    }
+
+    @Override
+    public synchronized void copiesChanged(Book book) {
+        append("C," + book.isbn + "," + book.copies);
+        delta.books.put(book.isbn, book);
+    }
+
+    @Override
+    public synchronized void borrowerAdded(Borrower borrower) {
+        append("P," + CsvFormat.formatBorrower(borrower));
+        delta.borrowers.put(borrower.id, borrower);
+    }
+
+    // the borrower is saved as it is when written, possibly with later fines; replaying F sets them again
+    @Override
+    public synchronized void finesChanged(Borrower borrower) {
+        append("F," + borrower.id + "," + borrower.fines);
+        delta.borrowers.put(borrower.id, borrower);
+    }
+
+    @Override
+    public synchronized void loanOpened(Transaction t) {
+        append("L," + CsvFormat.formatTransaction(t));
+        int row = loanRows++;
+        delta.loans.add(t);
+        if (t.returned) delta.returned.set(row);
+        else openRows.computeIfAbsent(loanKey(t.isbn, t.borrowerId), k -> new ArrayDeque<>(1)).addLast(row);
+        // a loan fulfils the borrower's hold on the ISBN
+        if (untrackHold(t.isbn, t.borrowerId) != null) delta.holds = true;
+    }
+
+    @Override
+    public synchronized void loanClosed(Transaction t) {
+        append("R," + t.isbn + "," + t.borrowerId);
+        String key = loanKey(t.isbn, t.borrowerId);
+        ArrayDeque<Integer> rows = openRows.get(key);
+        if (rows == null) return;
+        delta.returned.set(rows.pollFirst());
+        if (rows.isEmpty()) openRows.remove(key);
+    }
+
+    @Override
+    public synchronized void holdPlaced(Hold hold) {
+        append("H," + hold.isbn + "," + hold.borrowerId + "," + hold.placedDate.toEpochDay());
+        trackHold(hold);
+        delta.holds = true;
+    }
+
+    @Override
+    public synchronized void holdCancelled(Hold hold) {
+        append("XH," + hold.isbn + "," + hold.borrowerId);
+        untrackHold(hold.isbn, hold.borrowerId);
+        delta.holds = true;
+    }
+
+    @Override
+    public synchronized void holdReady(Hold hold) {
+        LinkedHashMap<String, Hold> queue = holds.get(hold.isbn);
+        Hold tracked = queue == null ? null : queue.get(hold.borrowerId);
+        if (tracked == null) return;
+        tracked.ready = true;
+        delta.holds = true;
+    }
+
+    @Override
+    public synchronized void overdueRun(LocalDate day) {
+        append("D," + day.toEpochDay());
+        delta.overdueRun = true;
+        delta.lastOverdueRun = day;
+    }
+
+    // caller holds this engine's lock; tracks a copy, whose ready flag follows holdReady events
+    private Hold trackHold(Hold h) {
+        Hold copy = new Hold(h.isbn, h.borrowerId, h.placedDate);
+        holds.computeIfAbsent(h.isbn, k -> new LinkedHashMap<>()).put(h.borrowerId, copy);
+        return copy;
+    }
+
+    // caller holds this engine's lock
+    private Hold untrackHold(String isbn, String borrowerId) {
+        LinkedHashMap<String, Hold> queue = holds.get(isbn);
+        if (queue == null) return null;
+        Hold h = queue.remove(borrowerId);
+        if (queue.isEmpty()) holds.remove(isbn);
+        return h;
+    }
+
+    // caller holds this engine's lock: each ISBN's ready holds, then its waiting ones in queue order
+    private List<Hold> trackedHolds() {
+        List<Hold> out = new ArrayList<>();
+        for (LinkedHashMap<String, Hold> queue : holds.values()) {
+            for (Hold h : queue.values()) {
+                if (h.ready) out.add(copyOf(h));
+            }
+            for (Hold h : queue.values()) {
+                if (!h.ready) out.add(copyOf(h));
+            }
+        }
+        return out;
+    }
+
+    private static Hold copyOf(Hold h) {
+        Hold copy = new Hold(h.isbn, h.borrowerId, h.placedDate);
+        copy.ready = h.ready;
+        return copy;
+    }
+
+    private static String loanKey(String isbn, String borrowerId) {
+        return isbn + '\u0000' + borrowerId;
+    }
+
+    // ---------- recovery ----------
+    private boolean replay(Journal.Entry e) {
+        int comma = e.record.indexOf(',');
+        if (comma < 0) return false;
+        String type = e.record.substring(0, comma);
+        String body = e.record.substring(comma + 1);
+        switch (type) {
+            case "B":
+                if (e.lsn <= booksLsn) return false;
+                Book book = CsvFormat.parseBook(body);
+                return book != null && inventory.addBook(book);
+            case "XB":
+                if (e.lsn <= booksLsn) return false;
+                return inventory.removeBook(body) != null;
+            case "C": {
+                if (e.lsn <= booksLsn) return false;
+                String[] p = body.split(",", -1);
+                try {
+                    return p.length >= 2 && inventory.setCopies(p[0], Integer.parseInt(p[1]));
+                } catch (IllegalArgumentException ex) {
+                    return false;
+                }
+            }
+            case "P":
+                if (e.lsn <= borrowersLsn) return false;
+                Borrower br = CsvFormat.parseBorrower(body);
+                if (br == null) return false;
+                registry.addBorrower(br);
+                return true;
+            case "F": {
+                if (e.lsn <= borrowersLsn) return false;
+                String[] p = body.split(",", -1);
+                Borrower target = registry.getBorrower(p[0]);
+                if (target == null || p.length < 2) return false;
+                try {
+                    registry.setFines(target, Double.parseDouble(p[1]));
+                    return true;
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            }
+            case "L":
+                if (e.lsn <= transactionsLsn) return false;
+                Transaction t = CsvFormat.parseTransaction(body);
+                if (t == null) return false;
+                lending.restore(t);
+                return true;
+            case "R": {
+                if (e.lsn <= transactionsLsn) return false;
+                String[] p = body.split(",", -1);
+                return p.length >= 2 && lending.returnBook(p[0], p[1]) != null;
+            }
+            case "H": {
+                if (e.lsn <= transactionsLsn) return false;
+                String[] p = body.split(",", -1);
+                try {
+                    return p.length >= 3 && lending.placeHold(p[0], p[1], LocalDate.ofEpochDay(Long.parseLong(p[2]))) != null;
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            }
+            case "XH": {
+                if (e.lsn <= transactionsLsn) return false;
+                String[] p = body.split(",", -1);
+                return p.length >= 2 && lending.cancelHold(p[0], p[1]);
+            }
+            case "D":
+                if (e.lsn <= transactionsLsn) return false;
+                try {
+                    overdue.run(LocalDate.ofEpochDay(Long.parseLong(body)));
+                    return true;
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            default:
+                return false;
+        }
+    }
+}
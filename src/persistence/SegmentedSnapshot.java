@@ -0,0 +1,674 @@
+package persistence;
+
+import metrics.Counter;
+import metrics.Metrics;
+import model.Book;
+import model.Borrower;
+import model.Hold;
+import model.Transaction;
+import service.LoanHistory;
+import util.BloomFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * The library's snapshot as a directory ({@code snapshot/}) of independently replaceable segments,
+ * so saving rewrites only the segments that changed:
+ * <ul>
+ *  <li>books and borrowers are hashed by ISBN / id into buckets, one file each; the buckets are
+ *      laid out again (all rewritten) when growth makes one several times its target size;</li>
+ *  <li>loan history is cut into runs of {@value #LOAN_ROWS_PER_SEGMENT} rows, so new loans only
+ *      touch the last run and a return only the run holding its row;</li>
+ *  <li>holds are one small segment.</li>
+ * </ul>
+ * A segment is never modified in place: a changed one is merged with its {@link Delta} into a file
+ * with a new generation number, and a {@code MANIFEST} naming the current generation of every
+ * segment is then replaced atomically (temp file, fsync, rename). A crash before the rename leaves
+ * the previous manifest and its files intact; unreferenced files are deleted on the next open.
+ *
+ * Each loan segment has a sparse index beside it ({@code .idx}, same generation): its borrow-day
+ * range, Bloom filters over its ISBNs and borrower ids, and its open loans. Reading with
+ * {@code lazyHistory} loads only the indexes, so startup costs the open loans rather than the whole
+ * history; the segments become a {@link LoanHistory.Archive} read a page at a time on demand.
+ *
+ * Segment files use {@link BinarySnapshot}'s sections and crc32 framing. Manifest layout:
+ * <pre>
+ *  int magic "ECLM", short version, long lsn, long last overdue run epoch day (Long.MIN_VALUE = never),
+ *  varint next generation, varint loan rows,
+ *  varint book buckets, n x varint generation, varint borrower buckets, n x varint generation,
+ *  varint loan segments, n x varint generation, varint holds generation   (generation 0 = empty)
+ * </pre>
+ */
+public class SegmentedSnapshot {
+    public static final String DIR = "snapshot";
+    static final String MANIFEST = "MANIFEST";
+    static final int LOAN_ROWS_PER_SEGMENT = 16_384;
+    // roughly this many books or borrowers per bucket when the buckets are laid out
+    private static final int BUCKET_TARGET = 4_096;
+    // a bucket merged past this size has the whole kind laid out again into more buckets
+    private static final int BUCKET_SPLIT = 4 * BUCKET_TARGET;
+    private static final int MANIFEST_MAGIC = 0x45434C4D; // "ECLM"
+    private static final int SEGMENT_MAGIC = 0x45434C47; // "ECLG"
+    private static final int INDEX_MAGIC = 0x45434C49; // "ECLI"
+    private static final short VERSION = 1;
+    private static final long NO_RUN = Long.MIN_VALUE;
+
+    private static final Counter SEGMENTS_WRITTEN = Metrics.counter("persistence.segmentsWritten");
+
+    /**
+     * What changed since the last write, captured in journal order: books and borrowers by key
+     * (null = removed), loans appended from row {@link #firstRow} on, rows returned, whether the
+     * holds changed and the latest overdue run.
+     */
+    static final class Delta {
+        final Map<String, Book> books = new HashMap<>();
+        final Map<String, Borrower> borrowers = new HashMap<>();
+        final int firstRow;
+        final List<Transaction> loans = new ArrayList<>();
+        final BitSet returned = new BitSet();
+        boolean holds;
+        boolean overdueRun;
+        LocalDate lastOverdueRun;
+
+        Delta(int firstRow) {
+            this.firstRow = firstRow;
+        }
+
+        boolean isEmpty() {
+            return books.isEmpty() && borrowers.isEmpty() && loans.isEmpty() && returned.isEmpty() && !holds && !overdueRun;
+        }
+
+        /** Folds a newer delta into this one (after a failed write, so nothing captured is lost). */
+        void addAll(Delta newer) {
+            books.putAll(newer.books);
+            borrowers.putAll(newer.borrowers);
+            loans.addAll(newer.loans);
+            returned.or(newer.returned);
+            holds |= newer.holds;
+            if (newer.overdueRun) {
+                overdueRun = true;
+                lastOverdueRun = newer.lastOverdueRun;
+            }
+        }
+    }
+
+    /**
+     * A loan segment's sparse index. Layout: short version, varint rows, int min and max borrow
+     * epoch day, varint n + n x long ISBN Bloom words, the same for borrower ids, varint open loans,
+     * each varint row offset, string isbn, string borrower id, int borrow day, varint zigzag(due - borrow).
+     */
+    static final class LoanIndex {
+        final int rows, minDay, maxDay;
+        final BloomFilter isbns, borrowers;
+        final int[] openOffsets;
+        final List<Transaction> open;
+
+        private LoanIndex(int rows, int minDay, int maxDay, BloomFilter isbns, BloomFilter borrowers, int[] openOffsets,
+                          List<Transaction> open) {
+            this.rows = rows;
+            this.minDay = minDay;
+            this.maxDay = maxDay;
+            this.isbns = isbns;
+            this.borrowers = borrowers;
+            this.openOffsets = openOffsets;
+            this.open = open;
+        }
+
+        static LoanIndex of(List<Transaction> loans) {
+            Set<String> isbnKeys = new HashSet<>(), borrowerKeys = new HashSet<>();
+            int minDay = Integer.MAX_VALUE, maxDay = Integer.MIN_VALUE, nOpen = 0;
+            for (Transaction t : loans) {
+                isbnKeys.add(t.isbn);
+                borrowerKeys.add(t.borrowerId);
+                int day = (int) t.borrowDate.toEpochDay();
+                minDay = Math.min(minDay, day);
+                maxDay = Math.max(maxDay, day);
+                if (!t.returned) nOpen++;
+            }
+            BloomFilter isbns = new BloomFilter(isbnKeys.size()), borrowers = new BloomFilter(borrowerKeys.size());
+            isbnKeys.forEach(isbns::add);
+            borrowerKeys.forEach(borrowers::add);
+            int[] openOffsets = new int[nOpen];
+            List<Transaction> open = new ArrayList<>(nOpen);
+            for (int i = 0; i < loans.size(); i++) {
+                Transaction t = loans.get(i);
+                if (t.returned) continue;
+                openOffsets[open.size()] = i;
+                open.add(new Transaction(t.isbn, t.borrowerId, t.borrowDate, t.returnDate));
+            }
+            return new LoanIndex(loans.size(), minDay, maxDay, isbns, borrowers, openOffsets, open);
+        }
+
+        void write(BinarySnapshot.Output out) throws IOException {
+            out.writeShort(VERSION);
+            out.writeVarint(rows);
+            out.writeInt(minDay);
+            out.writeInt(maxDay);
+            writeWords(out, isbns.words());
+            writeWords(out, borrowers.words());
+            out.writeVarint(open.size());
+            for (int i = 0; i < openOffsets.length; i++) {
+                Transaction t = open.get(i);
+                out.writeVarint(openOffsets[i]);
+                out.writeString(t.isbn);
+                out.writeString(t.borrowerId);
+                long borrowDay = t.borrowDate.toEpochDay();
+                out.writeInt((int) borrowDay);
+                out.writeVarint(BinarySnapshot.zigzag((int) (t.returnDate.toEpochDay() - borrowDay)));
+            }
+        }
+
+        static LoanIndex read(File file) throws IOException {
+            ByteBuffer buf = BinarySnapshot.readFile(file, INDEX_MAGIC);
+            short version = buf.getShort();
+            if (version > VERSION) throw new IOException(file + ": unsupported index version " + version);
+            int rows = BinarySnapshot.readVarint(buf);
+            int minDay = buf.getInt(), maxDay = buf.getInt();
+            BloomFilter isbns = BloomFilter.of(readWords(buf)), borrowers = BloomFilter.of(readWords(buf));
+            int[] openOffsets = new int[BinarySnapshot.readVarint(buf)];
+            List<Transaction> open = new ArrayList<>(openOffsets.length);
+            for (int i = 0; i < openOffsets.length; i++) {
+                openOffsets[i] = BinarySnapshot.readVarint(buf);
+                String isbn = BinarySnapshot.readString(buf), borrowerId = BinarySnapshot.readString(buf);
+                long borrowDay = buf.getInt();
+                long dueDay = borrowDay + BinarySnapshot.unzigzag(BinarySnapshot.readVarint(buf));
+                open.add(new Transaction(isbn, borrowerId, LocalDate.ofEpochDay(borrowDay), LocalDate.ofEpochDay(dueDay)));
+            }
+            return new LoanIndex(rows, minDay, maxDay, isbns, borrowers, openOffsets, open);
+        }
+
+        private static void writeWords(BinarySnapshot.Output out, long[] words) throws IOException {
+            out.writeVarint(words.length);
+            for (long w : words) out.writeLong(w);
+        }
+
+        private static long[] readWords(ByteBuffer buf) {
+            long[] words = new long[BinarySnapshot.readVarint(buf)];
+            for (int i = 0; i < words.length; i++) words[i] = buf.getLong();
+            return words;
+        }
+    }
+
+    /** The loan segments as history pages, one per segment, located through their indexes. */
+    private final class LoanArchive implements LoanHistory.Archive {
+        private final LoanIndex[] indexes;
+        private final int rows;
+
+        LoanArchive(LoanIndex[] indexes, int rows) {
+            this.indexes = indexes;
+            this.rows = rows;
+        }
+
+        @Override
+        public int rows() {
+            return rows;
+        }
+
+        @Override
+        public int pageCount() {
+            return indexes.length;
+        }
+
+        @Override
+        public int pageStart(int page) {
+            return page * LOAN_ROWS_PER_SEGMENT;
+        }
+
+        @Override
+        public boolean mayContainIsbn(int page, String isbn) {
+            return indexes[page].isbns.mightContain(isbn);
+        }
+
+        @Override
+        public boolean mayContainBorrower(int page, String borrowerId) {
+            return indexes[page].borrowers.mightContain(borrowerId);
+        }
+
+        @Override
+        public int minBorrowDay(int page) {
+            return indexes[page].minDay;
+        }
+
+        @Override
+        public int maxBorrowDay(int page) {
+            return indexes[page].maxDay;
+        }
+
+        @Override
+        public List<Transaction> read(int page) {
+            try {
+                return readArchived(page);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private final File dir;
+    // the current manifest
+    private long lsn;
+    private LocalDate lastOverdueRun;
+    private int nextGeneration = 1;
+    private int loanRows;
+    private int[] bookGenerations = new int[0], borrowerGenerations = new int[0];
+    private int[] loanGenerations = new int[0];
+    private int holdsGeneration;
+    // archived loan segments being read, by file name, and replaced ones to delete once their last reader is done
+    private final Map<String, Integer> reading = new HashMap<>();
+    private final Set<String> obsolete = new HashSet<>();
+
+    /** The snapshot kept in {@code baseDir}/{@value #DIR}. */
+    public SegmentedSnapshot(File baseDir) {
+        this.dir = new File(baseDir, DIR);
+    }
+
+    public boolean exists() {
+        return new File(dir, MANIFEST).isFile();
+    }
+
+    public long lsn() {
+        return lsn;
+    }
+
+    /** Rows of loan history the snapshot holds. */
+    public int loanRows() {
+        return loanRows;
+    }
+
+    /** Reads the manifest and every segment it names, then deletes files it does not name (left by a crashed write). */
+    public BinarySnapshot.Contents read() throws IOException {
+        return read(false);
+    }
+
+    /**
+     * As {@link #read()}, but with {@code lazyHistory} only the loan indexes are read: the contents'
+     * transactions are then just the open loans, at {@code openRows}, and the rest of the history is
+     * its {@code archive}. Indexes missing from an older snapshot are built and written here.
+     */
+    public BinarySnapshot.Contents read(boolean lazyHistory) throws IOException {
+        ByteBuffer m = BinarySnapshot.readFile(new File(dir, MANIFEST), MANIFEST_MAGIC);
+        short version = m.getShort();
+        if (version > VERSION) throw new IOException(dir + ": unsupported snapshot version " + version);
+        lsn = m.getLong();
+        long lastRun = m.getLong();
+        lastOverdueRun = lastRun == NO_RUN ? null : LocalDate.ofEpochDay(lastRun);
+        nextGeneration = BinarySnapshot.readVarint(m);
+        loanRows = BinarySnapshot.readVarint(m);
+        bookGenerations = readGenerations(m);
+        borrowerGenerations = readGenerations(m);
+        loanGenerations = readGenerations(m);
+        holdsGeneration = BinarySnapshot.readVarint(m);
+
+        List<Book> books = new ArrayList<>();
+        for (int b = 0; b < bookGenerations.length; b++) books.addAll(readBooks(b));
+        List<Borrower> borrowers = new ArrayList<>();
+        for (int b = 0; b < borrowerGenerations.length; b++) borrowers.addAll(readBorrowers(b));
+        List<Hold> holds = readHolds();
+        if (lazyHistory) {
+            LoanIndex[] indexes = new LoanIndex[loanGenerations.length];
+            int nOpen = 0;
+            for (int s = 0; s < indexes.length; s++) nOpen += (indexes[s] = readIndex(s)).open.size();
+            List<Transaction> open = new ArrayList<>(nOpen);
+            int[] openRows = new int[nOpen];
+            int rows = 0;
+            for (LoanIndex index : indexes) {
+                for (int i = 0; i < index.openOffsets.length; i++) openRows[open.size() + i] = rows + index.openOffsets[i];
+                open.addAll(index.open);
+                rows += index.rows;
+            }
+            if (rows != loanRows) throw new IOException(dir + ": expected " + loanRows + " loans, indexed " + rows);
+            deleteUnreferenced();
+            return new BinarySnapshot.Contents(lsn, lastOverdueRun, books, borrowers, open, holds, new LoanArchive(indexes, rows), openRows);
+        }
+        List<Transaction> transactions = new ArrayList<>(loanRows);
+        for (int s = 0; s < loanGenerations.length; s++) transactions.addAll(readLoans(s));
+        if (transactions.size() != loanRows) throw new IOException(dir + ": expected " + loanRows + " loans, found " + transactions.size());
+        deleteUnreferenced();
+        return new BinarySnapshot.Contents(lsn, lastOverdueRun, books, borrowers, transactions, holds);
+    }
+
+    /** Lays out and writes a complete snapshot (first save, or one taken from another format). */
+    public void writeAll(long lsn, LocalDate lastOverdueRun, Collection<Book> books, Collection<Borrower> borrowers,
+                         List<Transaction> transactions, Collection<Hold> holds) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        int generation = nextGeneration++;
+        int[] bookGens = layoutBooks(generation, books);
+        int[] borrowerGens = layoutBorrowers(generation, borrowers);
+        int[] loanGens = new int[(transactions.size() + LOAN_ROWS_PER_SEGMENT - 1) / LOAN_ROWS_PER_SEGMENT];
+        for (int s = 0; s < loanGens.length; s++) {
+            int from = s * LOAN_ROWS_PER_SEGMENT;
+            loanGens[s] = writeLoans(s, generation, transactions.subList(from, Math.min(transactions.size(), from + LOAN_ROWS_PER_SEGMENT)));
+        }
+        int holdsGen = writeHolds(generation, holds);
+        commit(lsn, lastOverdueRun, transactions.size(), bookGens, borrowerGens, loanGens, holdsGen);
+    }
+
+    /**
+     * Merges {@code delta} into the segments it touches and commits them as of {@code lsn}.
+     * {@code holds} is the complete hold list if {@code delta.holds}, else ignored. Returns the
+     * number of segments rewritten.
+     */
+    public int write(long lsn, Delta delta, List<Hold> holds) throws IOException {
+        if (delta.firstRow != loanRows) throw new IllegalStateException("delta starts at row " + delta.firstRow + ", snapshot has " + loanRows);
+        int generation = nextGeneration++;
+        int written = 0;
+
+        int[] bookGens = bookGenerations.clone();
+        Map<Integer, Map<String, Book>> booksByBucket = new TreeMap<>();
+        for (Map.Entry<String, Book> e : delta.books.entrySet()) {
+            booksByBucket.computeIfAbsent(bucket(e.getKey(), bookGens.length), k -> new HashMap<>()).put(e.getKey(), e.getValue());
+        }
+        Map<Integer, Collection<Book>> mergedBooks = new TreeMap<>();
+        for (Map.Entry<Integer, Map<String, Book>> e : booksByBucket.entrySet()) {
+            int b = e.getKey();
+            Map<String, Book> merged = new LinkedHashMap<>();
+            for (Book book : readBooks(b)) merged.put(book.isbn, book);
+            e.getValue().forEach((isbn, book) -> {
+                if (book == null) merged.remove(isbn);
+                else merged.put(isbn, book);
+            });
+            mergedBooks.put(b, merged.values());
+        }
+        if (outgrown(mergedBooks.values(), bookGens.length)) {
+            List<Book> all = new ArrayList<>();
+            for (int b = 0; b < bookGens.length; b++) all.addAll(mergedBooks.containsKey(b) ? mergedBooks.get(b) : readBooks(b));
+            bookGens = layoutBooks(generation, all);
+            written += bookGens.length;
+        } else {
+            for (Map.Entry<Integer, Collection<Book>> e : mergedBooks.entrySet()) {
+                bookGens[e.getKey()] = writeBooks(e.getKey(), generation, e.getValue());
+                written++;
+            }
+        }
+
+        int[] borrowerGens = borrowerGenerations.clone();
+        Map<Integer, Map<String, Borrower>> borrowersByBucket = new TreeMap<>();
+        for (Map.Entry<String, Borrower> e : delta.borrowers.entrySet()) {
+            borrowersByBucket.computeIfAbsent(bucket(e.getKey(), borrowerGens.length), k -> new HashMap<>()).put(e.getKey(), e.getValue());
+        }
+        Map<Integer, Collection<Borrower>> mergedBorrowers = new TreeMap<>();
+        for (Map.Entry<Integer, Map<String, Borrower>> e : borrowersByBucket.entrySet()) {
+            int b = e.getKey();
+            Map<String, Borrower> merged = new LinkedHashMap<>();
+            for (Borrower br : readBorrowers(b)) merged.put(br.id, br);
+            merged.putAll(e.getValue());
+            mergedBorrowers.put(b, merged.values());
+        }
+        if (outgrown(mergedBorrowers.values(), borrowerGens.length)) {
+            List<Borrower> all = new ArrayList<>();
+            for (int b = 0; b < borrowerGens.length; b++) {
+                all.addAll(mergedBorrowers.containsKey(b) ? mergedBorrowers.get(b) : readBorrowers(b));
+            }
+            borrowerGens = layoutBorrowers(generation, all);
+            written += borrowerGens.length;
+        } else {
+            for (Map.Entry<Integer, Collection<Borrower>> e : mergedBorrowers.entrySet()) {
+                borrowerGens[e.getKey()] = writeBorrowers(e.getKey(), generation, e.getValue());
+                written++;
+            }
+        }
+
+        int rows = loanRows + delta.loans.size();
+        int[] loanGens = Arrays.copyOf(loanGenerations, (rows + LOAN_ROWS_PER_SEGMENT - 1) / LOAN_ROWS_PER_SEGMENT);
+        BitSet touched = new BitSet();
+        for (int row = delta.returned.nextSetBit(0); row >= 0; row = delta.returned.nextSetBit(row + 1)) {
+            touched.set(row / LOAN_ROWS_PER_SEGMENT);
+        }
+        if (!delta.loans.isEmpty()) touched.set(loanRows / LOAN_ROWS_PER_SEGMENT, loanGens.length);
+        for (int s = touched.nextSetBit(0); s >= 0; s = touched.nextSetBit(s + 1)) {
+            int from = s * LOAN_ROWS_PER_SEGMENT, to = Math.min(rows, from + LOAN_ROWS_PER_SEGMENT);
+            List<Transaction> segment = s < loanGenerations.length ? readLoans(s) : new ArrayList<>();
+            for (int row = from + segment.size(); row < to; row++) {
+                Transaction t = delta.loans.get(row - loanRows);
+                // a copy: the live loan's returned flag may already be ahead of this delta
+                segment.add(new Transaction(t.isbn, t.borrowerId, t.borrowDate, t.returnDate));
+            }
+            for (int row = delta.returned.nextSetBit(from); row >= 0 && row < to; row = delta.returned.nextSetBit(row + 1)) {
+                segment.get(row - from).returned = true;
+            }
+            loanGens[s] = writeLoans(s, generation, segment);
+            written++;
+        }
+
+        int holdsGen = holdsGeneration;
+        if (delta.holds) {
+            holdsGen = writeHolds(generation, holds);
+            written++;
+        }
+        commit(lsn, delta.overdueRun ? delta.lastOverdueRun : lastOverdueRun, rows, bookGens, borrowerGens, loanGens, holdsGen);
+        return written;
+    }
+
+    // ---------- manifest ----------
+
+    private void commit(long lsn, LocalDate lastOverdueRun, int loanRows, int[] bookGens, int[] borrowerGens, int[] loanGens,
+                        int holdsGen) throws IOException {
+        BinarySnapshot.writeFile(new File(dir, MANIFEST), MANIFEST_MAGIC, out -> {
+            out.writeShort(VERSION);
+            out.writeLong(lsn);
+            out.writeLong(lastOverdueRun == null ? NO_RUN : lastOverdueRun.toEpochDay());
+            out.writeVarint(nextGeneration);
+            out.writeVarint(loanRows);
+            writeGenerations(out, bookGens);
+            writeGenerations(out, borrowerGens);
+            writeGenerations(out, loanGens);
+            out.writeVarint(holdsGen);
+        });
+        int[][] replaced = {bookGenerations, borrowerGenerations, loanGenerations};
+        int[][] current = {bookGens, borrowerGens, loanGens};
+        String[] kinds = {"books", "borrowers", "loans"};
+        List<String> dropped = new ArrayList<>();
+        for (int k = 0; k < kinds.length; k++) {
+            for (int i = 0; i < replaced[k].length; i++) {
+                boolean kept = i < current[k].length && current[k][i] == replaced[k][i];
+                if (kept || replaced[k][i] == 0) continue;
+                dropped.add(segmentName(kinds[k], i, replaced[k][i]));
+                if (k == 2) dropped.add(indexName(i, replaced[k][i]));
+            }
+        }
+        if (holdsGeneration != 0 && holdsGeneration != holdsGen) dropped.add(segmentName("holds", 0, holdsGeneration));
+        // publish first: from here on readers open the new files, and old ones still being read are left to their readers
+        synchronized (this) {
+            this.lsn = lsn;
+            this.lastOverdueRun = lastOverdueRun;
+            this.loanRows = loanRows;
+            bookGenerations = bookGens;
+            borrowerGenerations = borrowerGens;
+            loanGenerations = loanGens;
+            holdsGeneration = holdsGen;
+            for (String name : dropped) {
+                if (reading.containsKey(name)) obsolete.add(name);
+                else new File(dir, name).delete();
+            }
+        }
+    }
+
+    private static void writeGenerations(BinarySnapshot.Output out, int[] generations) throws IOException {
+        out.writeVarint(generations.length);
+        for (int g : generations) out.writeVarint(g);
+    }
+
+    private static int[] readGenerations(ByteBuffer m) {
+        int[] generations = new int[BinarySnapshot.readVarint(m)];
+        for (int i = 0; i < generations.length; i++) generations[i] = BinarySnapshot.readVarint(m);
+        return generations;
+    }
+
+    private void deleteUnreferenced() {
+        Set<String> live = new HashSet<>();
+        live.add(MANIFEST);
+        for (int i = 0; i < bookGenerations.length; i++) live.add(segmentName("books", i, bookGenerations[i]));
+        for (int i = 0; i < borrowerGenerations.length; i++) live.add(segmentName("borrowers", i, borrowerGenerations[i]));
+        for (int i = 0; i < loanGenerations.length; i++) {
+            live.add(segmentName("loans", i, loanGenerations[i]));
+            live.add(indexName(i, loanGenerations[i]));
+        }
+        live.add(segmentName("holds", 0, holdsGeneration));
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (!live.contains(f.getName())) f.delete();
+        }
+    }
+
+    // ---------- segments ----------
+
+    private static final byte BOOKS = 1, BORROWERS = 2, LOANS = 3, HOLDS = 4;
+
+    private int writeBooks(int bucket, int generation, Collection<Book> books) throws IOException {
+        if (books.isEmpty()) return 0;
+        writeSegment(segmentFile("books", bucket, generation), BOOKS, out -> BinarySnapshot.writeBooks(out, books));
+        return generation;
+    }
+
+    private int writeBorrowers(int bucket, int generation, Collection<Borrower> borrowers) throws IOException {
+        if (borrowers.isEmpty()) return 0;
+        writeSegment(segmentFile("borrowers", bucket, generation), BORROWERS, out -> BinarySnapshot.writeBorrowers(out, borrowers));
+        return generation;
+    }
+
+    private int writeLoans(int segment, int generation, List<Transaction> loans) throws IOException {
+        writeSegment(segmentFile("loans", segment, generation), LOANS, out -> BinarySnapshot.writeLoansAndHolds(out, loans, List.of()));
+        BinarySnapshot.writeFile(indexFile(segment, generation), INDEX_MAGIC, LoanIndex.of(loans)::write);
+        return generation;
+    }
+
+    private int writeHolds(int generation, Collection<Hold> holds) throws IOException {
+        if (holds.isEmpty()) return 0;
+        writeSegment(segmentFile("holds", 0, generation), HOLDS, out -> BinarySnapshot.writeLoansAndHolds(out, List.of(), holds));
+        return generation;
+    }
+
+    private static void writeSegment(File file, byte kind, BinarySnapshot.Body body) throws IOException {
+        BinarySnapshot.writeFile(file, SEGMENT_MAGIC, out -> {
+            out.writeShort(VERSION);
+            out.writeByte(kind);
+            body.write(out);
+        });
+        SEGMENTS_WRITTEN.increment();
+    }
+
+    private List<Book> readBooks(int bucket) throws IOException {
+        int g = bookGenerations[bucket];
+        return g == 0 ? new ArrayList<>() : BinarySnapshot.readBooks(openSegment(segmentFile("books", bucket, g), BOOKS), true);
+    }
+
+    private List<Borrower> readBorrowers(int bucket) throws IOException {
+        int g = borrowerGenerations[bucket];
+        return g == 0 ? new ArrayList<>() : BinarySnapshot.readBorrowers(openSegment(segmentFile("borrowers", bucket, g), BORROWERS));
+    }
+
+    private List<Transaction> readLoans(int segment) throws IOException {
+        List<Transaction> loans = new ArrayList<>();
+        int g = loanGenerations[segment];
+        if (g != 0) BinarySnapshot.readLoansAndHolds(openSegment(segmentFile("loans", segment, g), LOANS), true, loans, new ArrayList<>());
+        return loans;
+    }
+
+    private LoanIndex readIndex(int segment) throws IOException {
+        File file = indexFile(segment, loanGenerations[segment]);
+        if (file.isFile()) return LoanIndex.read(file);
+        LoanIndex index = LoanIndex.of(readLoans(segment));
+        BinarySnapshot.writeFile(file, INDEX_MAGIC, index::write);
+        return index;
+    }
+
+    // a loan segment as currently committed; the file is registered as being read, so a compaction
+    // that replaces it meanwhile leaves the deletion to this reader
+    private List<Transaction> readArchived(int segment) throws IOException {
+        String name;
+        synchronized (this) {
+            name = segmentName("loans", segment, loanGenerations[segment]);
+            reading.merge(name, 1, Integer::sum);
+        }
+        try {
+            List<Transaction> loans = new ArrayList<>();
+            BinarySnapshot.readLoansAndHolds(openSegment(new File(dir, name), LOANS), true, loans, new ArrayList<>());
+            return loans;
+        } finally {
+            synchronized (this) {
+                if (reading.merge(name, -1, Integer::sum) == 0) {
+                    reading.remove(name);
+                    if (obsolete.remove(name)) new File(dir, name).delete();
+                }
+            }
+        }
+    }
+
+    private List<Hold> readHolds() throws IOException {
+        List<Hold> holds = new ArrayList<>();
+        if (holdsGeneration != 0) {
+            BinarySnapshot.readLoansAndHolds(openSegment(segmentFile("holds", 0, holdsGeneration), HOLDS), true, new ArrayList<>(), holds);
+        }
+        return holds;
+    }
+
+    private static ByteBuffer openSegment(File file, byte kind) throws IOException {
+        ByteBuffer buf = BinarySnapshot.readFile(file, SEGMENT_MAGIC);
+        short version = buf.getShort();
+        if (version > VERSION) throw new IOException(file + ": unsupported segment version " + version);
+        if (buf.get() != kind) throw new IOException(file + ": wrong segment kind");
+        return buf;
+    }
+
+    private File segmentFile(String kind, int index, int generation) {
+        return new File(dir, segmentName(kind, index, generation));
+    }
+
+    private static String segmentName(String kind, int index, int generation) {
+        return kind + "-" + index + "." + generation + ".seg";
+    }
+
+    private File indexFile(int segment, int generation) {
+        return new File(dir, indexName(segment, generation));
+    }
+
+    private static String indexName(int segment, int generation) {
+        return "loans-" + segment + "." + generation + ".idx";
+    }
+
+    private int[] layoutBooks(int generation, Collection<Book> books) throws IOException {
+        List<List<Book>> buckets = buckets(books.size());
+        for (Book b : books) buckets.get(bucket(b.isbn, buckets.size())).add(b);
+        int[] gens = new int[buckets.size()];
+        for (int b = 0; b < gens.length; b++) gens[b] = writeBooks(b, generation, buckets.get(b));
+        return gens;
+    }
+
+    private int[] layoutBorrowers(int generation, Collection<Borrower> borrowers) throws IOException {
+        List<List<Borrower>> buckets = buckets(borrowers.size());
+        for (Borrower br : borrowers) buckets.get(bucket(br.id, buckets.size())).add(br);
+        int[] gens = new int[buckets.size()];
+        for (int b = 0; b < gens.length; b++) gens[b] = writeBorrowers(b, generation, buckets.get(b));
+        return gens;
+    }
+
+    // whether a merged bucket has grown so far past its target that, judging by it (keys hash evenly),
+    // a fresh layout would use more buckets than the current {@code count}
+    private static boolean outgrown(Collection<? extends Collection<?>> merged, int count) {
+        int largest = 0;
+        for (Collection<?> bucket : merged) largest = Math.max(largest, bucket.size());
+        return largest > BUCKET_SPLIT && bucketCount((int) Math.min(Integer.MAX_VALUE, (long) largest * count)) > count;
+    }
+
+    private static int bucketCount(int size) {
+        return Integer.highestOneBit(Math.max(16, size / BUCKET_TARGET) * 2 - 1);
+    }
+
+    private static <T> List<List<T>> buckets(int size) {
+        int n = bucketCount(size);
+        List<List<T>> buckets = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) buckets.add(new ArrayList<>());
+        return buckets;
+    }
+
+    private static int bucket(String key, int buckets) {
+        int h = key.hashCode();
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % buckets;
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import metrics.Counter;
+import metrics.Metrics;
+import metrics.Timer;
+import service.Library;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Headless access to a {@link Library} over a TCP line protocol (see {@link Protocol}). Every
+ * connection is served by its own virtual thread, so hundreds of clients cost a few KB each and a
+ * client blocked on a lock or the journal never holds up an OS thread.
+ *
+ * Requests are pipelined: a client may send any number of lines without waiting, and responses come
+ * back in request order. Responses are buffered and flushed only once no further request is already
+ * waiting in the input buffer, so a pipelined burst is answered with a single write.
+ */
+public class LibraryServer implements Closeable {
+    private static final Counter CONNECTIONS = Metrics.counter("server.connections");
+    private static final Timer REQUEST = Metrics.timer("server.request");
+
+    private final Protocol protocol;
+    private final ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private ServerSocket listener;
+    private Thread acceptor;
+
+    public LibraryServer(Library library) {
+        this.protocol = new Protocol(library);
+    }
+
+    /** Starts listening on the loopback interface; {@code port} 0 picks a free port. Returns the bound port. */
+    public synchronized int start(int port) throws IOException {
+        if (listener != null) throw new IllegalStateException("server already started");
+        listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        acceptor = Thread.ofPlatform().name("library-server-accept").daemon(true).start(this::acceptLoop);
+        return listener.getLocalPort();
+    }
+
+    public synchronized int port() {
+        return listener == null ? -1 : listener.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!listener.isClosed()) {
+            try {
+                Socket s = listener.accept();
+                s.setTcpNoDelay(true);
+                open.add(s);
+                CONNECTIONS.increment();
+                clients.execute(() -> serve(s));
+            } catch (IOException ex) {
+                if (!listener.isClosed()) System.err.println("accept failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try (s;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), 16 * 1024)) {
+            StringBuilder response = new StringBuilder(256);
+            String line;
+            while ((line = in.readLine()) != null) {
+                long t0 = REQUEST.start();
+                response.setLength(0);
+                boolean more = protocol.handle(line, response);
+                out.append(response);
+                REQUEST.stop(t0);
+                if (!more) break;
+                if (!in.ready()) out.flush();
+            }
+            out.flush();
+        } catch (IOException ignored) {
+            // client went away; nothing to answer
+        } finally {
+            open.remove(s);
+        }
+    }
+
+    /** Stops accepting, closes every connection and waits for their threads to finish. */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (listener == null) return;
+            listener.close();
+        }
+        for (Socket s : open) s.close();
+        clients.close();
+        try {
+            acceptor.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
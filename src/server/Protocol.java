@@ -0,0 +1,213 @@
+package server;
+
+import metrics.Metrics;
+import model.Book;
+import model.Borrower;
+import model.Hold;
+import model.Transaction;
+import service.BatchResult;
+import service.Library;
+import service.ReportAggregates;
+import util.TextIndex;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The server's line protocol. A request is one line: a command word (any case) followed by
+ * space-separated arguments, the last of which may contain spaces. A response is either
+ * {@code ERR <message>} or {@code OK <n>} followed by exactly n result lines, so a client can read
+ * pipelined responses without knowing which command each one answers.
+ *
+ * <pre>
+ * PING                               OK 0
+ * BOOK isbn                          the book, if any
+ * SEARCH title|prefix|author|keyword text
+ * BORROWER id                        the borrower, if any
+ * FIND prefix-or-contact             borrowers by name word prefix, or by contact digits
+ * REGISTER id contact name...        adds a borrower; an id already registered is an error
+ * LOANS borrowerId                   the borrower's open loans
+ * BORROW isbn borrowerId [days]      the new loan (default 14 days, at most 365)
+ * RETURN isbn borrowerId             the closed loan and the borrower's fines
+ * AVAIL isbn                         "copies available waiting"
+ * HOLD isbn borrowerId               the new hold and the borrower's place (0 = ready for pickup)
+ * CANCELHOLD isbn borrowerId         OK 0 if a hold was withdrawn
+ * HOLDS isbn                         the book's holds, ready ones first, then in queue order
+ * TOP k | RECENT days k | FINES k    report rankings
+ * METRICS                            the metrics dump
+ * QUIT                               OK 0, then the server closes the connection
+ * </pre>
+ */
+public class Protocol {
+    static final int MAX_RESULTS = 100;
+    static final int MAX_LOAN_DAYS = 365;
+
+    private final Library library;
+
+    public Protocol(Library library) {
+        this.library = library;
+    }
+
+    /** Appends the response to {@code request} to {@code out}; returns false if the connection should close. */
+    public boolean handle(String request, StringBuilder out) {
+        String[] parts = request.trim().split("\\s+", 2);
+        String command = parts[0].toUpperCase(Locale.ROOT);
+        String args = parts.length > 1 ? parts[1] : "";
+        int mark = out.length();
+        try {
+            switch (command) {
+                case "PING": ok(out, List.of()); break;
+                case "BOOK": ok(out, single(library.inventory.searchByISBN(arg(args, 0, 1)))); break;
+                case "SEARCH": search(args, out); break;
+                case "BORROWER": ok(out, single(library.registry.getBorrower(arg(args, 0, 1)))); break;
+                case "FIND": find(args, out); break;
+                case "REGISTER": register(args, out); break;
+                case "LOANS": ok(out, library.lending.getOpenLoans(arg(args, 0, 1))); break;
+                case "BORROW": borrow(args, out); break;
+                case "RETURN": giveBack(args, out); break;
+                case "AVAIL": availability(arg(args, 0, 1), out); break;
+                case "HOLD": hold(args, out); break;
+                case "CANCELHOLD": cancelHold(args, out); break;
+                case "HOLDS": ok(out, limit(library.lending.getHolds(arg(args, 0, 1)))); break;
+                case "TOP": ranking(library.cache.mostBorrowed(count(arg(args, 0, 1))), out); break;
+                case "RECENT": ranking(library.cache.mostBorrowedLastDays(number(arg(args, 0, 2)), count(arg(args, 1, 2))), out); break;
+                case "FINES": ranking(library.cache.topFines(count(arg(args, 0, 1))), out); break;
+                case "METRICS": ok(out, List.of(Metrics.dump().split("\n"))); break;
+                case "QUIT": ok(out, List.of()); return false;
+                case "": error(out, "empty request"); break;
+                default: error(out, "unknown command " + parts[0]);
+            }
+        } catch (IllegalArgumentException ex) {
+            out.setLength(mark);
+            error(out, ex.getMessage());
+        } catch (RuntimeException ex) {
+            // a bug or an unexpected state must not take the connection (or earlier pipelined answers) with it
+            out.setLength(mark);
+            error(out, "internal error: " + ex);
+        }
+        return true;
+    }
+
+    private void search(String args, StringBuilder out) {
+        String[] p = args.split(" ", 2);
+        if (p.length < 2 || p[1].isBlank()) throw new IllegalArgumentException("usage: SEARCH title|prefix|author|keyword text");
+        String text = p[1].trim();
+        switch (p[0].toLowerCase(Locale.ROOT)) {
+            case "title": ok(out, single(library.cache.searchByTitle(text))); break;
+            case "prefix": ok(out, limit(library.inventory.searchByTitlePrefix(text))); break;
+            case "author": ok(out, limit(library.cache.searchAuthorContaining(text))); break;
+            case "keyword":
+                TextIndex.SearchResult r = library.cache.searchKeywords(text, false, 0, MAX_RESULTS);
+                ok(out, r.books);
+                break;
+            default: throw new IllegalArgumentException("unknown search field " + p[0]);
+        }
+    }
+
+    private void find(String args, StringBuilder out) {
+        String q = args.trim();
+        if (q.isEmpty()) throw new IllegalArgumentException("usage: FIND prefix-or-contact");
+        boolean contact = q.chars().allMatch(c -> Character.isDigit(c) || c == ' ' || c == '-' || c == '+');
+        ok(out, contact ? library.registry.findByContact(q) : library.registry.findByNamePrefix(q, MAX_RESULTS));
+    }
+
+    private void register(String args, StringBuilder out) {
+        String[] p = args.trim().split("\\s+", 3);
+        if (p.length < 3) throw new IllegalArgumentException("usage: REGISTER id contact name");
+        // ids are written unescaped in journal, loan and hold records, where a comma would split the record
+        if (p[0].indexOf(',') >= 0) throw new IllegalArgumentException("id may not contain a comma");
+        Borrower b = new Borrower(p[2], p[0], p[1]);
+        // registerBorrowers checks and adds in one step, so two clients cannot both claim an id
+        BatchResult<Borrower> r = library.registry.registerBorrowers(List.of(b));
+        if (r.failed() > 0) throw new IllegalArgumentException("already registered");
+        ok(out, List.of(b));
+    }
+
+    private void borrow(String args, StringBuilder out) {
+        String[] p = args.trim().split("\\s+");
+        if (p.length < 2 || p.length > 3) throw new IllegalArgumentException("usage: BORROW isbn borrowerId [days]");
+        int days = p.length == 3 ? number(p[2]) : 14;
+        if (days < 1 || days > MAX_LOAN_DAYS) throw new IllegalArgumentException("days must be 1-" + MAX_LOAN_DAYS);
+        if (library.inventory.searchByISBN(p[0]) == null) throw new IllegalArgumentException("book not found");
+        if (library.registry.getBorrower(p[1]) == null) throw new IllegalArgumentException("unknown borrower");
+        Transaction t = library.borrow(p[0], p[1], LocalDate.now(), days);
+        if (t == null) {
+            throw new IllegalArgumentException(library.lending.findOpenLoan(p[0], p[1]) != null ? "already on loan" : "no copy available");
+        }
+        ok(out, List.of(t));
+    }
+
+    private void giveBack(String args, StringBuilder out) {
+        String isbn = arg(args, 0, 2), borrowerId = arg(args, 1, 2);
+        Transaction t = library.giveBack(isbn, borrowerId);
+        if (t == null) throw new IllegalArgumentException("no open loan of " + isbn + " for " + borrowerId);
+        Borrower b = library.registry.getBorrower(borrowerId);
+        ok(out, b == null ? List.of(t) : List.of(t, b));
+    }
+
+    private void availability(String isbn, StringBuilder out) {
+        Book b = library.inventory.searchByISBN(isbn);
+        if (b == null) throw new IllegalArgumentException("book not found");
+        ok(out, List.of(b.copies + " " + library.lending.copiesAvailable(isbn) + " " + library.lending.waitingCount(isbn)));
+    }
+
+    private void hold(String args, StringBuilder out) {
+        String isbn = arg(args, 0, 2), borrowerId = arg(args, 1, 2);
+        if (library.inventory.searchByISBN(isbn) == null) throw new IllegalArgumentException("book not found");
+        if (library.registry.getBorrower(borrowerId) == null) throw new IllegalArgumentException("unknown borrower");
+        Hold h = library.lending.placeHold(isbn, borrowerId, LocalDate.now());
+        if (h == null) throw new IllegalArgumentException("already held or on loan");
+        ok(out, List.of(h, "position " + library.lending.holdPosition(isbn, borrowerId)));
+    }
+
+    private void cancelHold(String args, StringBuilder out) {
+        String isbn = arg(args, 0, 2), borrowerId = arg(args, 1, 2);
+        if (!library.lending.cancelHold(isbn, borrowerId)) throw new IllegalArgumentException("no hold on " + isbn + " for " + borrowerId);
+        ok(out, List.of());
+    }
+
+    private static void ranking(List<ReportAggregates.Entry> entries, StringBuilder out) {
+        List<String> lines = new ArrayList<>(entries.size());
+        for (ReportAggregates.Entry e : entries) lines.add(e.key + " " + e.value);
+        ok(out, lines);
+    }
+
+    private static void ok(StringBuilder out, Collection<?> lines) {
+        out.append("OK ").append(lines.size()).append('\n');
+        for (Object line : lines) out.append(line).append('\n');
+    }
+
+    private static void error(StringBuilder out, String message) {
+        out.append("ERR ").append(message).append('\n');
+    }
+
+    private static List<Object> single(Object o) {
+        return o == null ? List.of() : List.of(o);
+    }
+
+    private static <T> List<T> limit(List<T> list) {
+        return list.size() <= MAX_RESULTS ? list : list.subList(0, MAX_RESULTS);
+    }
+
+    // the i-th of exactly n space-separated arguments
+    private static String arg(String args, int i, int n) {
+        String[] p = args.trim().split("\\s+");
+        if (p.length != n || p[0].isEmpty()) throw new IllegalArgumentException("expected " + n + " argument(s)");
+        return p[i];
+    }
+
+    private static int number(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("not a number: " + s);
+        }
+    }
+
+    private static int count(String s) {
+        return Math.max(1, Math.min(MAX_RESULTS, number(s)));
+    }
+}
@@ -0,0 +1,77 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Per-item outcome of a batch operation, in input order. */
+public class BatchResult<T> {
+    /** One input item and whether it was applied; {@code error} says why not. */
+    public static class Item<T> {
+        public final int index;
+        public final T input;
+        public final String error;
+
+        Item(int index, T input, String error) {
+            this.index = index;
+            this.input = input;
+            this.error = error;
+        }
+
+        public boolean ok() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + index + " " + input + (ok() ? ": ok" : ": " + error);
+        }
+    }
+
+    private final List<Item<T>> items;
+    private int failed;
+
+    BatchResult(int size) {
+        items = new ArrayList<>(Collections.nCopies(size, null));
+    }
+
+    void succeed(int index, T input) {
+        items.set(index, new Item<>(index, input, null));
+    }
+
+    void fail(int index, T input, String error) {
+        if (items.get(index) == null || items.get(index).ok()) failed++;
+        items.set(index, new Item<>(index, input, error));
+    }
+
+    /** True if the item was rejected (validation failures are recorded before anything is applied). */
+    boolean failed(int index) {
+        Item<T> item = items.get(index);
+        return item != null && !item.ok();
+    }
+
+    public List<Item<T>> items() {
+        return Collections.unmodifiableList(items);
+    }
+
+    public int succeeded() {
+        return items.size() - failed;
+    }
+
+    public int failed() {
+        return failed;
+    }
+
+    public List<Item<T>> failures() {
+        List<Item<T>> out = new ArrayList<>(failed);
+        for (Item<T> item : items) {
+            if (!item.ok()) out.add(item);
+        }
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return succeeded() + " applied, " + failed + " rejected";
+    }
+}
@@ -1,49 +1,315 @@
 package service;
 
+import metrics.Metrics;
+import metrics.Timer;
 import model.Book;
+import util.BitmapIndex;
+import util.DocTable;
+import util.PersistentMap;
+import util.PersistentSet;
 import util.SearchUtils;
-import util.SortUtils;
+import util.StripedLock;
+import util.TextIndex;
+import util.TitleIndex;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Thread-safe catalogue. Writes to one ISBN serialize on its lock stripe; reads never block.
+ *
+ * The ISBN and category indexes live in one immutable {@link Catalogue} that writers replace
+ * atomically, so {@link #getAllBooks()} and {@link #getBooksByCategory()} hand out consistent
+ * snapshots in O(1) that stay valid, unchanged, while writes continue (a book's copy count is the
+ * exception: {@link #setCopies} updates it in place).
+ */
 public class BookInventory {
-    private Map<String, List<Book>> booksByCategory = new HashMap<>();
+    private static final Timer ADD = Metrics.timer("inventory.addBook");
+    private static final Timer ADD_BATCH = Metrics.timer("inventory.addBooks");
+    private static final Timer REMOVE = Metrics.timer("inventory.removeBook");
+    private static final Timer SEARCH_ISBN = Metrics.timer("inventory.searchIsbn");
+    private static final Timer SEARCH_TITLE = Metrics.timer("inventory.searchTitle");
+    private static final Timer SEARCH_TEXT = Metrics.timer("inventory.searchText");
+    private static final Timer SEARCH_KEYWORDS = Metrics.timer("inventory.searchKeywords");
 
-    public void addBook(Book book) {
-        booksByCategory.putIfAbsent(book.category, new ArrayList<>());
-        booksByCategory.get(book.category).add(book);
+    private final AtomicReference<Catalogue> catalogue = new AtomicReference<>(Catalogue.EMPTY);
+    private TitleIndex titleIndex = new TitleIndex();
+    private TextIndex textIndex = new TextIndex();
+    // secondary indexes over dense doc ids, for composite queries (see BookQuery)
+    private final DocTable<Book> docs = new DocTable<>();
+    private final Map<String, Integer> docIds = new ConcurrentHashMap<>();
+    private final Indexes indexes = new Indexes();
+    private final StripedLock locks = new StripedLock();
+    private List<LibraryListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(LibraryListener listener) {
+        listeners.add(listener);
+    }
+
+    /** Adds the book, or returns false if a book with the same ISBN is already in the inventory. */
+    public boolean addBook(Book book) {
+        long t0 = ADD.start();
+        ReentrantLock lock = locks.get(book.isbn);
+        lock.lock();
+        try {
+            if (catalogue.get().byIsbn.containsKey(book.isbn)) return false;
+            catalogue.updateAndGet(c -> c.plus(book));
+            titleIndex.add(book);
+            textIndex.add(book);
+            int doc = docs.add(book);
+            docIds.put(book.isbn, doc);
+            indexes.add(book, doc);
+            for (LibraryListener l : listeners) l.bookAdded(book);
+            return true;
+        } finally {
+            lock.unlock();
+            ADD.stop(t0);
+        }
     }
 
-    public void removeBook(String isbn) {
-        for (List<Book> list : booksByCategory.values()) {
-            list.removeIf(b -> b.isbn.equals(isbn));
+    /**
+     * Adds a batch of books. Every book is validated first (ISBN present and not repeated within
+     * the batch or already catalogued, title and category present); the accepted ones are then
+     * applied under their lock stripes with a single catalogue update and presized doc ids.
+     */
+    public BatchResult<Book> addBooks(List<Book> books) {
+        long t0 = ADD_BATCH.start();
+        BatchResult<Book> result = new BatchResult<>(books.size());
+        Set<String> seen = new HashSet<>(Math.max(16, (int) (books.size() / 0.75f) + 1));
+        for (int i = 0; i < books.size(); i++) {
+            Book b = books.get(i);
+            if (b == null || b.isbn == null || b.isbn.trim().isEmpty()) result.fail(i, b, "missing ISBN");
+            else if (b.title == null || b.category == null) result.fail(i, b, "missing title or category");
+            else if (!seen.add(b.isbn)) result.fail(i, b, "ISBN repeated in batch");
         }
+        List<ReentrantLock> held = locks.lockAll(seen);
+        try {
+            Catalogue current = catalogue.get();
+            List<Book> accepted = new ArrayList<>(seen.size());
+            for (int i = 0; i < books.size(); i++) {
+                if (result.failed(i)) continue;
+                Book b = books.get(i);
+                if (current.byIsbn.containsKey(b.isbn)) result.fail(i, b, "ISBN already in inventory");
+                else accepted.add(b);
+            }
+            if (accepted.isEmpty()) return result;
+            catalogue.updateAndGet(c -> c.plusAll(accepted));
+            docs.reserve(accepted.size());
+            for (Book b : accepted) {
+                titleIndex.add(b);
+                textIndex.add(b);
+                int doc = docs.add(b);
+                docIds.put(b.isbn, doc);
+                indexes.add(b, doc);
+            }
+            for (int i = 0; i < books.size(); i++) {
+                if (!result.failed(i)) result.succeed(i, books.get(i));
+            }
+            for (Book b : accepted) {
+                for (LibraryListener l : listeners) l.bookAdded(b);
+            }
+            return result;
+        } finally {
+            StripedLock.unlockAll(held);
+            ADD_BATCH.stop(t0);
+        }
+    }
+
+    /** Inserts many books at once (e.g. at startup); returns how many were new. */
+    public int bulkLoad(List<Book> books) {
+        return addBooks(books).succeeded();
     }
 
-    public List<Book> getAllBooks() {
-        List<Book> all = new ArrayList<>();
-        for (List<Book> list : booksByCategory.values()) {
-            all.addAll(list);
+    /** Removes the book with the given ISBN and returns it, or null if there was none. */
+    public Book removeBook(String isbn) {
+        long t0 = REMOVE.start();
+        ReentrantLock lock = locks.get(isbn);
+        lock.lock();
+        try {
+            Book book = catalogue.get().byIsbn.get(isbn);
+            if (book == null) return null;
+            catalogue.updateAndGet(c -> c.minus(book));
+            titleIndex.remove(book);
+            textIndex.remove(book);
+            int doc = docIds.remove(isbn);
+            indexes.remove(book, doc);
+            docs.remove(doc);
+            for (LibraryListener l : listeners) l.bookRemoved(book);
+            return book;
+        } finally {
+            lock.unlock();
+            REMOVE.stop(t0);
         }
-        return all;
+    }
+
+    /**
+     * Changes how many copies the library owns of {@code isbn}. The catalogued book is updated in
+     * place under its ISBN's lock, so it never drops out of the catalogue on the way (no index
+     * depends on the copy count). Returns false for an unknown ISBN.
+     */
+    public boolean setCopies(String isbn, int copies) {
+        if (copies < 0) throw new IllegalArgumentException("copies must not be negative");
+        ReentrantLock lock = locks.get(isbn);
+        lock.lock();
+        try {
+            Book old = catalogue.get().byIsbn.get(isbn);
+            if (old == null) return false;
+            if (old.copies == copies) return true;
+            old.copies = copies;
+            for (LibraryListener l : listeners) l.copiesChanged(old);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean containsISBN(String isbn) {
+        return catalogue.get().byIsbn.containsKey(isbn);
+    }
+
+    public int size() {
+        return catalogue.get().byIsbn.size();
+    }
+
+    /** Every book, as an immutable snapshot; cheap to take and safe to iterate (or stream in parallel) during writes. */
+    public Collection<Book> getAllBooks() {
+        return catalogue.get().byIsbn.values();
     }
 
     public void listBooksSortedByTitle() {
-        List<Book> all = getAllBooks();
-        SortUtils.mergeSortByTitle(all);
-        all.forEach(System.out::println);
+        titleIndex.inOrder().forEach(System.out::println);
+    }
+
+    public Iterable<Book> getBooksSortedByTitle() {
+        return titleIndex.inOrder();
     }
 
     public Book searchByISBN(String isbn) {
-        return SearchUtils.linearSearchByISBN(getAllBooks(), isbn);
+        long t0 = SEARCH_ISBN.start();
+        Book result = catalogue.get().byIsbn.get(isbn);
+        SEARCH_ISBN.stop(t0);
+        return result;
     }
 
     public Book searchByTitle(String title) {
-        List<Book> sorted = getAllBooks();
-        SortUtils.mergeSortByTitle(sorted);
-        return SearchUtils.binarySearchByTitle(sorted, title);
+        long t0 = SEARCH_TITLE.start();
+        Book result = SearchUtils.binarySearchByTitle(titleIndex, title);
+        SEARCH_TITLE.stop(t0);
+        return result;
+    }
+
+    public List<Book> searchByTitlePrefix(String prefix) {
+        long t0 = SEARCH_TITLE.start();
+        List<Book> result = titleIndex.prefix(prefix);
+        SEARCH_TITLE.stop(t0);
+        return result;
+    }
+
+    public List<Book> searchByTitleRange(String from, String to) {
+        return titleIndex.range(from, to);
     }
 
-    public Map<String, List<Book>> getBooksByCategory() {
-        return booksByCategory;
+    public List<Book> searchTitleContaining(String text) {
+        long t0 = SEARCH_TEXT.start();
+        List<Book> result = textIndex.containing(TextIndex.Field.TITLE, text);
+        SEARCH_TEXT.stop(t0);
+        return result;
+    }
+
+    public List<Book> searchAuthorContaining(String text) {
+        long t0 = SEARCH_TEXT.start();
+        List<Book> result = textIndex.containing(TextIndex.Field.AUTHOR, text);
+        SEARCH_TEXT.stop(t0);
+        return result;
+    }
+
+    /** Ranked keyword search over title, author, publisher and category; {@code page} is 0-based. */
+    public TextIndex.SearchResult searchKeywords(String query, boolean matchAll, int page, int pageSize) {
+        long t0 = SEARCH_KEYWORDS.start();
+        TextIndex.SearchResult result = textIndex.search(query, matchAll, page, pageSize);
+        SEARCH_KEYWORDS.stop(t0);
+        return result;
+    }
+
+    /** Books grouped by category, as an immutable snapshot taken together with {@link #getAllBooks()}'s. */
+    public Map<String, Set<Book>> getBooksByCategory() {
+        return Collections.unmodifiableMap(catalogue.get().byCategory);
+    }
+
+    /** Starts a composite query over category, author, publisher, shelf and year. */
+    public BookQuery query() {
+        return new BookQuery(docs, indexes);
+    }
+
+    /** Index key for text attributes: case-insensitive, null-safe. */
+    static String indexKey(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /** One immutable version of the ISBN and category indexes. */
+    private static final class Catalogue {
+        static final Catalogue EMPTY = new Catalogue(PersistentMap.empty(), PersistentMap.empty());
+
+        final PersistentMap<String, Book> byIsbn;
+        final PersistentMap<String, PersistentSet<Book>> byCategory;
+
+        Catalogue(PersistentMap<String, Book> byIsbn, PersistentMap<String, PersistentSet<Book>> byCategory) {
+            this.byIsbn = byIsbn;
+            this.byCategory = byCategory;
+        }
+
+        Catalogue plus(Book b) {
+            PersistentSet<Book> set = byCategory.get(b.category);
+            return new Catalogue(byIsbn.plus(b.isbn, b),
+                    byCategory.plus(b.category, (set == null ? PersistentSet.<Book>empty() : set).plus(b)));
+        }
+
+        Catalogue plusAll(List<Book> books) {
+            PersistentMap.Builder<String, Book> isbns = byIsbn.toBuilder();
+            Map<String, List<Book>> grouped = new HashMap<>();
+            for (Book b : books) {
+                isbns.put(b.isbn, b);
+                grouped.computeIfAbsent(b.category, c -> new ArrayList<>()).add(b);
+            }
+            PersistentMap.Builder<String, PersistentSet<Book>> categories = byCategory.toBuilder();
+            grouped.forEach((category, list) -> {
+                PersistentSet<Book> set = byCategory.get(category);
+                categories.put(category, (set == null ? PersistentSet.<Book>empty() : set).plusAll(list));
+            });
+            return new Catalogue(isbns.build(), categories.build());
+        }
+
+        Catalogue minus(Book b) {
+            PersistentSet<Book> set = byCategory.get(b.category);
+            PersistentSet<Book> rest = set == null ? PersistentSet.empty() : set.minus(b);
+            return new Catalogue(byIsbn.minus(b.isbn),
+                    rest.isEmpty() ? byCategory.minus(b.category) : byCategory.plus(b.category, rest));
+        }
+    }
+
+    static class Indexes {
+        final BitmapIndex<String> category = BitmapIndex.hashed();
+        final BitmapIndex<String> author = BitmapIndex.hashed();
+        final BitmapIndex<String> publisher = BitmapIndex.hashed();
+        final BitmapIndex<String> shelf = BitmapIndex.hashed();
+        final BitmapIndex<Integer> year = BitmapIndex.ordered();
+
+        void add(Book b, int doc) {
+            category.add(indexKey(b.category), doc);
+            author.add(indexKey(b.author), doc);
+            publisher.add(indexKey(b.publisher), doc);
+            shelf.add(indexKey(b.shelfLocation), doc);
+            year.add(b.year, doc);
+        }
+
+        void remove(Book b, int doc) {
+            category.remove(indexKey(b.category), doc);
+            author.remove(indexKey(b.author), doc);
+            publisher.remove(indexKey(b.publisher), doc);
+            shelf.remove(indexKey(b.shelfLocation), doc);
+            year.remove(b.year, doc);
+        }
     }
 }
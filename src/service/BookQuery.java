@@ -0,0 +1,185 @@
+package service;
+
+import metrics.Metrics;
+import metrics.Timer;
+import model.Book;
+import util.BitmapIndex;
+import util.DocTable;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A conjunction of attribute conditions over the catalogue, e.g.
+ * {@code inventory.query().category("religion").yearBetween(1990, 2005).shelf("1").execute()}.
+ *
+ * Execution estimates each condition's size from its index, drives from the most selective one
+ * and intersects further conditions as bitmaps only while that is cheaper than checking them on
+ * the candidates. Every result is re-checked against all conditions as it is produced, so
+ * leftover conditions and concurrent catalogue changes are both handled there. Text matching
+ * ignores case.
+ */
+public class BookQuery {
+    // a condition is intersected as a bitmap only if it is at most this many times larger than the candidates
+    static final int INTERSECT_RATIO = 8;
+    private static final Timer EXECUTE = Metrics.timer("inventory.queryPlan");
+
+    private final DocTable<Book> docs;
+    private final BookInventory.Indexes indexes;
+    private final List<Condition> conditions = new ArrayList<>();
+
+    BookQuery(DocTable<Book> docs, BookInventory.Indexes indexes) {
+        this.docs = docs;
+        this.indexes = indexes;
+    }
+
+    public BookQuery category(String category) {
+        return equal("category", indexes.category, category, b -> b.category);
+    }
+
+    public BookQuery author(String author) {
+        return equal("author", indexes.author, author, b -> b.author);
+    }
+
+    public BookQuery publisher(String publisher) {
+        return equal("publisher", indexes.publisher, publisher, b -> b.publisher);
+    }
+
+    public BookQuery shelf(String shelfLocation) {
+        return equal("shelf", indexes.shelf, shelfLocation, b -> b.shelfLocation);
+    }
+
+    public BookQuery year(int year) {
+        return yearBetween(year, year);
+    }
+
+    /** Books published from {@code from} to {@code to}, both inclusive. */
+    public BookQuery yearBetween(int from, int to) {
+        conditions.add(new Condition("year " + from + ".." + to) {
+            int estimate() { return from > to ? 0 : indexes.year.countRange(from, to); }
+            void orInto(BitSet target) { if (from <= to) indexes.year.orRangeInto(from, to, target); }
+            boolean test(Book b) { return b.year >= from && b.year <= to; }
+        });
+        return this;
+    }
+
+    public Result execute() {
+        long t0 = EXECUTE.start();
+        if (conditions.isEmpty()) throw new IllegalStateException("query has no conditions");
+        int[] estimates = new int[conditions.size()];
+        Integer[] order = new Integer[conditions.size()];
+        for (int i = 0; i < order.length; i++) {
+            estimates[i] = conditions.get(i).estimate();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> estimates[i]));
+
+        StringBuilder plan = new StringBuilder();
+        BitSet candidates = new BitSet();
+        Condition driver = conditions.get(order[0]);
+        driver.orInto(candidates);
+        int size = candidates.cardinality();
+        plan.append("drive ").append(driver.name).append(" (").append(size).append(')');
+        for (int k = 1; k < order.length && size > 0; k++) {
+            Condition c = conditions.get(order[k]);
+            if ((long) estimates[order[k]] > (long) size * INTERSECT_RATIO) {
+                plan.append(", filter ").append(c.name);
+                continue;
+            }
+            BitSet other = new BitSet();
+            c.orInto(other);
+            candidates.and(other);
+            size = candidates.cardinality();
+            plan.append(", and ").append(c.name).append(" (").append(size).append(')');
+        }
+        Result result = new Result(candidates, new ArrayList<>(conditions), plan.toString());
+        EXECUTE.stop(t0);
+        return result;
+    }
+
+    private BookQuery equal(String field, BitmapIndex<String> index, String value, Function<Book, String> getter) {
+        String key = BookInventory.indexKey(value);
+        conditions.add(new Condition(field + "=" + value) {
+            int estimate() { return index.count(key); }
+            void orInto(BitSet target) { index.orInto(key, target); }
+            boolean test(Book b) { return BookInventory.indexKey(getter.apply(b)).equals(key); }
+        });
+        return this;
+    }
+
+    private abstract static class Condition {
+        final String name;
+
+        Condition(String name) {
+            this.name = name;
+        }
+
+        abstract int estimate();
+
+        abstract void orInto(BitSet target);
+
+        abstract boolean test(Book b);
+    }
+
+    /** Matching books, produced lazily from the candidate bitmap; can be iterated more than once. */
+    public class Result implements Iterable<Book> {
+        private final BitSet candidates;
+        private final List<Condition> checks;
+        private final String plan;
+
+        private Result(BitSet candidates, List<Condition> checks, String plan) {
+            this.candidates = candidates;
+            this.checks = checks;
+            this.plan = plan;
+        }
+
+        /** How the query was executed, e.g. "drive shelf=1 (40), and category=religion (12), filter year 1990..2005". */
+        public String plan() {
+            return plan;
+        }
+
+        /** Upper bound on the number of results (candidates before the final checks). */
+        public int candidateCount() {
+            return candidates.cardinality();
+        }
+
+        @Override
+        public Iterator<Book> iterator() {
+            return new Iterator<Book>() {
+                private int doc = -1;
+                private Book next = advance();
+
+                private Book advance() {
+                    while ((doc = candidates.nextSetBit(doc + 1)) >= 0) {
+                        Book b = docs.get(doc);
+                        if (b != null && matches(b)) return b;
+                    }
+                    return null;
+                }
+
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                public Book next() {
+                    if (next == null) throw new NoSuchElementException();
+                    Book b = next;
+                    next = advance();
+                    return b;
+                }
+            };
+        }
+
+        public Stream<Book> stream() {
+            return StreamSupport.stream(spliterator(), false);
+        }
+
+        private boolean matches(Book b) {
+            for (Condition c : checks) {
+                if (!c.test(b)) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -1,26 +1,219 @@
 package service;
 
+import metrics.Metrics;
+import metrics.Timer;
 import model.Borrower;
+import util.PersistentMap;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Borrowers by id, kept in an immutable map that writers replace, so listings are O(1) snapshots.
+ * Secondary indexes: a name-ordered skip list (for sorted, paginated listing), a skip list of name
+ * words (for prefix search on any part of a name) and contact numbers reduced to their digits.
+ */
 public class BorrowerRegistry {
-    private Map<String, Borrower> borrowers = new HashMap<>();
+    private static final Timer ADD = Metrics.timer("registry.addBorrower");
+    private static final Timer ADD_BATCH = Metrics.timer("registry.registerBorrowers");
+    private static final Timer FIND_NAME = Metrics.timer("registry.findByNamePrefix");
+    private static final Timer FIND_CONTACT = Metrics.timer("registry.findByContact");
+    private static final Timer LIST = Metrics.timer("registry.listByName");
 
+    private final AtomicReference<PersistentMap<String, Borrower>> borrowers = new AtomicReference<>(PersistentMap.empty());
+    // keys are "<folded name or word>\0<id>", so equal names stay distinct and sort by id
+    private final ConcurrentSkipListMap<String, Borrower> byName = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Borrower> byNameWord = new ConcurrentSkipListMap<>();
+    private final Map<String, Set<Borrower>> byContact = new ConcurrentHashMap<>();
+    private List<LibraryListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(LibraryListener listener) {
+        listeners.add(listener);
+    }
+
+    /** Adds the borrower, replacing any borrower with the same id. */
     public void addBorrower(Borrower b) {
-        borrowers.put(b.id, b);
+        long t0 = ADD.start();
+        Borrower old = borrowers.getAndUpdate(m -> m.plus(b.id, b)).get(b.id);
+        if (old != null && old != b) unindex(old);
+        index(b);
+        for (LibraryListener l : listeners) l.borrowerAdded(b);
+        ADD.stop(t0);
+    }
+
+    /**
+     * Registers a batch of borrowers. Each is validated first (id and name present, id not repeated
+     * within the batch or already registered); the accepted ones are published in one update.
+     */
+    public BatchResult<Borrower> registerBorrowers(List<Borrower> list) {
+        long t0 = ADD_BATCH.start();
+        BatchResult<Borrower> result = new BatchResult<>(list.size());
+        Set<String> seen = new HashSet<>(Math.max(16, (int) (list.size() / 0.75f) + 1));
+        for (int i = 0; i < list.size(); i++) {
+            Borrower b = list.get(i);
+            if (b == null || b.id == null || b.id.trim().isEmpty()) result.fail(i, b, "missing ID");
+            else if (b.name == null) result.fail(i, b, "missing name");
+            else if (!seen.add(b.id)) result.fail(i, b, "ID repeated in batch");
+        }
+        List<Borrower> accepted = new ArrayList<>(seen.size());
+        while (true) {
+            PersistentMap<String, Borrower> current = borrowers.get();
+            accepted.clear();
+            PersistentMap.Builder<String, Borrower> next = current.toBuilder();
+            for (int i = 0; i < list.size(); i++) {
+                Borrower b = list.get(i);
+                if (result.failed(i) || current.containsKey(b.id)) continue;
+                next.put(b.id, b);
+                accepted.add(b);
+            }
+            if (borrowers.compareAndSet(current, next.build())) {
+                for (int i = 0; i < list.size(); i++) {
+                    if (result.failed(i)) continue;
+                    Borrower b = list.get(i);
+                    if (current.containsKey(b.id)) result.fail(i, b, "ID already registered");
+                    else result.succeed(i, b);
+                }
+                break;
+            }
+        }
+        for (Borrower b : accepted) index(b);
+        for (Borrower b : accepted) {
+            for (LibraryListener l : listeners) l.borrowerAdded(b);
+        }
+        ADD_BATCH.stop(t0);
+        return result;
+    }
+
+    public void bulkLoad(List<Borrower> list) {
+        registerBorrowers(list);
+    }
+
+    // all fine changes go through here so listeners (e.g. the journal) see them;
+    // the borrower's monitor keeps concurrent updates of one account in order
+    public void setFines(Borrower b, double fines) {
+        synchronized (b) {
+            b.fines = fines;
+            for (LibraryListener l : listeners) l.finesChanged(b);
+        }
+    }
+
+    public void addFine(Borrower b, double amount) {
+        synchronized (b) {
+            setFines(b, b.fines + amount);
+        }
     }
 
     public Borrower getBorrower(String id) {
-        return borrowers.get(id);
+        return borrowers.get().get(id);
+    }
+
+    /** Every borrower, as an immutable snapshot; cheap to take and safe to iterate during writes. */
+    public Collection<Borrower> getAllBorrowers() {
+        return borrowers.get().values();
+    }
+
+    public int size() {
+        return borrowers.get().size();
+    }
+
+    /** All borrowers in name order (case-insensitive, then id); a live, weakly consistent view. */
+    public Collection<Borrower> getBorrowersByName() {
+        return Collections.unmodifiableCollection(byName.values());
+    }
+
+    /** One page of borrowers in name order, together with the cursor of the next page. */
+    public static class Page {
+        public final List<Borrower> borrowers;
+        /** Pass to {@link #listByName} for the following page; null on the last page. */
+        public final String next;
+
+        Page(List<Borrower> borrowers, String next) {
+            this.borrowers = borrowers;
+            this.next = next;
+        }
+    }
+
+    /** Up to {@code limit} borrowers in name order, starting at {@code cursor} (null for the first page). */
+    public Page listByName(String cursor, int limit) {
+        long t0 = LIST.start();
+        try {
+            NavigableMap<String, Borrower> rest = cursor == null ? byName : byName.tailMap(cursor, true);
+            List<Borrower> page = new ArrayList<>(Math.min(limit, 64));
+            for (Map.Entry<String, Borrower> e : rest.entrySet()) {
+                if (page.size() == limit) return new Page(page, e.getKey());
+                page.add(e.getValue());
+            }
+            return new Page(page, null);
+        } finally {
+            LIST.stop(t0);
+        }
+    }
+
+    /** Borrowers with a name word starting with {@code prefix} (case-insensitive), in word order; at most {@code limit}. */
+    public List<Borrower> findByNamePrefix(String prefix, int limit) {
+        long t0 = FIND_NAME.start();
+        try {
+            String from = fold(prefix);
+            Set<Borrower> found = new LinkedHashSet<>();
+            if (from.isEmpty()) return new ArrayList<>();
+            for (Borrower b : byNameWord.subMap(from, true, from + '\uffff', false).values()) {
+                if (found.size() == limit) break;
+                found.add(b);
+            }
+            return new ArrayList<>(found);
+        } finally {
+            FIND_NAME.stop(t0);
+        }
+    }
+
+    /** Borrowers registered with this contact number; only digits are compared, so spacing and dashes don't matter. */
+    public List<Borrower> findByContact(String contact) {
+        long t0 = FIND_CONTACT.start();
+        Set<Borrower> found = byContact.get(digits(contact));
+        List<Borrower> result = found == null ? new ArrayList<>() : new ArrayList<>(found);
+        FIND_CONTACT.stop(t0);
+        return result;
+    }
+
+    private void index(Borrower b) {
+        String name = fold(b.name);
+        byName.put(name + '\0' + b.id, b);
+        for (String word : name.split("\\s+")) {
+            if (!word.isEmpty()) byNameWord.put(word + '\0' + b.id, b);
+        }
+        String phone = digits(b.contact);
+        if (!phone.isEmpty()) {
+            byContact.compute(phone, (k, set) -> {
+                if (set == null) set = ConcurrentHashMap.newKeySet();
+                set.add(b);
+                return set;
+            });
+        }
+    }
+
+    private void unindex(Borrower b) {
+        String name = fold(b.name);
+        byName.remove(name + '\0' + b.id, b);
+        for (String word : name.split("\\s+")) byNameWord.remove(word + '\0' + b.id, b);
+        byContact.computeIfPresent(digits(b.contact), (k, set) -> {
+            set.remove(b);
+            return set.isEmpty() ? null : set;
+        });
     }
 
-    public List<Borrower> getAllBorrowers() {
-        return new ArrayList<>(borrowers.values());
+    private static String fold(String s) {
+        return s == null ? "" : s.trim().toLowerCase(Locale.ROOT);
     }
 
-    public Borrower findBorrowerRecursive(List<Borrower> list, String id, int index) {
-        if (index >= list.size()) return null;
-        if (list.get(index).id.equals(id)) return list.get(index);
-        return findBorrowerRecursive(list, id, index + 1);
+    private static String digits(String s) {
+        if (s == null) return "";
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') sb.append(c);
+        }
+        return sb.toString();
     }
 }
@@ -0,0 +1,180 @@
+package service;
+
+import model.Book;
+import util.Isbn;
+import util.StringDictionary;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A read-only, column-wise copy of the catalogue for scans over many books (reports, exports,
+ * measurements), at a fraction of the memory of {@link Book} objects: authors, categories,
+ * publishers and shelves are int codes into per-field dictionaries, plain ISBNs are packed into a
+ * long ({@link Isbn}), year and copies share one int (the rare book whose year or copies do not
+ * fit 16 bits keeps them in a side table instead), and titles are UTF-8 bytes in one shared
+ * array (a String is made when one is asked for).
+ *
+ * Books are numbered 0..size-1 in the order given; {@link #indexOf} finds one by ISBN through an
+ * open-addressing table over the packed ISBNs.
+ */
+public class CompactCatalogue {
+    private final StringDictionary authors = new StringDictionary();
+    private final StringDictionary categories = new StringDictionary();
+    private final StringDictionary publishers = new StringDictionary();
+    private final StringDictionary shelves = new StringDictionary();
+    // title i is titleBytes[titleEnds[i - 1] .. titleEnds[i])
+    private byte[] titleBytes = new byte[1024];
+    private final int[] titleEnds;
+    private final long[] isbns;
+    private final int[] authorCodes, categoryCodes, publisherCodes, shelfCodes;
+    // year in the high 16 bits (signed), copies in the low 16
+    private final int[] numbers;
+    // {year, copies} of the books whose values do not pack into numbers
+    private final Map<Integer, int[]> wideNumbers = new HashMap<>();
+    // ISBNs that do not pack, by book and back
+    private final Map<Integer, String> textIsbns = new HashMap<>();
+    private final Map<String, Integer> textIsbnIndex = new HashMap<>();
+    // book index + 1 per slot (0 = empty), probed by packed ISBN
+    private final int[] slots;
+
+    private CompactCatalogue(int n) {
+        titleEnds = new int[n];
+        isbns = new long[n];
+        authorCodes = new int[n];
+        categoryCodes = new int[n];
+        publisherCodes = new int[n];
+        shelfCodes = new int[n];
+        numbers = new int[n];
+        slots = new int[Integer.highestOneBit(Math.max(2, n) * 2 - 1) * 2];
+    }
+
+    /** A compact copy of {@code books}. */
+    public static CompactCatalogue of(Collection<Book> books) {
+        CompactCatalogue c = new CompactCatalogue(books.size());
+        int i = 0;
+        for (Book b : books) c.set(i++, b);
+        c.titleBytes = Arrays.copyOf(c.titleBytes, i == 0 ? 0 : c.titleEnds[i - 1]);
+        return c;
+    }
+
+    private void set(int i, Book b) {
+        byte[] title = b.title.getBytes(StandardCharsets.UTF_8);
+        int from = i == 0 ? 0 : titleEnds[i - 1];
+        if (from + title.length > titleBytes.length) {
+            titleBytes = Arrays.copyOf(titleBytes, Math.max(titleBytes.length * 2, from + title.length));
+        }
+        System.arraycopy(title, 0, titleBytes, from, title.length);
+        titleEnds[i] = from + title.length;
+        authorCodes[i] = authors.intern(b.author);
+        categoryCodes[i] = categories.intern(b.category);
+        publisherCodes[i] = publishers.intern(b.publisher);
+        shelfCodes[i] = shelves.intern(b.shelfLocation);
+        int copies = b.copies;
+        if (b.year == (short) b.year && copies >= 0 && copies <= 0xFFFF) numbers[i] = b.year << 16 | copies;
+        else wideNumbers.put(i, new int[]{b.year, copies});
+        long packed = Isbn.pack(b.isbn);
+        isbns[i] = packed;
+        if (packed == Isbn.NONE) {
+            textIsbns.put(i, b.isbn);
+            textIsbnIndex.putIfAbsent(b.isbn, i);
+            return;
+        }
+        int mask = slots.length - 1;
+        for (int s = slot(packed, mask); ; s = (s + 1) & mask) {
+            if (slots[s] == 0) {
+                slots[s] = i + 1;
+                return;
+            }
+            // a repeated ISBN finds its first book
+            if (isbns[slots[s] - 1] == packed) return;
+        }
+    }
+
+    public int size() {
+        return titleEnds.length;
+    }
+
+    /** The index of the book with {@code isbn}, or -1. */
+    public int indexOf(String isbn) {
+        long packed = Isbn.pack(isbn);
+        if (packed == Isbn.NONE) {
+            Integer i = textIsbnIndex.get(isbn);
+            return i == null ? -1 : i;
+        }
+        int mask = slots.length - 1;
+        for (int s = slot(packed, mask); slots[s] != 0; s = (s + 1) & mask) {
+            if (isbns[slots[s] - 1] == packed) return slots[s] - 1;
+        }
+        return -1;
+    }
+
+    public String isbn(int i) {
+        long packed = isbns[i];
+        return packed == Isbn.NONE ? textIsbns.get(i) : Isbn.unpack(packed);
+    }
+
+    public String title(int i) {
+        int from = i == 0 ? 0 : titleEnds[i - 1];
+        return new String(titleBytes, from, titleEnds[i] - from, StandardCharsets.UTF_8);
+    }
+
+    public String author(int i) {
+        return authors.value(authorCodes[i]);
+    }
+
+    public int categoryCode(int i) {
+        return categoryCodes[i];
+    }
+
+    public String category(int i) {
+        return categories.value(categoryCodes[i]);
+    }
+
+    /** Number of distinct categories; codes run from 0 to this minus one. */
+    public int categoryCount() {
+        return categories.size();
+    }
+
+    /** The category with {@code code}, as returned by {@link #categoryCode}. */
+    public String categoryName(int code) {
+        return categories.value(code);
+    }
+
+    public String publisher(int i) {
+        return publishers.value(publisherCodes[i]);
+    }
+
+    public String shelfLocation(int i) {
+        return shelves.value(shelfCodes[i]);
+    }
+
+    public int year(int i) {
+        int[] wide = wideNumbers.isEmpty() ? null : wideNumbers.get(i);
+        return wide != null ? wide[0] : numbers[i] >> 16;
+    }
+
+    public int copies(int i) {
+        int[] wide = wideNumbers.isEmpty() ? null : wideNumbers.get(i);
+        return wide != null ? wide[1] : numbers[i] & 0xFFFF;
+    }
+
+    /** Book {@code i} as a new {@link Book}. */
+    public Book get(int i) {
+        Book b = new Book(title(i), author(i), isbn(i), category(i), year(i), publisher(i), shelfLocation(i));
+        b.copies = copies(i);
+        return b;
+    }
+
+    /** Bytes held by the columns, the titles and the ISBN table; the small per-field dictionaries are left out. */
+    public long footprintBytes() {
+        return titleEnds.length * (8L + 4 * 4 + 4 + 4) + titleBytes.length + slots.length * 4L;
+    }
+
+    private static int slot(long packed, int mask) {
+        long h = packed * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
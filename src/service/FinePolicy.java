@@ -0,0 +1,47 @@
+package service;
+
+/**
+ * How overdue fines accrue: after {@code graceDays} past the due date a loan accrues
+ * {@code dailyRate} per day, up to {@code maxPerLoan} (0 = no cap).
+ */
+public class FinePolicy {
+    public static final FinePolicy DEFAULT = new FinePolicy(14, 0.50, 20.00);
+
+    public final int graceDays;
+    public final double dailyRate;
+    public final double maxPerLoan;
+
+    public FinePolicy(int graceDays, double dailyRate, double maxPerLoan) {
+        if (graceDays < 0 || dailyRate < 0 || maxPerLoan < 0) throw new IllegalArgumentException("negative fine policy value");
+        this.graceDays = graceDays;
+        this.dailyRate = dailyRate;
+        this.maxPerLoan = maxPerLoan;
+    }
+
+    /** DEFAULT overridden by -Dlibrary.fine.graceDays / .dailyRate / .maxPerLoan when set. */
+    public static FinePolicy fromSystemProperties() {
+        return new FinePolicy(
+                Integer.getInteger("library.fine.graceDays", DEFAULT.graceDays),
+                Double.parseDouble(System.getProperty("library.fine.dailyRate", String.valueOf(DEFAULT.dailyRate))),
+                Double.parseDouble(System.getProperty("library.fine.maxPerLoan", String.valueOf(DEFAULT.maxPerLoan))));
+    }
+
+    /** Total fine owed for a loan due on epoch day {@code dueDay} as of epoch day {@code day}. */
+    public double fineAt(long dueDay, long day) {
+        long days = day - (dueDay + graceDays);
+        if (days <= 0) return 0;
+        double fine = days * dailyRate;
+        return maxPerLoan > 0 ? Math.min(fine, maxPerLoan) : fine;
+    }
+
+    /** Last day on which the fine still grows linearly, or Long.MAX_VALUE when uncapped. */
+    long lastLinearDay(long dueDay) {
+        if (maxPerLoan <= 0 || dailyRate <= 0) return dailyRate <= 0 ? dueDay + graceDays : Long.MAX_VALUE;
+        return dueDay + graceDays + (long) Math.floor(maxPerLoan / dailyRate);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d grace days, %.2f/day, max %.2f per loan", graceDays, dailyRate, maxPerLoan);
+    }
+}
@@ -0,0 +1,78 @@
+package service;
+
+import model.Hold;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * One ISBN's holds: borrowers still waiting, in the order they asked, and those a copy has been set
+ * aside for. Both are keyed by borrower id, so placing, cancelling and promoting the next waiter
+ * are O(1) however long the queue is. Guarded by the ISBN's lock in {@link LendingTracker}.
+ */
+final class HoldQueue {
+    private final LinkedHashMap<String, Hold> waiting = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Hold> ready = new LinkedHashMap<>();
+
+    Hold get(String borrowerId) {
+        Hold h = ready.get(borrowerId);
+        return h != null ? h : waiting.get(borrowerId);
+    }
+
+    void add(Hold h) {
+        (h.ready ? ready : waiting).put(h.borrowerId, h);
+    }
+
+    Hold remove(String borrowerId) {
+        Hold h = ready.remove(borrowerId);
+        return h != null ? h : waiting.remove(borrowerId);
+    }
+
+    boolean isReadyFor(String borrowerId) {
+        return ready.containsKey(borrowerId);
+    }
+
+    int readyCount() {
+        return ready.size();
+    }
+
+    int waitingCount() {
+        return waiting.size();
+    }
+
+    boolean isEmpty() {
+        return ready.isEmpty() && waiting.isEmpty();
+    }
+
+    /** Sets a copy aside for the longest-waiting borrower; null if nobody is waiting. */
+    Hold promoteNext() {
+        Iterator<Hold> it = waiting.values().iterator();
+        if (!it.hasNext()) return null;
+        Hold h = it.next();
+        it.remove();
+        h.ready = true;
+        ready.put(h.borrowerId, h);
+        return h;
+    }
+
+    /** 0 if a copy is ready for the borrower, else their 1-based place in the queue; -1 if they hold nothing. */
+    int position(String borrowerId) {
+        if (ready.containsKey(borrowerId)) return 0;
+        if (!waiting.containsKey(borrowerId)) return -1;
+        int pos = 1;
+        for (String id : waiting.keySet()) {
+            if (id.equals(borrowerId)) break;
+            pos++;
+        }
+        return pos;
+    }
+
+    /** Ready holds first, then the waiting ones in queue order. */
+    List<Hold> snapshot() {
+        List<Hold> out = new ArrayList<>(ready.size() + waiting.size());
+        out.addAll(ready.values());
+        out.addAll(waiting.values());
+        return out;
+    }
+}
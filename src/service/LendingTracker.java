@@ -1,25 +1,496 @@
 package service;
 
+import metrics.Counter;
+import metrics.Metrics;
+import metrics.Timer;
+import model.Book;
+import model.Borrower;
+import model.Hold;
 import model.Transaction;
+import util.StripedLock;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjIntConsumer;
 
+/**
+ * Open loans, holds and loan history. Borrow and return lock only the ISBN's stripe, so no more
+ * copies than the book has can be lent while desks working on different books proceed in parallel.
+ * History (every loan, open or returned) lives in a columnar {@link LoanHistory}; only open loans
+ * are kept as objects.
+ *
+ * Availability is the book's copies minus its open loans and the copies set aside for holds, all
+ * counted per ISBN, so it is O(1). When a copy comes back (or a hold is cancelled, or copies are
+ * added) it is set aside for the longest-waiting hold under the same lock, before anyone else can take it.
+ */
 public class LendingTracker {
-    private Queue<Transaction> transactions = new LinkedList<>();
+    private static final Timer BORROW = Metrics.timer("lending.borrow");
+    private static final Timer RETURN = Metrics.timer("lending.return");
+    private static final Timer BORROW_BATCH = Metrics.timer("lending.borrowMany");
+    private static final Timer RETURN_BATCH = Metrics.timer("lending.returnMany");
+    private static final Counter UNAVAILABLE = Metrics.counter("lending.rejectedUnavailable");
 
-    public void borrowBook(Transaction t) {
-        transactions.add(t);
+    private final BookInventory inventory;
+    private final BorrowerRegistry registry;
+    private final StripedLock locks = new StripedLock();
+
+    // open loans, indexed by (isbn, borrowerId), by ISBN and by borrower
+    private Map<String, Deque<Transaction>> openByLoan = new ConcurrentHashMap<>();
+    // oldest first; only touched under the ISBN's lock
+    private Map<String, Deque<Transaction>> openByIsbn = new ConcurrentHashMap<>();
+    private Map<String, Set<Transaction>> openByBorrower = new ConcurrentHashMap<>();
+    private final AtomicInteger openCount = new AtomicInteger();
+    // every loan in recording order; open loans remember their row so returning can set its bit
+    private final LoanHistory history = LoanHistory.fromSystemProperties();
+    private final Map<Transaction, Integer> openRows = new ConcurrentHashMap<>();
+    // holds by ISBN (only touched under the ISBN's lock) and by borrower
+    private final Map<String, HoldQueue> holds = new ConcurrentHashMap<>();
+    private final Map<String, Set<Hold>> holdsByBorrower = new ConcurrentHashMap<>();
+    private List<LibraryListener> listeners = new CopyOnWriteArrayList<>();
+
+    public LendingTracker(BookInventory inventory, BorrowerRegistry registry) {
+        this.inventory = inventory;
+        this.registry = registry;
+        // a book (re-)added, or given more copies, may satisfy waiting holds; replay takes the same path
+        inventory.addListener(new LibraryListener() {
+            @Override
+            public void bookAdded(Book book) {
+                copiesChanged(book);
+            }
+
+            @Override
+            public void copiesChanged(Book book) {
+                ReentrantLock lock = locks.get(book.isbn);
+                lock.lock();
+                try {
+                    assignCopies(book.isbn);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    public void addListener(LibraryListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Opens the loan if a copy is free, or one is set aside for this borrower; the check and the
+     * insert are atomic. A hold the borrower had on the ISBN is fulfilled by the loan.
+     */
+    public boolean borrowBook(Transaction t) {
+        long t0 = BORROW.start();
+        ReentrantLock lock = locks.get(t.isbn);
+        lock.lock();
+        try {
+            if (!t.returned && !canLend(t.isbn, t.borrowerId)) {
+                UNAVAILABLE.increment();
+                return false;
+            }
+            record(t);
+            return true;
+        } finally {
+            lock.unlock();
+            BORROW.stop(t0);
+        }
+    }
+
+    /** Records a loan as-is, without the availability check (history being loaded or replayed). */
+    public void restore(Transaction t) {
+        ReentrantLock lock = locks.get(t.isbn);
+        lock.lock();
+        try {
+            record(t);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a batch of loaded history in file order. */
+    public void bulkLoad(List<Transaction> history) {
+        for (Transaction t : history) restore(t);
+    }
+
+    /**
+     * Starts history from {@code archive} (see {@link LoanHistory#attachArchive}), then records
+     * {@code openLoans}, which sit in the archive at {@code rows}, as open loans. The rest of the
+     * archive stays on disk; listeners hear only of the open loans.
+     */
+    public void attachArchive(LoanHistory.Archive archive, List<Transaction> openLoans, int[] rows) {
+        if (openLoans.size() != rows.length) throw new IllegalArgumentException("one row per open loan");
+        history.attachArchive(archive, rows);
+        for (int i = 0; i < rows.length; i++) {
+            Transaction t = openLoans.get(i);
+            if (t.returned) throw new IllegalArgumentException("archived loan at row " + rows[i] + " is not open");
+            ReentrantLock lock = locks.get(t.isbn);
+            lock.lock();
+            try {
+                record(t, rows[i]);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // caller holds the ISBN's lock
+    private void record(Transaction t) {
+        record(t, history.append(t));
+    }
+
+    private void record(Transaction t, int row) {
+        if (t.returned) {
+            // already-closed history (e.g. loaded from disk) only needs its row
+            for (LibraryListener l : listeners) l.loanOpened(t);
+            return;
+        }
+        openRows.put(t, row);
+        Hold hold = removeHold(t.isbn, t.borrowerId);
+        openByLoan.computeIfAbsent(loanKey(t.isbn, t.borrowerId), k -> new ArrayDeque<>(1)).addLast(t);
+        openByIsbn.computeIfAbsent(t.isbn, k -> new ArrayDeque<>(1)).addLast(t);
+        // compute(), not computeIfAbsent().add(): a concurrent return may be removing the emptied set
+        openByBorrower.compute(t.borrowerId, (k, held) -> {
+            if (held == null) held = ConcurrentHashMap.newKeySet();
+            held.add(t);
+            return held;
+        });
+        openCount.incrementAndGet();
+        Borrower br = registry.getBorrower(t.borrowerId);
+        Book book = inventory.searchByISBN(t.isbn);
+        if (br != null && book != null) {
+            synchronized (br) { br.borrowedBooks.add(book); }
+        }
+        for (LibraryListener l : listeners) l.loanOpened(t);
+        // a waiting holder who got a free copy directly may leave a copy free for the next in line
+        if (hold != null && !hold.ready) assignCopies(t.isbn);
+    }
+
+    /** Closes the oldest open loan of {@code isbn} by {@code borrowerId}; returns it, or null if none was open. */
+    public Transaction returnBook(String isbn, String borrowerId) {
+        long t0 = RETURN.start();
+        ReentrantLock lock = locks.get(isbn);
+        lock.lock();
+        try {
+            String key = loanKey(isbn, borrowerId);
+            Deque<Transaction> loans = openByLoan.get(key);
+            if (loans == null) return null;
+            Transaction t = loans.pollFirst();
+            if (loans.isEmpty()) openByLoan.remove(key);
+            openByIsbn.computeIfPresent(isbn, (k, open) -> {
+                open.remove(t);
+                return open.isEmpty() ? null : open;
+            });
+            openByBorrower.computeIfPresent(borrowerId, (k, held) -> {
+                held.remove(t);
+                return held.isEmpty() ? null : held;
+            });
+            openCount.decrementAndGet();
+            t.returned = true;
+            history.markReturned(openRows.remove(t));
+            Borrower br = registry.getBorrower(borrowerId);
+            if (br != null) {
+                synchronized (br) {
+                    for (Iterator<Book> it = br.borrowedBooks.iterator(); it.hasNext(); ) {
+                        if (it.next().isbn.equals(isbn)) { it.remove(); break; }
+                    }
+                }
+            }
+            for (LibraryListener l : listeners) l.loanClosed(t);
+            assignCopies(isbn);
+            return t;
+        } finally {
+            lock.unlock();
+            RETURN.stop(t0);
+        }
+    }
+
+    // ---------- copies and holds ----------
+
+    /** Copies of {@code isbn} on the shelf and not set aside for a hold. */
+    public int copiesAvailable(String isbn) {
+        ReentrantLock lock = locks.get(isbn);
+        lock.lock();
+        try {
+            return available(isbn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the borrower for {@code isbn}; if a copy is free and nobody is ahead, it is set aside at
+     * once. Returns the hold, or null if the borrower already holds or has borrowed this ISBN.
+     */
+    public Hold placeHold(String isbn, String borrowerId, LocalDate day) {
+        ReentrantLock lock = locks.get(isbn);
+        lock.lock();
+        try {
+            HoldQueue queue = holds.computeIfAbsent(isbn, k -> new HoldQueue());
+            if (queue.get(borrowerId) != null || openByLoan.containsKey(loanKey(isbn, borrowerId))) {
+                if (queue.isEmpty()) holds.remove(isbn);
+                return null;
+            }
+            Hold h = new Hold(isbn, borrowerId, day);
+            queue.add(h);
+            holdsByBorrower.compute(borrowerId, (k, set) -> {
+                if (set == null) set = ConcurrentHashMap.newKeySet();
+                set.add(h);
+                return set;
+            });
+            for (LibraryListener l : listeners) l.holdPlaced(h);
+            assignCopies(isbn);
+            return h;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Withdraws the borrower's hold; a copy that was set aside for them passes to the next in line. */
+    public boolean cancelHold(String isbn, String borrowerId) {
+        ReentrantLock lock = locks.get(isbn);
+        lock.lock();
+        try {
+            Hold h = removeHold(isbn, borrowerId);
+            if (h == null) return false;
+            for (LibraryListener l : listeners) l.holdCancelled(h);
+            assignCopies(isbn);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 0 if a copy is ready for the borrower, else their 1-based place in the queue; -1 if they hold nothing. */
+    public int holdPosition(String isbn, String borrowerId) {
+        ReentrantLock lock = locks.get(isbn);
+        lock.lock();
+        try {
+            HoldQueue queue = holds.get(isbn);
+            return queue == null ? -1 : queue.position(borrowerId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int waitingCount(String isbn) {
+        ReentrantLock lock = locks.get(isbn);
+        lock.lock();
+        try {
+            HoldQueue queue = holds.get(isbn);
+            return queue == null ? 0 : queue.waitingCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The ISBN's holds, ready ones first, then the waiting ones in queue order (a snapshot). */
+    public List<Hold> getHolds(String isbn) {
+        ReentrantLock lock = locks.get(isbn);
+        lock.lock();
+        try {
+            HoldQueue queue = holds.get(isbn);
+            return queue == null ? new ArrayList<>() : queue.snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Holds the borrower has placed (a snapshot). */
+    public Collection<Hold> getHoldsOf(String borrowerId) {
+        Set<Hold> held = holdsByBorrower.get(borrowerId);
+        return held == null ? Collections.emptySet() : new ArrayList<>(held);
+    }
+
+    /** Every hold, each ISBN's in queue order, for snapshots. */
+    public List<Hold> getAllHolds() {
+        List<Hold> out = new ArrayList<>();
+        for (String isbn : holds.keySet()) out.addAll(getHolds(isbn));
+        return out;
     }
 
-    public void returnBook(String isbn, String borrowerId) {
-        for (Transaction t : transactions) {
-            if (t.isbn.equals(isbn) && t.borrowerId.equals(borrowerId) && !t.returned) {
-                t.returned = true;
-                break;
+    /**
+     * Restores saved holds as they were (ready or waiting, in order), without events, then sets
+     * aside any copy that is free while someone waits (a snapshot may predate the set-aside).
+     */
+    public void bulkLoadHolds(List<Hold> saved) {
+        Set<String> isbns = new LinkedHashSet<>();
+        for (Hold h : saved) {
+            isbns.add(h.isbn);
+            ReentrantLock lock = locks.get(h.isbn);
+            lock.lock();
+            try {
+                HoldQueue queue = holds.computeIfAbsent(h.isbn, k -> new HoldQueue());
+                if (queue.get(h.borrowerId) != null) continue;
+                queue.add(h);
+                holdsByBorrower.computeIfAbsent(h.borrowerId, k -> ConcurrentHashMap.newKeySet()).add(h);
+            } finally {
+                lock.unlock();
+            }
+        }
+        for (String isbn : isbns) {
+            ReentrantLock lock = locks.get(isbn);
+            lock.lock();
+            try {
+                assignCopies(isbn);
+            } finally {
+                lock.unlock();
             }
         }
     }
 
+    // caller holds the ISBN's lock
+    private boolean canLend(String isbn, String borrowerId) {
+        HoldQueue queue = holds.get(isbn);
+        return (queue != null && queue.isReadyFor(borrowerId)) || available(isbn) > 0;
+    }
+
+    // caller holds the ISBN's lock; a book not (or no longer) in the catalogue has no copy to lend
+    private int available(String isbn) {
+        Book book = inventory.searchByISBN(isbn);
+        if (book == null) return 0;
+        Deque<Transaction> out = openByIsbn.get(isbn);
+        HoldQueue queue = holds.get(isbn);
+        int free = book.copies - (out == null ? 0 : out.size()) - (queue == null ? 0 : queue.readyCount());
+        return Math.max(0, free);
+    }
+
+    // caller holds the ISBN's lock: sets free copies aside for the longest-waiting holds
+    private void assignCopies(String isbn) {
+        HoldQueue queue = holds.get(isbn);
+        if (queue == null) return;
+        for (int free = available(isbn); free > 0; free--) {
+            Hold h = queue.promoteNext();
+            if (h == null) break;
+            for (LibraryListener l : listeners) l.holdReady(h);
+        }
+    }
+
+    // caller holds the ISBN's lock
+    private Hold removeHold(String isbn, String borrowerId) {
+        HoldQueue queue = holds.get(isbn);
+        if (queue == null) return null;
+        Hold h = queue.remove(borrowerId);
+        if (h == null) return null;
+        if (queue.isEmpty()) holds.remove(isbn);
+        holdsByBorrower.computeIfPresent(borrowerId, (k, set) -> {
+            set.remove(h);
+            return set.isEmpty() ? null : set;
+        });
+        return h;
+    }
+
+    /**
+     * Opens a batch of loans. Each loan is validated first (known book and borrower); the rest are
+     * applied in order with all their ISBN stripes held, and a loan for which no copy is free (or
+     * set aside for that borrower) is rejected.
+     */
+    public BatchResult<Transaction> borrowMany(List<Transaction> loans) {
+        long t0 = BORROW_BATCH.start();
+        BatchResult<Transaction> result = new BatchResult<>(loans.size());
+        Set<String> isbns = new HashSet<>(Math.max(16, (int) (loans.size() / 0.75f) + 1));
+        for (int i = 0; i < loans.size(); i++) {
+            Transaction t = loans.get(i);
+            if (t == null || t.isbn == null || t.borrowerId == null || t.borrowDate == null || t.returnDate == null) result.fail(i, t, "incomplete loan");
+            else if (!inventory.containsISBN(t.isbn)) result.fail(i, t, "unknown ISBN");
+            else if (registry.getBorrower(t.borrowerId) == null) result.fail(i, t, "unknown borrower");
+            else isbns.add(t.isbn);
+        }
+        List<ReentrantLock> held = locks.lockAll(isbns);
+        try {
+            for (int i = 0; i < loans.size(); i++) {
+                if (result.failed(i)) continue;
+                Transaction t = loans.get(i);
+                if (!canLend(t.isbn, t.borrowerId)) {
+                    result.fail(i, t, "no copy available");
+                } else {
+                    record(t);
+                    result.succeed(i, t);
+                }
+            }
+        } finally {
+            StripedLock.unlockAll(held);
+        }
+        BORROW_BATCH.stop(t0);
+        return result;
+    }
+
+    /**
+     * Checks in a batch of returned books by ISBN (a returns bin), closing each ISBN's oldest open
+     * loan; an ISBN listed more often than it has open loans is rejected for the extra entries.
+     */
+    public BatchResult<String> returnMany(List<String> isbns) {
+        long t0 = RETURN_BATCH.start();
+        BatchResult<String> result = new BatchResult<>(isbns.size());
+        Set<String> keys = new HashSet<>(Math.max(16, (int) (isbns.size() / 0.75f) + 1));
+        for (int i = 0; i < isbns.size(); i++) {
+            String isbn = isbns.get(i);
+            if (isbn == null || isbn.isEmpty()) result.fail(i, isbn, "missing ISBN");
+            else keys.add(isbn);
+        }
+        List<ReentrantLock> held = locks.lockAll(keys);
+        try {
+            for (int i = 0; i < isbns.size(); i++) {
+                if (result.failed(i)) continue;
+                String isbn = isbns.get(i);
+                Deque<Transaction> open = openByIsbn.get(isbn);
+                if (open == null || open.isEmpty()) {
+                    result.fail(i, isbn, "not on loan");
+                } else {
+                    returnBook(isbn, open.peekFirst().borrowerId);
+                    result.succeed(i, isbn);
+                }
+            }
+        } finally {
+            StripedLock.unlockAll(held);
+        }
+        RETURN_BATCH.stop(t0);
+        return result;
+    }
+
+    public boolean isOnLoan(String isbn) {
+        return openByIsbn.containsKey(isbn);
+    }
+
+    public Transaction findOpenLoan(String isbn, String borrowerId) {
+        ReentrantLock lock = locks.get(isbn);
+        lock.lock();
+        try {
+            Deque<Transaction> loans = openByLoan.get(loanKey(isbn, borrowerId));
+            return loans == null ? null : loans.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Loans the borrower currently has out (a snapshot). */
+    public Collection<Transaction> getOpenLoans(String borrowerId) {
+        Set<Transaction> held = openByBorrower.get(borrowerId);
+        return held == null ? Collections.emptySet() : new ArrayList<>(held);
+    }
+
+    public int openLoanCount() {
+        return openCount.get();
+    }
+
+    /** Calls {@code action} with each open loan and its history row, in no particular order. */
+    public void forEachOpenLoan(ObjIntConsumer<Transaction> action) {
+        openRows.forEach((t, row) -> action.accept(t, row));
+    }
+
+    /** The columnar loan history, for scans that should not materialise {@link Transaction}s. */
+    public LoanHistory getHistory() {
+        return history;
+    }
+
+    /** Full history in recording order, as an O(1) read-only view (see {@link LoanHistory#view()}). */
     public List<Transaction> getAllTransactions() {
-        return new ArrayList<>(transactions);
+        return history.view();
+    }
+
+    private static String loanKey(String isbn, String borrowerId) {
+        return isbn + '\u0000' + borrowerId;
     }
 }
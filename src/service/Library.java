@@ -0,0 +1,56 @@
+package service;
+
+import metrics.Metrics;
+import model.Transaction;
+import java.time.LocalDate;
+
+/**
+ * One library's services, wired together. Every service is thread-safe, so a single instance can
+ * be shared by any number of circulation desks (threads) in the same process.
+ */
+public class Library {
+    public final BookInventory inventory = new BookInventory();
+    public final BorrowerRegistry registry = new BorrowerRegistry();
+    public final LendingTracker lending = new LendingTracker(inventory, registry);
+    public final OverdueManager overdue;
+    public final ReportAggregates reports = new ReportAggregates();
+    public final QueryCache cache = QueryCache.fromSystemProperties(inventory, reports);
+
+    public Library() {
+        this(FinePolicy.DEFAULT);
+    }
+
+    public Library(FinePolicy finePolicy) {
+        overdue = new OverdueManager(registry, finePolicy);
+        lending.addListener(overdue);
+        lending.addListener(reports);
+        registry.addListener(reports);
+        // after the aggregates, so cached rankings are re-checked against updated counts
+        inventory.addListener(cache);
+        lending.addListener(cache);
+        registry.addListener(cache);
+    }
+
+    /** Publishes this library's sizes as gauges; the gauges follow whichever library registered last. */
+    public void registerMetrics() {
+        Runtime rt = Runtime.getRuntime();
+        Metrics.gauge("inventory.books", inventory::size);
+        Metrics.gauge("registry.borrowers", registry::size);
+        Metrics.gauge("lending.openLoans", lending::openLoanCount);
+        Metrics.gauge("history.rows", () -> lending.getHistory().size());
+        Metrics.gauge("history.archivedRows", () -> lending.getHistory().archivedRows());
+        Metrics.gauge("history.bytes", () -> lending.getHistory().footprintBytes());
+        Metrics.gauge("jvm.heapUsedBytes", () -> rt.totalMemory() - rt.freeMemory());
+        Metrics.gauge("jvm.heapMaxBytes", rt::maxMemory);
+    }
+
+    /** Lends {@code isbn} to {@code borrowerId} for {@code days}; returns null if the book is already out. */
+    public Transaction borrow(String isbn, String borrowerId, LocalDate from, int days) {
+        Transaction t = new Transaction(isbn, borrowerId, from, from.plusDays(days));
+        return lending.borrowBook(t) ? t : null;
+    }
+
+    public Transaction giveBack(String isbn, String borrowerId) {
+        return lending.returnBook(isbn, borrowerId);
+    }
+}
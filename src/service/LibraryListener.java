@@ -0,0 +1,40 @@
+package service;
+
+import model.Book;
+import model.Borrower;
+import model.Hold;
+import model.Transaction;
+
+import java.time.LocalDate;
+
+/**
+ * Callback for every successful mutation of the library services. Listeners are invoked
+ * synchronously, after the service state has been updated, on the mutating thread.
+ */
+public interface LibraryListener {
+    default void bookAdded(Book book) {}
+
+    default void bookRemoved(Book book) {}
+
+    /** The number of copies the library owns of {@code book} changed; the book is updated in place. */
+    default void copiesChanged(Book book) {}
+
+    default void borrowerAdded(Borrower borrower) {}
+
+    default void finesChanged(Borrower borrower) {}
+
+    default void loanOpened(Transaction t) {}
+
+    default void loanClosed(Transaction t) {}
+
+    default void holdPlaced(Hold hold) {}
+
+    /** The borrower withdrew the hold; holds ending in a loan are not reported here. */
+    default void holdCancelled(Hold hold) {}
+
+    /** A copy was set aside for the hold's borrower (a consequence of another event, so not journaled). */
+    default void holdReady(Hold hold) {}
+
+    /** The overdue engine accrued fines up to {@code day}. */
+    default void overdueRun(LocalDate day) {}
+}
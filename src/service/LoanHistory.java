@@ -0,0 +1,457 @@
+package service;
+
+import metrics.Counter;
+import metrics.Metrics;
+import model.Transaction;
+import util.IntColumn;
+import util.StringDictionary;
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Every loan ever recorded, stored column-wise: ISBNs and borrower ids are interned to int codes,
+ * dates are epoch-day ints and the returned flags are a bitset, so a row costs about 16 bytes
+ * instead of a {@link Transaction} with its strings and dates. Columns can be kept off-heap
+ * ({@code -Dlibrary.history.offHeap=true}).
+ *
+ * Rows are appended in the order loans are recorded and never removed; returning a loan only sets
+ * its bit. Scans go through a {@link Cursor}, which reads the columns in place.
+ *
+ * History may instead start from an {@link Archive}: rows [0, {@link #archivedRows()}) then stay on
+ * disk and are paged in when a cursor or lookup reaches them, with only the last few pages kept.
+ * The archive's sparse index lets ISBN, borrower and date-range cursors skip pages that cannot
+ * match. Returning an archived loan sets a bit in an in-memory overlay.
+ */
+public class LoanHistory {
+    /** Loan history kept on disk in pages of consecutive rows, each with a sparse index. */
+    public interface Archive {
+        int rows();
+
+        int pageCount();
+
+        /** First row of {@code page}; pages are consecutive, in row order, starting at row 0. */
+        int pageStart(int page);
+
+        /** False only if no loan in the page is of {@code isbn}. */
+        boolean mayContainIsbn(int page, String isbn);
+
+        /** False only if no loan in the page is by {@code borrowerId}. */
+        boolean mayContainBorrower(int page, String borrowerId);
+
+        int minBorrowDay(int page);
+
+        int maxBorrowDay(int page);
+
+        /**
+         * The page's loans in row order. Returned flags are as last saved, so may be ahead of the
+         * history's start but never behind it. I/O failures are unchecked.
+         */
+        List<Transaction> read(int page);
+    }
+
+    static final int CACHED_PAGES = 4;
+    private static final Counter PAGES_READ = Metrics.counter("history.pagesRead");
+
+    private final StringDictionary isbns = new StringDictionary();
+    private final StringDictionary borrowers = new StringDictionary();
+    private final IntColumn isbnCodes;
+    private final IntColumn borrowerCodes;
+    private final IntColumn borrowDays;
+    private final IntColumn dueDays;
+    private final IntColumn returnedBits;
+    // total rows, archived ones included; in-memory row r is column index r - archived
+    private volatile int size;
+
+    // set once by attachArchive, before any row is appended
+    private Archive archive;
+    private int archived;
+    private int[] pageStarts = new int[0];
+    private AtomicLongArray archivedReturned = new AtomicLongArray(0);
+    // sorted rows that were open when the archive was attached, and so were loaded as loans
+    private int[] loadedOpen = new int[0];
+    private final Map<Integer, Page> pages = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    /** One archived page, decoded to codes like the in-memory columns. */
+    private static final class Page {
+        final int start;
+        final int[] isbn, borrower, borrowDay, dueDay;
+        final BitSet returned;
+
+        Page(int start, int n) {
+            this.start = start;
+            isbn = new int[n];
+            borrower = new int[n];
+            borrowDay = new int[n];
+            dueDay = new int[n];
+            returned = new BitSet(n);
+        }
+
+        int end() {
+            return start + isbn.length;
+        }
+    }
+
+    public LoanHistory(boolean offHeap) {
+        isbnCodes = new IntColumn(offHeap);
+        borrowerCodes = new IntColumn(offHeap);
+        borrowDays = new IntColumn(offHeap);
+        dueDays = new IntColumn(offHeap);
+        returnedBits = new IntColumn(offHeap);
+    }
+
+    public static LoanHistory fromSystemProperties() {
+        return new LoanHistory(Boolean.getBoolean("library.history.offHeap"));
+    }
+
+    /**
+     * Starts this (empty) history from {@code archive}; {@code openRows} are the archived rows
+     * loaded as open loans, which {@link #archivedCursor()} leaves out.
+     */
+    public synchronized void attachArchive(Archive archive, int[] openRows) {
+        if (size != 0) throw new IllegalStateException("history already has " + size + " rows");
+        int n = archive.pageCount();
+        int[] starts = new int[n];
+        for (int p = 0; p < n; p++) starts[p] = archive.pageStart(p);
+        this.pageStarts = starts;
+        this.archivedReturned = new AtomicLongArray((archive.rows() + 63) / 64);
+        this.loadedOpen = openRows.clone();
+        Arrays.sort(loadedOpen);
+        this.archive = archive;
+        this.archived = archive.rows();
+        size = archived;
+    }
+
+    /** Appends the loan and returns its row number. */
+    public synchronized int append(Transaction t) {
+        int row = size;
+        int local = row - archived;
+        isbnCodes.set(local, isbns.intern(t.isbn));
+        borrowerCodes.set(local, borrowers.intern(t.borrowerId));
+        borrowDays.set(local, (int) t.borrowDate.toEpochDay());
+        dueDays.set(local, (int) t.returnDate.toEpochDay());
+        if ((local & 31) == 0) returnedBits.set(local >>> 5, 0);
+        if (t.returned) setBit(local);
+        size = row + 1;
+        return row;
+    }
+
+    public synchronized void markReturned(int row) {
+        if (row < archived) {
+            archivedReturned.getAndUpdate(row >>> 6, w -> w | 1L << row);
+            return;
+        }
+        setBit(row - archived);
+        // republish so readers that see the new size also see the bit
+        size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Rows that live in the archive rather than in memory (0 without one). */
+    public int archivedRows() {
+        return archived;
+    }
+
+    public boolean isReturned(int row) {
+        if (row < archived) {
+            if (archivedReturnedBit(row)) return true;
+            Page p = page(pageOf(row));
+            return p.returned.get(row - p.start);
+        }
+        int local = row - archived;
+        return (returnedBits.get(local >>> 5) & (1 << local)) != 0;
+    }
+
+    /** The int code of an ISBN among the rows in memory or paged in so far, or -1 if there is none. */
+    public int isbnCode(String isbn) {
+        return isbns.find(isbn);
+    }
+
+    /** The int code of a borrower id among the rows in memory or paged in so far, or -1 if there is none. */
+    public int borrowerCode(String borrowerId) {
+        return borrowers.find(borrowerId);
+    }
+
+    /** The ISBN with int code {@code code}, as read from a cursor. */
+    public String isbn(int code) {
+        return isbns.value(code);
+    }
+
+    /** The borrower id with int code {@code code}, as read from a cursor. */
+    public String borrowerId(int code) {
+        return borrowers.value(code);
+    }
+
+    public Cursor cursor() {
+        return cursor(0, size);
+    }
+
+    /** A cursor over rows {@code [from, to)}; disjoint ranges can be scanned in parallel. */
+    public Cursor cursor(int from, int to) {
+        int n = size;
+        if (from < 0 || to > n || from > to) throw new IndexOutOfBoundsException(from + ".." + to + " of " + n);
+        return new Cursor(from, to, null, null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /** A cursor over the loans of {@code isbn}, skipping archived pages whose index rules it out. */
+    public Cursor isbnCursor(String isbn) {
+        return new Cursor(0, size, isbn, null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /** A cursor over the loans by {@code borrowerId}, skipping archived pages whose index rules them out. */
+    public Cursor borrowerCursor(String borrowerId) {
+        return new Cursor(0, size, null, borrowerId, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /** A cursor over loans borrowed between {@code from} and {@code to} inclusive, skipping archived pages outside them. */
+    public Cursor cursorBetween(LocalDate from, LocalDate to) {
+        return cursor(0, size, from, to);
+    }
+
+    /** A cursor over the loans in rows {@code [fromRow, toRow)} borrowed between {@code from} and {@code to} inclusive. */
+    public Cursor cursor(int fromRow, int toRow, LocalDate from, LocalDate to) {
+        int n = size;
+        if (fromRow < 0 || toRow > n || fromRow > toRow) throw new IndexOutOfBoundsException(fromRow + ".." + toRow + " of " + n);
+        return new Cursor(fromRow, toRow, null, null, (int) from.toEpochDay(), (int) to.toEpochDay());
+    }
+
+    /** A cursor over the archived rows except those loaded as open loans when the archive was attached. */
+    public Cursor archivedCursor() {
+        return new Cursor(0, archived, null, null, Integer.MIN_VALUE, Integer.MAX_VALUE) {
+            private int nextOpen;
+
+            @Override
+            public boolean next() {
+                while (super.next()) {
+                    while (nextOpen < loadedOpen.length && loadedOpen[nextOpen] < row()) nextOpen++;
+                    if (nextOpen == loadedOpen.length || loadedOpen[nextOpen] != row()) return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** The loan in {@code row}, materialised as a new {@link Transaction}. */
+    public Transaction get(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException(row);
+        Cursor c = cursor(row, row + 1);
+        c.next();
+        return c.toTransaction();
+    }
+
+    /**
+     * The rows recorded so far as an unmodifiable, random-access list that materialises each
+     * {@link Transaction} on access. Taking it is O(1); later appends are not part of it, while
+     * returned flags are read live. Its spliterator splits by row range for parallel streams.
+     */
+    public List<Transaction> view() {
+        int n = size;
+        return new View(n);
+    }
+
+    private class View extends AbstractList<Transaction> implements RandomAccess {
+        private final int n;
+
+        View(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public Transaction get(int row) {
+            Objects.checkIndex(row, n);
+            return LoanHistory.this.get(row);
+        }
+
+        @Override
+        public int size() {
+            return n;
+        }
+    }
+
+    /** Bytes reserved by the columns, the archive's returned overlay and the cached pages (dictionaries excluded). */
+    public long footprintBytes() {
+        long pageBytes;
+        synchronized (pages) {
+            pageBytes = 0;
+            for (Page p : pages.values()) pageBytes += p.isbn.length * 16L + p.returned.size() / 8;
+        }
+        return isbnCodes.capacityBytes() + borrowerCodes.capacityBytes() + borrowDays.capacityBytes()
+                + dueDays.capacityBytes() + returnedBits.capacityBytes() + archivedReturned.length() * 8L + pageBytes;
+    }
+
+    private void setBit(int local) {
+        returnedBits.set(local >>> 5, returnedBits.get(local >>> 5) | (1 << local));
+    }
+
+    private boolean archivedReturnedBit(int row) {
+        return (archivedReturned.get(row >>> 6) & (1L << row)) != 0;
+    }
+
+    private int pageOf(int row) {
+        int p = Arrays.binarySearch(pageStarts, row);
+        return p >= 0 ? p : -p - 2;
+    }
+
+    private int pageEnd(int p) {
+        return p + 1 < pageStarts.length ? pageStarts[p + 1] : archived;
+    }
+
+    // reads outside any lock; two threads missing the same page both read it and one copy is kept
+    private Page page(int p) {
+        synchronized (pages) {
+            Page cached = pages.get(p);
+            if (cached != null) return cached;
+        }
+        int start = pageStarts[p];
+        List<Transaction> loans = archive.read(p);
+        PAGES_READ.increment();
+        int n = Math.min(loans.size(), pageEnd(p) - start);
+        Page page = new Page(start, n);
+        for (int i = 0; i < n; i++) {
+            Transaction t = loans.get(i);
+            page.isbn[i] = isbns.intern(t.isbn);
+            page.borrower[i] = borrowers.intern(t.borrowerId);
+            page.borrowDay[i] = (int) t.borrowDate.toEpochDay();
+            page.dueDay[i] = (int) t.returnDate.toEpochDay();
+            if (t.returned) page.returned.set(i);
+        }
+        synchronized (pages) {
+            pages.put(p, page);
+        }
+        return page;
+    }
+
+    /**
+     * Forward-only view of a row range, optionally only the loans of one ISBN, by one borrower or
+     * borrowed within a day range; the accessors read the current row's columns (or archived page).
+     */
+    public class Cursor {
+        private int row;
+        private final int end;
+        private final String isbn, borrowerId;
+        private final int fromDay, toDay;
+        // codes of the filter keys, resolved again after each page is read (which may intern them)
+        private int isbnCode = -1, borrowerCode = -1;
+        private Page page;
+        private int at;
+
+        private Cursor(int from, int to, String isbn, String borrowerId, int fromDay, int toDay) {
+            row = from - 1;
+            end = to;
+            this.isbn = isbn;
+            this.borrowerId = borrowerId;
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+            resolve();
+        }
+
+        public boolean next() {
+            while (++row < end) {
+                if (row < archived) {
+                    if (page == null || row >= page.end()) {
+                        int p = pageOf(row);
+                        if (!mayMatch(p)) {
+                            row = pageEnd(p) - 1;
+                            page = null;
+                            continue;
+                        }
+                        page = page(p);
+                        resolve();
+                    }
+                    at = row - page.start;
+                } else {
+                    page = null;
+                    at = row - archived;
+                }
+                if (matches()) return true;
+            }
+            return false;
+        }
+
+        private boolean mayMatch(int p) {
+            return (isbn == null || archive.mayContainIsbn(p, isbn))
+                    && (borrowerId == null || archive.mayContainBorrower(p, borrowerId))
+                    && archive.minBorrowDay(p) <= toDay && archive.maxBorrowDay(p) >= fromDay;
+        }
+
+        private void resolve() {
+            if (isbn != null && isbnCode < 0) isbnCode = isbns.find(isbn);
+            if (borrowerId != null && borrowerCode < 0) borrowerCode = borrowers.find(borrowerId);
+        }
+
+        private boolean matches() {
+            if (isbn != null) {
+                if (isbnCode < 0) resolve();
+                if (isbnCode < 0 || isbnCode() != isbnCode) return false;
+            }
+            if (borrowerId != null) {
+                if (borrowerCode < 0) resolve();
+                if (borrowerCode < 0 || borrowerCode() != borrowerCode) return false;
+            }
+            int day = borrowDay();
+            return day >= fromDay && day <= toDay;
+        }
+
+        public int row() {
+            return row;
+        }
+
+        public int isbnCode() {
+            return page != null ? page.isbn[at] : isbnCodes.get(at);
+        }
+
+        public String isbn() {
+            return isbns.value(isbnCode());
+        }
+
+        public int borrowerCode() {
+            return page != null ? page.borrower[at] : borrowerCodes.get(at);
+        }
+
+        public String borrowerId() {
+            return borrowers.value(borrowerCode());
+        }
+
+        public int borrowDay() {
+            return page != null ? page.borrowDay[at] : borrowDays.get(at);
+        }
+
+        public int dueDay() {
+            return page != null ? page.dueDay[at] : dueDays.get(at);
+        }
+
+        public LocalDate borrowDate() {
+            return LocalDate.ofEpochDay(borrowDay());
+        }
+
+        public LocalDate dueDate() {
+            return LocalDate.ofEpochDay(dueDay());
+        }
+
+        public boolean returned() {
+            if (page != null) return page.returned.get(at) || archivedReturnedBit(row);
+            return (returnedBits.get(at >>> 5) & (1 << at)) != 0;
+        }
+
+        public Transaction toTransaction() {
+            Transaction t = new Transaction(isbn(), borrowerId(), borrowDate(), dueDate());
+            t.returned = returned();
+            return t;
+        }
+    }
+}
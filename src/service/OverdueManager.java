@@ -1,23 +1,267 @@
 package service;
 
+import metrics.Counter;
+import metrics.Metrics;
+import metrics.Timer;
+import model.Borrower;
 import model.Transaction;
 import java.time.LocalDate;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class OverdueManager {
-    private PriorityQueue<Transaction> overdueQueue =
-            new PriorityQueue<>(Comparator.comparing(t -> t.returnDate));
+/**
+ * Incremental overdue and fine engine. Listens to the lending tracker, so it only ever holds
+ * open loans; a return removes its loan (charging any fine accrued since the last run).
+ *
+ * Fines follow a {@link FinePolicy}: zero until {@code graceDays} after the due date, then
+ * linear until the per-loan cap. A run from day L to day D charges every borrower
+ * {@code accruingLoans * rate * (D - L)} in one step, and only visits the loans that crossed a
+ * threshold (started accruing, or hit the cap) in between, which are kept in a skip list keyed
+ * by that day. The last run day is persisted so restarts never charge a day twice.
+ */
+public class OverdueManager implements LibraryListener {
+    private static final Timer RUN = Metrics.timer("overdue.run");
+    private static final Counter FINE_CENTS = Metrics.counter("overdue.finesChargedCents");
 
-    public void addTransaction(Transaction t) {
-        overdueQueue.add(t);
+    private static final long NONE = Long.MIN_VALUE;
+
+    /** What one run did. */
+    public static class RunSummary {
+        public final LocalDate day;
+        public final int loansCrossed;
+        public final int borrowersCharged;
+        public final double totalCharged;
+
+        RunSummary(LocalDate day, int loansCrossed, int borrowersCharged, double totalCharged) {
+            this.day = day;
+            this.loansCrossed = loansCrossed;
+            this.borrowersCharged = borrowersCharged;
+            this.totalCharged = totalCharged;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d loan(s) crossed a threshold, %.2f charged to %d borrower(s)",
+                    day, loansCrossed, totalCharged, borrowersCharged);
+        }
+    }
+
+    private static class Loan {
+        final Transaction t;
+        final long due, start, lastLinear;
+        boolean accruing; // fine grew linearly through the last run day
+        long eventDay = NONE;
+
+        Loan(Transaction t, FinePolicy policy) {
+            this.t = t;
+            this.due = t.returnDate.toEpochDay();
+            this.start = due + policy.graceDays;
+            this.lastLinear = policy.lastLinearDay(due);
+        }
+    }
+
+    private final BorrowerRegistry registry;
+    private final FinePolicy policy;
+    private final Map<Transaction, Loan> open = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Set<Loan>> thresholds = new ConcurrentSkipListMap<>();
+    private final Map<String, AtomicInteger> accruingByBorrower = new ConcurrentHashMap<>();
+    // loan tracking shares the read lock; a run takes the write lock
+    private final ReentrantReadWriteLock runLock = new ReentrantReadWriteLock();
+    private volatile long lastRun = NONE;
+    private volatile boolean charging = true;
+    private final List<LibraryListener> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService scheduler;
+
+    public OverdueManager(BorrowerRegistry registry, FinePolicy policy) {
+        this.registry = registry;
+        this.policy = policy;
+    }
+
+    public void addListener(LibraryListener listener) {
+        listeners.add(listener);
+    }
+
+    public FinePolicy getPolicy() {
+        return policy;
+    }
+
+    /** Switches fine charging off while persisted state is replayed (fines are replayed on their own). */
+    public void setCharging(boolean charging) {
+        this.charging = charging;
+    }
+
+    /** Day of the last run, or null if fines have never been run. */
+    public LocalDate getLastRun() {
+        long l = lastRun;
+        return l == NONE ? null : LocalDate.ofEpochDay(l);
+    }
+
+    /** Restores the last run day from a snapshot; must be called before any loan is tracked. */
+    public void restoreLastRun(LocalDate day) {
+        lastRun = day == null ? NONE : day.toEpochDay();
+    }
+
+    @Override
+    public void loanOpened(Transaction t) {
+        if (t.returned) return;
+        runLock.readLock().lock();
+        try {
+            Loan loan = new Loan(t, policy);
+            long l = lastRun;
+            if (l != NONE && loan.start <= l && l <= loan.lastLinear) {
+                loan.accruing = true;
+                accruingByBorrower.computeIfAbsent(t.borrowerId, k -> new AtomicInteger()).incrementAndGet();
+                if (loan.lastLinear != Long.MAX_VALUE) schedule(loan, loan.lastLinear + 1);
+            } else if (l == NONE || loan.start > l) {
+                schedule(loan, loan.start);
+            }
+            open.put(t, loan);
+        } finally {
+            runLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void loanClosed(Transaction t) {
+        runLock.readLock().lock();
+        try {
+            Loan loan = open.remove(t);
+            if (loan == null) return;
+            unschedule(loan);
+            if (loan.accruing) decrementAccruing(t.borrowerId);
+            // settle what accrued between the last run and today
+            long l = lastRun;
+            double owed = policy.fineAt(loan.due, LocalDate.now().toEpochDay()) - (l == NONE ? 0 : policy.fineAt(loan.due, l));
+            if (charging && owed > 0) {
+                Borrower br = registry.getBorrower(t.borrowerId);
+                if (br != null) registry.addFine(br, owed);
+            }
+        } finally {
+            runLock.readLock().unlock();
+        }
+    }
+
+    /** Accrues fines up to {@code today}; a second run on the same day does nothing. */
+    public RunSummary run(LocalDate today) {
+        long t0 = RUN.start();
+        long d = today.toEpochDay();
+        Map<String, Double> charges = new HashMap<>();
+        int crossed = 0;
+        runLock.writeLock().lock();
+        try {
+            long l = lastRun;
+            if (l != NONE && d <= l) return new RunSummary(today, 0, 0, 0);
+            if (l != NONE) {
+                for (Map.Entry<String, AtomicInteger> e : accruingByBorrower.entrySet()) {
+                    charges.merge(e.getKey(), e.getValue().get() * policy.dailyRate * (d - l), Double::sum);
+                }
+            }
+            // loans whose fine started or stopped growing since the last run
+            List<Loan> due = new ArrayList<>();
+            NavigableMap<Long, Set<Loan>> head = thresholds.headMap(d, true);
+            for (Set<Loan> set : head.values()) due.addAll(set);
+            head.clear();
+            for (Loan loan : due) {
+                crossed++;
+                loan.eventDay = NONE;
+                double exact = policy.fineAt(loan.due, d) - (l == NONE ? 0 : policy.fineAt(loan.due, l));
+                double assumed = loan.accruing ? policy.dailyRate * (d - l) : 0;
+                charges.merge(loan.t.borrowerId, exact - assumed, Double::sum);
+                boolean nowAccruing = loan.start <= d && d <= loan.lastLinear;
+                if (nowAccruing && !loan.accruing) {
+                    accruingByBorrower.computeIfAbsent(loan.t.borrowerId, k -> new AtomicInteger()).incrementAndGet();
+                } else if (!nowAccruing && loan.accruing) {
+                    decrementAccruing(loan.t.borrowerId);
+                }
+                loan.accruing = nowAccruing;
+                if (nowAccruing && loan.lastLinear != Long.MAX_VALUE) schedule(loan, loan.lastLinear + 1);
+            }
+            lastRun = d;
+        } finally {
+            runLock.writeLock().unlock();
+        }
+
+        int charged = 0;
+        double total = 0;
+        if (charging) {
+            for (Map.Entry<String, Double> e : charges.entrySet()) {
+                double amount = Math.round(e.getValue() * 100) / 100.0;
+                if (amount <= 0) continue;
+                Borrower br = registry.getBorrower(e.getKey());
+                if (br == null) continue;
+                registry.addFine(br, amount);
+                FINE_CENTS.add(Math.round(amount * 100));
+                charged++;
+                total += amount;
+            }
+        }
+        for (LibraryListener listener : listeners) listener.overdueRun(today);
+        RunSummary result = new RunSummary(today, crossed, charged, total);
+        RUN.stop(t0);
+        return result;
+    }
+
+    /** Open loans past their grace period as of {@code today}, most overdue first. */
+    public List<Transaction> getOverdueLoans(LocalDate today) {
+        long d = today.toEpochDay();
+        List<Loan> loans = new ArrayList<>();
+        for (Loan loan : open.values()) {
+            if (loan.start < d) loans.add(loan);
+        }
+        loans.sort(Comparator.comparingLong(loan -> loan.due));
+        List<Transaction> out = new ArrayList<>(loans.size());
+        for (Loan loan : loans) out.add(loan.t);
+        return out;
     }
 
-    public void checkOverdue() {
-        LocalDate today = LocalDate.now();
-        while (!overdueQueue.isEmpty() && overdueQueue.peek().returnDate.isBefore(today.minusDays(14))) {
-            Transaction t = overdueQueue.poll();
-            System.out.println("Overdue: " + t);
+    /** Fine the loan has accrued in total as of {@code day} under the current policy. */
+    public double fineFor(Transaction t, LocalDate day) {
+        return policy.fineAt(t.returnDate.toEpochDay(), day.toEpochDay());
+    }
+
+    public int openLoanCount() {
+        return open.size();
+    }
+
+    /** Runs {@link #run} for the current date every {@code period} on a background daemon thread. */
+    public synchronized void startScheduler(long period, TimeUnit unit) {
+        stopScheduler();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "overdue-scheduler");
+            th.setDaemon(true);
+            return th;
+        });
+        scheduler.scheduleAtFixedRate(() -> run(LocalDate.now()), period, period, unit);
+    }
+
+    public synchronized void stopScheduler() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
         }
     }
+
+    private void schedule(Loan loan, long day) {
+        loan.eventDay = day;
+        thresholds.compute(day, (k, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(loan);
+            return set;
+        });
+    }
+
+    private void unschedule(Loan loan) {
+        if (loan.eventDay == NONE) return;
+        thresholds.computeIfPresent(loan.eventDay, (k, set) -> {
+            set.remove(loan);
+            return set.isEmpty() ? null : set;
+        });
+        loan.eventDay = NONE;
+    }
+
+    private void decrementAccruing(String borrowerId) {
+        accruingByBorrower.computeIfPresent(borrowerId, (k, n) -> n.decrementAndGet() == 0 ? null : n);
+    }
 }
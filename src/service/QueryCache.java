@@ -0,0 +1,200 @@
+package service;
+
+import model.Book;
+import model.Borrower;
+import model.Transaction;
+import util.ResultCache;
+import util.TextIndex;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Cached title/author/keyword searches and report rankings, in front of {@link BookInventory} and
+ * {@link ReportAggregates}. Results are kept in size-aware LRU caches (weighed by result rows) and
+ * dropped precisely when a change event could alter them: a book added or removed only evicts
+ * searches it matches, a loan only evicts rankings it can enter or reorder, and a fine change only
+ * the fine rankings it reaches. Entries are grouped by query kind (exact title lookups by the title
+ * itself), so each event only examines the groups it could affect. Window rankings are keyed by
+ * today's date, so they roll over at midnight.
+ *
+ * Must be registered as a listener after the {@link ReportAggregates} it reads, so rankings are
+ * re-checked against updated counts. Cached lists are shared and read-only.
+ */
+public class QueryCache implements LibraryListener {
+    static final long DEFAULT_MAX_ROWS = 100_000;
+
+    private enum Kind { TITLE, TITLE_CONTAINING, AUTHOR_CONTAINING, KEYWORDS, MOST_BORROWED, LAST_DAYS, THIS_YEAR, TOP_FINES }
+
+    private static final class Key {
+        final Kind kind;
+        final String text;
+        final long a;
+        final int b, c;
+
+        Key(Kind kind, String text, long a, int b, int c) {
+            this.kind = kind;
+            this.text = text;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+
+        // what the cache groups this key under: exact title lookups by folded title, everything else by kind
+        Object group() {
+            return kind == Kind.TITLE ? fold(text) : kind;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return kind == k.kind && a == k.a && b == k.b && c == k.c && Objects.equals(text, k.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, text, a, b, c);
+        }
+    }
+
+    private final BookInventory inventory;
+    private final ReportAggregates aggregates;
+    private final ResultCache<Key, List<Book>> searches;
+    private final ResultCache<Key, TextIndex.SearchResult> keywords;
+    private final ResultCache<Key, List<ReportAggregates.Entry>> rankings;
+
+    /** Each of the three caches (searches, keyword pages, rankings) holds at most {@code maxRows} result rows. */
+    public QueryCache(BookInventory inventory, ReportAggregates aggregates, long maxRows) {
+        this.inventory = inventory;
+        this.aggregates = aggregates;
+        searches = new ResultCache<>("searches", maxRows, list -> list.size() + 1, Key::group);
+        keywords = new ResultCache<>("keywords", maxRows, r -> r.books.size() + 1, Key::group);
+        rankings = new ResultCache<>("rankings", maxRows, list -> list.size() + 1, Key::group);
+    }
+
+    /** Sized by {@code -Dlibrary.cache.maxRows} (default {@value #DEFAULT_MAX_ROWS}). */
+    public static QueryCache fromSystemProperties(BookInventory inventory, ReportAggregates aggregates) {
+        return new QueryCache(inventory, aggregates, Long.getLong("library.cache.maxRows", DEFAULT_MAX_ROWS));
+    }
+
+    public Book searchByTitle(String title) {
+        List<Book> found = searches.get(new Key(Kind.TITLE, title, 0, 0, 0), k -> {
+            Book b = inventory.searchByTitle(k.text);
+            return b == null ? List.of() : List.of(b);
+        });
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    public List<Book> searchTitleContaining(String text) {
+        return searches.get(new Key(Kind.TITLE_CONTAINING, text, 0, 0, 0),
+                k -> Collections.unmodifiableList(inventory.searchTitleContaining(k.text)));
+    }
+
+    public List<Book> searchAuthorContaining(String text) {
+        return searches.get(new Key(Kind.AUTHOR_CONTAINING, text, 0, 0, 0),
+                k -> Collections.unmodifiableList(inventory.searchAuthorContaining(k.text)));
+    }
+
+    public TextIndex.SearchResult searchKeywords(String query, boolean matchAll, int page, int pageSize) {
+        return keywords.get(new Key(Kind.KEYWORDS, query, matchAll ? 1 : 0, page, pageSize),
+                k -> inventory.searchKeywords(k.text, k.a == 1, k.b, k.c));
+    }
+
+    public List<ReportAggregates.Entry> mostBorrowed(int k) {
+        return rankings.get(new Key(Kind.MOST_BORROWED, null, 0, k, 0),
+                key -> Collections.unmodifiableList(aggregates.mostBorrowed(key.b)));
+    }
+
+    public List<ReportAggregates.Entry> mostBorrowedLastDays(int days, int k) {
+        return rankings.get(new Key(Kind.LAST_DAYS, null, LocalDate.now().toEpochDay(), k, days),
+                key -> Collections.unmodifiableList(aggregates.mostBorrowedLastDays(key.c, key.b)));
+    }
+
+    public List<ReportAggregates.Entry> mostBorrowedThisYear(int k) {
+        return rankings.get(new Key(Kind.THIS_YEAR, null, LocalDate.now().getYear(), k, 0),
+                key -> Collections.unmodifiableList(aggregates.mostBorrowedThisYear(key.b)));
+    }
+
+    public List<ReportAggregates.Entry> topFines(int k) {
+        return rankings.get(new Key(Kind.TOP_FINES, null, 0, k, 0),
+                key -> Collections.unmodifiableList(aggregates.topFines(key.b)));
+    }
+
+    public ResultCache.Stats searchStats() {
+        return searches.stats();
+    }
+
+    public ResultCache.Stats keywordStats() {
+        return keywords.stats();
+    }
+
+    public ResultCache.Stats rankingStats() {
+        return rankings.stats();
+    }
+
+    public void clear() {
+        searches.invalidateAll();
+        keywords.invalidateAll();
+        rankings.invalidateAll();
+    }
+
+    @Override
+    public void bookAdded(Book book) {
+        bookChanged(book);
+    }
+
+    @Override
+    public void bookRemoved(Book book) {
+        bookChanged(book);
+    }
+
+    private void bookChanged(Book book) {
+        // every cached lookup of this exact title is affected
+        if (book.title != null) searches.invalidateIf(fold(book.title), (k, v) -> true);
+        searches.invalidateIf(Kind.TITLE_CONTAINING, (k, v) -> TextIndex.contains(TextIndex.Field.TITLE, book, k.text));
+        searches.invalidateIf(Kind.AUTHOR_CONTAINING, (k, v) -> TextIndex.contains(TextIndex.Field.AUTHOR, book, k.text));
+        keywords.invalidateIf(Kind.KEYWORDS, (k, v) -> TextIndex.mentions(book, k.text));
+    }
+
+    @Override
+    public void loanOpened(Transaction t) {
+        // the count is read once, outside the cache's lock, and only if some ranking could use it
+        if (rankings.isActive(Kind.MOST_BORROWED)) {
+            long count = aggregates.borrowCount(t.isbn);
+            rankings.invalidateIf(Kind.MOST_BORROWED, (k, v) -> reaches(v, k.b, t.isbn, count));
+        }
+        long day = t.borrowDate.toEpochDay();
+        rankings.invalidateIf(Kind.LAST_DAYS, (k, v) -> day > k.a - k.c && day <= k.a);
+        rankings.invalidateIf(Kind.THIS_YEAR, (k, v) -> t.borrowDate.getYear() == k.a);
+    }
+
+    @Override
+    public void borrowerAdded(Borrower borrower) {
+        finesChanged(borrower);
+    }
+
+    @Override
+    public void finesChanged(Borrower borrower) {
+        double fines = borrower.fines;
+        rankings.invalidateIf(Kind.TOP_FINES, (k, v) -> reaches(v, k.b, borrower.id, fines));
+    }
+
+    // equal exactly when compareToIgnoreCase says the strings are equal
+    private static String fold(String s) {
+        char[] c = s.toCharArray();
+        for (int i = 0; i < c.length; i++) c[i] = Character.toLowerCase(Character.toUpperCase(c[i]));
+        return new String(c);
+    }
+
+    // whether a key now valued {@code value} can be in, or move within, this top-k list
+    private static boolean reaches(List<ReportAggregates.Entry> ranking, int k, String key, double value) {
+        if (ranking.size() < k || value >= ranking.get(ranking.size() - 1).value) return true;
+        for (ReportAggregates.Entry e : ranking) {
+            if (e.key.equals(key)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,241 @@
+package service;
+
+import model.Borrower;
+import model.Transaction;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Report aggregates maintained from library events instead of recomputed from the full history.
+ *
+ * All-time borrow counts only ever grow by one, so they are ranked in count buckets: a doubly
+ * linked list of buckets in count order, each holding the ISBNs with that count. A borrow moves
+ * its ISBN to the neighbouring bucket in O(1), and a top-K answer walks K ISBNs from the top;
+ * ISBNs with equal counts rank in the order they reached it. Fines move arbitrarily and are kept
+ * in a skip list ordered by amount. Borrows are also counted in rolling per-day buckets (last
+ * {@value #DAILY_BUCKETS} days) and per-month buckets (last {@value #MONTHLY_BUCKETS} months);
+ * windowed top-K merges the buckets in the window and selects with a bounded heap.
+ *
+ * The count buckets are guarded by their own short lock. Fine updates for one borrower arrive
+ * under the borrower's monitor, which keeps each remove/re-insert in the fine ranking consistent.
+ *
+ * History left on disk at startup ({@link #deferArchive}) is not counted until the first borrow
+ * ranking or count is asked for, which then scans it once.
+ */
+public class ReportAggregates implements LibraryListener {
+    static final int DAILY_BUCKETS = 31;
+    static final int MONTHLY_BUCKETS = 13;
+
+    /** A key (ISBN or borrower id) with its count or amount. */
+    public static class Entry {
+        public final String key;
+        public final double value;
+
+        Entry(String key, double value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final Comparator<Entry> RANK = (a, b) -> {
+        int c = Double.compare(b.value, a.value);
+        return c != 0 ? c : a.key.compareTo(b.key);
+    };
+
+    /** ISBNs that have been borrowed exactly {@code count} times. */
+    private static final class Bucket {
+        final long count;
+        final Set<String> isbns = new LinkedHashSet<>();
+        Bucket lower, higher;
+
+        Bucket(long count) {
+            this.count = count;
+        }
+    }
+
+    // guarded by rankLock; lowest and highest are the ends of the bucket list
+    private final Object rankLock = new Object();
+    private final Map<String, Bucket> bucketOf = new HashMap<>();
+    private Bucket lowest, highest;
+    private final Map<String, Entry> fines = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Entry> fineRank = new ConcurrentSkipListSet<>(RANK);
+    private final ConcurrentSkipListMap<Long, Map<String, AtomicInteger>> daily = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<YearMonth, Map<String, AtomicInteger>> monthly = new ConcurrentSkipListMap<>();
+    // history whose archived rows are not counted yet; cleared once they are
+    private final Object backfillLock = new Object();
+    private volatile LoanHistory uncounted;
+
+    @Override
+    public void loanOpened(Transaction t) {
+        count(t.isbn, t.borrowDate);
+    }
+
+    /**
+     * Defers counting {@code history}'s archived rows (other than the open loans, which were
+     * announced as opened) until a borrow ranking or count first needs them.
+     */
+    public void deferArchive(LoanHistory history) {
+        uncounted = history.archivedRows() > 0 ? history : null;
+    }
+
+    @Override
+    public void borrowerAdded(Borrower borrower) {
+        finesChanged(borrower);
+    }
+
+    @Override
+    public void finesChanged(Borrower borrower) {
+        Entry now = new Entry(borrower.id, borrower.fines);
+        Entry old = fines.put(borrower.id, now);
+        if (old != null) fineRank.remove(old);
+        fineRank.add(now);
+    }
+
+    /** The {@code k} most borrowed ISBNs of all time. */
+    public List<Entry> mostBorrowed(int k) {
+        ensureBackfilled();
+        List<Entry> out = new ArrayList<>(Math.min(k, 64));
+        synchronized (rankLock) {
+            for (Bucket b = highest; b != null && out.size() < k; b = b.lower) {
+                for (String isbn : b.isbns) {
+                    if (out.size() >= k) break;
+                    out.add(new Entry(isbn, b.count));
+                }
+            }
+        }
+        return out;
+    }
+
+    /** The {@code k} borrower ids with the highest fines. */
+    public List<Entry> topFines(int k) {
+        return first(fineRank, k);
+    }
+
+    public long borrowCount(String isbn) {
+        ensureBackfilled();
+        synchronized (rankLock) {
+            Bucket b = bucketOf.get(isbn);
+            return b == null ? 0 : b.count;
+        }
+    }
+
+    /** Most borrowed ISBNs over the last {@code days} days (at most {@value #DAILY_BUCKETS}), today included. */
+    public List<Entry> mostBorrowedLastDays(int days, int k) {
+        if (days > DAILY_BUCKETS) throw new IllegalArgumentException("only the last " + DAILY_BUCKETS + " days are kept");
+        ensureBackfilled();
+        long today = LocalDate.now().toEpochDay();
+        daily.headMap(today - DAILY_BUCKETS, true).clear();
+        return topK(daily.subMap(today - days, false, today, true).values(), k);
+    }
+
+    /** Most borrowed ISBNs in the calendar year so far. */
+    public List<Entry> mostBorrowedThisYear(int k) {
+        ensureBackfilled();
+        YearMonth now = YearMonth.now();
+        monthly.headMap(now.minusMonths(MONTHLY_BUCKETS), true).clear();
+        return topK(monthly.subMap(YearMonth.of(now.getYear(), 1), true, now, true).values(), k);
+    }
+
+    private void count(String isbn, LocalDate borrowDate) {
+        synchronized (rankLock) {
+            increment(isbn);
+        }
+
+        LocalDate today = LocalDate.now();
+        long day = borrowDate.toEpochDay();
+        if (day > today.toEpochDay() - DAILY_BUCKETS) {
+            daily.computeIfAbsent(day, d -> new ConcurrentHashMap<>()).computeIfAbsent(isbn, k -> new AtomicInteger()).incrementAndGet();
+        }
+        YearMonth month = YearMonth.from(borrowDate);
+        if (month.isAfter(YearMonth.from(today).minusMonths(MONTHLY_BUCKETS))) {
+            monthly.computeIfAbsent(month, m -> new ConcurrentHashMap<>()).computeIfAbsent(isbn, k -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    // counts the deferred archive once; callers racing the first one wait for it
+    private void ensureBackfilled() {
+        if (uncounted == null) return;
+        synchronized (backfillLock) {
+            LoanHistory history = uncounted;
+            if (history == null) return;
+            LoanHistory.Cursor c = history.archivedCursor();
+            while (c.next()) count(c.isbn(), c.borrowDate());
+            uncounted = null;
+        }
+    }
+
+    // moves the ISBN from its bucket to the next one up, creating or unlinking buckets as needed
+    private void increment(String isbn) {
+        Bucket from = bucketOf.get(isbn);
+        Bucket to;
+        if (from == null) {
+            if (lowest != null && lowest.count == 1) {
+                to = lowest;
+            } else {
+                to = new Bucket(1);
+                to.higher = lowest;
+                if (lowest != null) lowest.lower = to;
+                else highest = to;
+                lowest = to;
+            }
+        } else if (from.higher != null && from.higher.count == from.count + 1) {
+            to = from.higher;
+        } else {
+            to = new Bucket(from.count + 1);
+            to.lower = from;
+            to.higher = from.higher;
+            if (from.higher != null) from.higher.lower = to;
+            else highest = to;
+            from.higher = to;
+        }
+        if (from != null) {
+            from.isbns.remove(isbn);
+            if (from.isbns.isEmpty()) unlink(from);
+        }
+        to.isbns.add(isbn);
+        bucketOf.put(isbn, to);
+    }
+
+    private void unlink(Bucket b) {
+        if (b.lower != null) b.lower.higher = b.higher;
+        else lowest = b.higher;
+        if (b.higher != null) b.higher.lower = b.lower;
+        else highest = b.lower;
+    }
+
+    private static List<Entry> first(NavigableSet<Entry> rank, int k) {
+        List<Entry> out = new ArrayList<>(Math.min(k, 64));
+        for (Entry e : rank) {
+            if (out.size() >= k) break;
+            out.add(e);
+        }
+        return out;
+    }
+
+    // merges bucket counts, then keeps the k largest in a min-heap of size k
+    private static List<Entry> topK(Collection<Map<String, AtomicInteger>> buckets, int k) {
+        Map<String, int[]> merged = new HashMap<>();
+        for (Map<String, AtomicInteger> bucket : buckets) {
+            for (Map.Entry<String, AtomicInteger> e : bucket.entrySet()) {
+                merged.computeIfAbsent(e.getKey(), key -> new int[1])[0] += e.getValue().get();
+            }
+        }
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.max(1, k), RANK.reversed());
+        for (Map.Entry<String, int[]> e : merged.entrySet()) {
+            Entry entry = new Entry(e.getKey(), e.getValue()[0]);
+            if (heap.size() < k) heap.add(entry);
+            else if (k > 0 && RANK.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        List<Entry> out = new ArrayList<>(heap);
+        out.sort(RANK);
+        return out;
+    }
+}
@@ -0,0 +1,392 @@
+package service;
+
+import metrics.Metrics;
+import metrics.Timer;
+import model.Borrower;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Analytics over the whole loan history, computed in parallel on a fork-join pool and returned as
+ * a {@link Report} rather than printed.
+ *
+ * History is split into row ranges of {@value #CHUNK_ROWS} (one archived page each, so pages are
+ * read once and by one thread) and the borrowers into blocks; each range is scanned with a
+ * {@link LoanHistory.Cursor} into the accumulator of the worker thread running it. Accumulators are
+ * primitive arrays indexed by category code, month and borrower code, so scanning allocates
+ * nothing per row; they are summed once every range is done.
+ *
+ * Categories come from a {@link CompactCatalogue} taken at the start of the run; loans of books no
+ * longer in the catalogue are counted under {@value #REMOVED}. A loan is overdue if it is still
+ * open and its due date is before the run's {@code asOf} date (history does not record when loans
+ * came back, so late returns cannot be counted).
+ */
+public class ReportEngine {
+    static final int CHUNK_ROWS = 16_384;
+    static final int CHUNK_BORROWERS = 65_536;
+    public static final String REMOVED = "(removed)";
+
+    private static final Timer RUN = Metrics.timer("reports.engine");
+
+    /** Loans of one category over the report's period, in total and per month. */
+    public static class CategoryStats {
+        public final String category;
+        public final long loans, open, overdue;
+        private final long[] byMonth;
+
+        CategoryStats(String category, long loans, long open, long overdue, long[] byMonth) {
+            this.category = category;
+            this.loans = loans;
+            this.open = open;
+            this.overdue = overdue;
+            this.byMonth = byMonth;
+        }
+
+        /** Loans borrowed in month {@code m} of the report (0 = its first month). */
+        public long borrows(int m) {
+            return byMonth[m];
+        }
+
+        /** Share of the period's loans still out past their due date. */
+        public double overdueRate() {
+            return loans == 0 ? 0 : (double) overdue / loans;
+        }
+    }
+
+    /** One borrower's loans over the report's period. */
+    public static class BorrowerActivity {
+        public final String borrowerId;
+        public final long loans, open, overdue;
+
+        BorrowerActivity(String borrowerId, long loans, long open, long overdue) {
+            this.borrowerId = borrowerId;
+            this.loans = loans;
+            this.open = open;
+            this.overdue = overdue;
+        }
+    }
+
+    /** Outstanding fines across all borrowers. */
+    public static class FineTotals {
+        public final long borrowers, borrowersWithFines;
+        public final double total, max;
+
+        FineTotals(long borrowers, long borrowersWithFines, double total, double max) {
+            this.borrowers = borrowers;
+            this.borrowersWithFines = borrowersWithFines;
+            this.total = total;
+            this.max = max;
+        }
+
+        /** Mean fine among borrowers who owe something. */
+        public double averageOwed() {
+            return borrowersWithFines == 0 ? 0 : total / borrowersWithFines;
+        }
+    }
+
+    /** The results of one {@link #run}. */
+    public static class Report {
+        public final LocalDate from, to, asOf;
+        public final YearMonth firstMonth;
+        public final int months;
+        public final long loans, open, overdue, rowsScanned;
+        /** Categories with loans in the period, most loans first. */
+        public final List<CategoryStats> categories;
+        /** Borrowers with the most loans in the period. */
+        public final List<BorrowerActivity> mostActive;
+        public final int activeBorrowers;
+        public final FineTotals fines;
+        public final long nanos;
+
+        Report(LocalDate from, LocalDate to, LocalDate asOf, YearMonth firstMonth, int months, long loans, long open, long overdue,
+               long rowsScanned, List<CategoryStats> categories, List<BorrowerActivity> mostActive, int activeBorrowers,
+               FineTotals fines, long nanos) {
+            this.from = from;
+            this.to = to;
+            this.asOf = asOf;
+            this.firstMonth = firstMonth;
+            this.months = months;
+            this.loans = loans;
+            this.open = open;
+            this.overdue = overdue;
+            this.rowsScanned = rowsScanned;
+            this.categories = categories;
+            this.mostActive = mostActive;
+            this.activeBorrowers = activeBorrowers;
+            this.fines = fines;
+            this.nanos = nanos;
+        }
+
+        public YearMonth month(int m) {
+            return firstMonth.plusMonths(m);
+        }
+
+        public double overdueRate() {
+            return loans == 0 ? 0 : (double) overdue / loans;
+        }
+    }
+
+    private final BookInventory inventory;
+    private final BorrowerRegistry registry;
+    private final LoanHistory history;
+    private final ForkJoinPool pool;
+
+    public ReportEngine(BookInventory inventory, BorrowerRegistry registry, LoanHistory history) {
+        this(inventory, registry, history, ForkJoinPool.commonPool());
+    }
+
+    public ReportEngine(BookInventory inventory, BorrowerRegistry registry, LoanHistory history, ForkJoinPool pool) {
+        this.inventory = inventory;
+        this.registry = registry;
+        this.history = history;
+        this.pool = pool;
+    }
+
+    /**
+     * Aggregates the loans borrowed between {@code from} and {@code to} inclusive, as of
+     * {@code asOf} for overdue status, keeping the {@code topBorrowers} most active borrowers.
+     */
+    public Report run(LocalDate from, LocalDate to, LocalDate asOf, int topBorrowers) {
+        if (to.isBefore(from)) throw new IllegalArgumentException("period ends before it starts");
+        long start = System.nanoTime(), t0 = RUN.start();
+        CompactCatalogue catalogue = CompactCatalogue.of(inventory.getAllBooks());
+        Borrower[] borrowers = registry.getAllBorrowers().toArray(new Borrower[0]);
+        YearMonth firstMonth = YearMonth.from(from);
+        int months = (int) firstMonth.until(YearMonth.from(to), ChronoUnit.MONTHS) + 1;
+        Run run = new Run(catalogue, firstMonth, months, (int) asOf.toEpochDay(), from, to);
+        int rows = history.size();
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(new Loans(run, 0, rows), new Fines(run, borrowers, 0, borrowers.length));
+            }
+        });
+        Acc total = run.merge();
+
+        int categories = catalogue.categoryCount() + 1;
+        List<CategoryStats> byCategory = new ArrayList<>();
+        for (int c = 0; c < categories; c++) {
+            if (total.categoryLoans(c) == 0) continue;
+            String name = c < catalogue.categoryCount() ? catalogue.categoryName(c) : REMOVED;
+            byCategory.add(new CategoryStats(name, total.categoryLoans(c), total.categoryOpen[c], total.categoryOverdue[c],
+                    Arrays.copyOfRange(total.categoryMonths, c * months, (c + 1) * months)));
+        }
+        byCategory.sort(Comparator.comparingLong((CategoryStats s) -> -s.loans).thenComparing(s -> s.category));
+
+        // k most active, by a min-heap of borrower codes
+        Comparator<Integer> activity = Comparator.comparingInt((Integer b) -> total.borrowerLoans[b])
+                .thenComparing(b -> history.borrowerId(b), Comparator.reverseOrder());
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Math.max(1, topBorrowers), activity);
+        int active = 0;
+        for (int b = 0; b < total.borrowerLoans.length; b++) {
+            if (total.borrowerLoans[b] == 0) continue;
+            active++;
+            if (heap.size() < topBorrowers) heap.add(b);
+            else if (topBorrowers > 0 && activity.compare(b, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(b);
+            }
+        }
+        List<BorrowerActivity> mostActive = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            int b = heap.poll();
+            mostActive.add(new BorrowerActivity(history.borrowerId(b), total.borrowerLoans[b], total.borrowerOpen[b], total.borrowerOverdue[b]));
+        }
+        Collections.reverse(mostActive);
+
+        long loans = 0, open = 0, overdue = 0;
+        for (CategoryStats s : byCategory) {
+            loans += s.loans;
+            open += s.open;
+            overdue += s.overdue;
+        }
+        FineTotals fines = new FineTotals(borrowers.length, total.finedBorrowers, total.fineTotal, total.fineMax);
+        RUN.stop(t0);
+        long nanos = System.nanoTime() - start;
+        return new Report(from, to, asOf, firstMonth, months, loans, open, overdue, total.rows, byCategory, mostActive, active, fines, nanos);
+    }
+
+    /** One run's inputs, and the accumulator of every worker thread that took part. */
+    private static final class Run {
+        final CompactCatalogue catalogue;
+        final YearMonth firstMonth;
+        final int months, asOfDay;
+        final LocalDate from, to;
+        // the first day of each month of the period, and the day after it ends
+        final int[] monthStarts;
+        // by worker thread; a map rather than a ThreadLocal, so nothing outlives the run in the pool's threads
+        final Map<Thread, Acc> accs = new ConcurrentHashMap<>();
+
+        Run(CompactCatalogue catalogue, YearMonth firstMonth, int months, int asOfDay, LocalDate from, LocalDate to) {
+            this.catalogue = catalogue;
+            this.firstMonth = firstMonth;
+            this.months = months;
+            this.asOfDay = asOfDay;
+            this.from = from;
+            this.to = to;
+            monthStarts = new int[months + 1];
+            for (int m = 0; m <= months; m++) monthStarts[m] = (int) firstMonth.plusMonths(m).atDay(1).toEpochDay();
+        }
+
+        Acc acc() {
+            return accs.computeIfAbsent(Thread.currentThread(), t -> new Acc(this));
+        }
+
+        Acc merge() {
+            Acc total = new Acc(this);
+            for (Acc a : accs.values()) total.add(a);
+            return total;
+        }
+    }
+
+    /** Per-thread running totals; only its own thread writes to it until the run is merged. */
+    private static final class Acc {
+        final int months;
+        // per category (the last one for books no longer in the catalogue)
+        final long[] categoryMonths, categoryOpen, categoryOverdue;
+        // per borrower code, grown as codes appear
+        int[] borrowerLoans = new int[0], borrowerOpen = new int[0], borrowerOverdue = new int[0];
+        // category code + 1 per ISBN code, 0 until looked up
+        int[] categoryOfIsbn = new int[0];
+        long rows;
+        long finedBorrowers;
+        double fineTotal, fineMax;
+
+        Acc(Run run) {
+            months = run.months;
+            int categories = run.catalogue.categoryCount() + 1;
+            categoryMonths = new long[categories * months];
+            categoryOpen = new long[categories];
+            categoryOverdue = new long[categories];
+        }
+
+        long categoryLoans(int c) {
+            long n = 0;
+            for (int m = 0; m < months; m++) n += categoryMonths[c * months + m];
+            return n;
+        }
+
+        void ensureBorrower(int code) {
+            if (code < borrowerLoans.length) return;
+            int n = Math.max(code + 1, borrowerLoans.length * 2);
+            borrowerLoans = Arrays.copyOf(borrowerLoans, n);
+            borrowerOpen = Arrays.copyOf(borrowerOpen, n);
+            borrowerOverdue = Arrays.copyOf(borrowerOverdue, n);
+        }
+
+        void add(Acc other) {
+            for (int i = 0; i < categoryMonths.length; i++) categoryMonths[i] += other.categoryMonths[i];
+            for (int c = 0; c < categoryOpen.length; c++) {
+                categoryOpen[c] += other.categoryOpen[c];
+                categoryOverdue[c] += other.categoryOverdue[c];
+            }
+            if (other.borrowerLoans.length > 0) ensureBorrower(other.borrowerLoans.length - 1);
+            for (int b = 0; b < other.borrowerLoans.length; b++) {
+                borrowerLoans[b] += other.borrowerLoans[b];
+                borrowerOpen[b] += other.borrowerOpen[b];
+                borrowerOverdue[b] += other.borrowerOverdue[b];
+            }
+            rows += other.rows;
+            finedBorrowers += other.finedBorrowers;
+            fineTotal += other.fineTotal;
+            fineMax = Math.max(fineMax, other.fineMax);
+        }
+    }
+
+    /** Scans history rows {@code [from, to)}, splitting until a range is one chunk. */
+    @SuppressWarnings("serial")
+    private final class Loans extends RecursiveAction {
+        private final Run run;
+        private final int from, to;
+
+        Loans(Run run, int from, int to) {
+            this.run = run;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNK_ROWS) {
+                // split on a chunk boundary, so every leaf covers whole pages
+                int mid = from + Math.max(1, (to - from) / CHUNK_ROWS / 2) * CHUNK_ROWS;
+                invokeAll(new Loans(run, from, mid), new Loans(run, mid, to));
+                return;
+            }
+            Acc acc = run.acc();
+            int months = run.months, asOfDay = run.asOfDay;
+            int[] monthStarts = run.monthStarts;
+            int removed = run.catalogue.categoryCount();
+            LoanHistory.Cursor c = history.cursor(from, to, run.from, run.to);
+            int month = 0;
+            while (c.next()) {
+                acc.rows++;
+                int isbn = c.isbnCode();
+                if (isbn >= acc.categoryOfIsbn.length) {
+                    acc.categoryOfIsbn = Arrays.copyOf(acc.categoryOfIsbn, Math.max(isbn + 1, acc.categoryOfIsbn.length * 2));
+                }
+                int category = acc.categoryOfIsbn[isbn] - 1;
+                if (category < 0) {
+                    int book = run.catalogue.indexOf(history.isbn(isbn));
+                    category = book < 0 ? removed : run.catalogue.categoryCode(book);
+                    acc.categoryOfIsbn[isbn] = category + 1;
+                }
+                // rows are roughly in date order, so the month found last is usually right
+                int day = c.borrowDay();
+                if (day < monthStarts[month] || day >= monthStarts[month + 1]) {
+                    int m = Arrays.binarySearch(monthStarts, day);
+                    month = m >= 0 ? m : -m - 2;
+                }
+                acc.categoryMonths[category * months + month]++;
+                int borrower = c.borrowerCode();
+                acc.ensureBorrower(borrower);
+                acc.borrowerLoans[borrower]++;
+                if (!c.returned()) {
+                    acc.categoryOpen[category]++;
+                    acc.borrowerOpen[borrower]++;
+                    if (c.dueDay() < asOfDay) {
+                        acc.categoryOverdue[category]++;
+                        acc.borrowerOverdue[borrower]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Sums the fines of {@code borrowers[from, to)}, splitting until a range is one block. */
+    @SuppressWarnings("serial")
+    private static final class Fines extends RecursiveAction {
+        private final Run run;
+        private final Borrower[] borrowers;
+        private final int from, to;
+
+        Fines(Run run, Borrower[] borrowers, int from, int to) {
+            this.run = run;
+            this.borrowers = borrowers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNK_BORROWERS) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Fines(run, borrowers, from, mid), new Fines(run, borrowers, mid, to));
+                return;
+            }
+            Acc acc = run.acc();
+            for (int i = from; i < to; i++) {
+                double fines = borrowers[i].fines;
+                if (fines <= 0) continue;
+                acc.finedBorrowers++;
+                acc.fineTotal += fines;
+                acc.fineMax = Math.max(acc.fineMax, fines);
+            }
+        }
+    }
+}
@@ -1,31 +1,108 @@
 package service;
 
+import metrics.Metrics;
+import metrics.Timer;
 import model.Book;
 import model.Borrower;
-import model.Transaction;
 import java.util.*;
 
+/** Report printers; rankings come from the incrementally maintained {@link ReportAggregates}, through the {@link QueryCache}. */
 public class Reports {
-    public static void mostBorrowedBooks(List<Transaction> transactions) {
-        Map<String, Integer> count = new HashMap<>();
-        for (Transaction t : transactions) {
-            count.put(t.isbn, count.getOrDefault(t.isbn, 0) + 1);
+    private static final Timer MOST_BORROWED = Metrics.timer("reports.mostBorrowed");
+    private static final Timer MOST_BORROWED_WINDOW = Metrics.timer("reports.mostBorrowedWindow");
+    private static final Timer TOP_FINES = Metrics.timer("reports.topBorrowersByFines");
+    private static final Timer BORROWER_HISTORY = Metrics.timer("reports.borrowerHistory");
+    private static final Timer BOOK_HISTORY = Metrics.timer("reports.bookHistory");
+    private static final Timer BY_CATEGORY = Metrics.timer("reports.inventoryByCategory");
+
+    public static void mostBorrowedBooks(QueryCache cache, int k) {
+        long t0 = MOST_BORROWED.start();
+        printBorrows(cache.mostBorrowed(k));
+        MOST_BORROWED.stop(t0);
+    }
+
+    public static void mostBorrowedLastDays(QueryCache cache, int days, int k) {
+        long t0 = MOST_BORROWED_WINDOW.start();
+        printBorrows(cache.mostBorrowedLastDays(days, k));
+        MOST_BORROWED_WINDOW.stop(t0);
+    }
+
+    public static void mostBorrowedThisYear(QueryCache cache, int k) {
+        long t0 = MOST_BORROWED_WINDOW.start();
+        printBorrows(cache.mostBorrowedThisYear(k));
+        MOST_BORROWED_WINDOW.stop(t0);
+    }
+
+    public static void topBorrowersByFines(QueryCache cache, BorrowerRegistry registry, int k) {
+        long t0 = TOP_FINES.start();
+        for (ReportAggregates.Entry e : cache.topFines(k)) {
+            Borrower b = registry.getBorrower(e.key);
+            if (b != null) System.out.println(b);
+        }
+        TOP_FINES.stop(t0);
+    }
+
+    /** Every loan the borrower ever made, read from the history columns (archived pages only if their index may hold the borrower). */
+    public static void borrowerHistory(LoanHistory history, String borrowerId) {
+        long t0 = BORROWER_HISTORY.start();
+        int n = 0;
+        LoanHistory.Cursor c = history.borrowerCursor(borrowerId);
+        while (c.next()) {
+            System.out.println("ISBN: " + c.isbn() + " | Borrow: " + c.borrowDate() + " | Due: " + c.dueDate()
+                    + (c.returned() ? " | Returned" : " | Open"));
+            n++;
         }
-        count.entrySet().stream()
-                .sorted((a, b) -> b.getValue() - a.getValue())
-                .limit(5)
-                .forEach(e -> System.out.println("ISBN: " + e.getKey() + " | Borrows: " + e.getValue()));
+        if (n == 0) System.out.println("No loans recorded for " + borrowerId + ".");
+        BORROWER_HISTORY.stop(t0);
     }
 
-    public static void topBorrowersByFines(List<Borrower> borrowers) {
-        borrowers.stream()
-                .sorted((a, b) -> Double.compare(b.fines, a.fines))
-                .limit(5)
-                .forEach(System.out::println);
+    /** Every loan of the book, read the same way as {@link #borrowerHistory}. */
+    public static void bookHistory(LoanHistory history, String isbn) {
+        long t0 = BOOK_HISTORY.start();
+        int n = 0;
+        LoanHistory.Cursor c = history.isbnCursor(isbn);
+        while (c.next()) {
+            System.out.println("Borrower: " + c.borrowerId() + " | Borrow: " + c.borrowDate() + " | Due: " + c.dueDate()
+                    + (c.returned() ? " | Returned" : " | Open"));
+            n++;
+        }
+        if (n == 0) System.out.println("No loans recorded for " + isbn + ".");
+        BOOK_HISTORY.stop(t0);
     }
 
-    public static void inventoryByCategory(Map<String, List<Book>> booksByCategory) {
+    /** Prints a {@link ReportEngine.Report}: borrows and overdue rates by category and month, the busiest borrowers and fines. */
+    public static void analytics(ReportEngine.Report r, int categories) {
+        System.out.printf("Loans %s to %s: %,d (%,d open, %,d overdue as of %s, %.1f%%) | %,d rows scanned in %d ms%n",
+                r.from, r.to, r.loans, r.open, r.overdue, r.asOf, r.overdueRate() * 100, r.rowsScanned, r.nanos / 1_000_000);
+        int shown = Math.min(r.months, 12);
+        StringBuilder header = new StringBuilder(String.format("%-20s %9s %8s", "Category", "Loans", "Overdue"));
+        for (int m = r.months - shown; m < r.months; m++) header.append(String.format(" %8s", r.month(m)));
+        System.out.println(header);
+        for (ReportEngine.CategoryStats c : r.categories.subList(0, Math.min(categories, r.categories.size()))) {
+            StringBuilder line = new StringBuilder(String.format("%-20.20s %,9d %7.1f%%", c.category, c.loans, c.overdueRate() * 100));
+            for (int m = r.months - shown; m < r.months; m++) line.append(String.format(" %,8d", c.borrows(m)));
+            System.out.println(line);
+        }
+        System.out.println("Most active of " + r.activeBorrowers + " borrowers:");
+        for (ReportEngine.BorrowerActivity a : r.mostActive) {
+            System.out.printf("  %-12s %,6d loans | %d open | %d overdue%n", a.borrowerId, a.loans, a.open, a.overdue);
+        }
+        ReportEngine.FineTotals f = r.fines;
+        System.out.printf("Fines: %.2f owed by %,d of %,d borrowers (average %.2f, highest %.2f)%n",
+                f.total, f.borrowersWithFines, f.borrowers, f.averageOwed(), f.max);
+    }
+
+    public static void inventoryByCategory(Map<String, ? extends Collection<Book>> booksByCategory) {
+        long t0 = BY_CATEGORY.start();
         booksByCategory.forEach((cat, list) ->
                 System.out.println(cat + ": " + list.size() + " books"));
+        BY_CATEGORY.stop(t0);
+    }
+
+    private static void printBorrows(List<ReportAggregates.Entry> ranking) {
+        if (ranking.isEmpty()) System.out.println("No borrows in this period.");
+        for (ReportAggregates.Entry e : ranking) {
+            System.out.println("ISBN: " + e.key + " | Borrows: " + (long) e.value);
+        }
     }
 }
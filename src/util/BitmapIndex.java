@@ -0,0 +1,124 @@
+package util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A secondary index from attribute value to the set of document ids (see {@link DocTable}) that
+ * have it. Sets with few documents are kept as small int arrays and switch to a {@link BitSet}
+ * once they grow, so rare values (one author's books) stay cheap while common ones (a category)
+ * can be intersected a word at a time. Each set guards itself; an ordered index also answers
+ * range lookups.
+ */
+public class BitmapIndex<K> {
+    static final int ARRAY_LIMIT = 512;
+
+    private final ConcurrentMap<K, DocSet> sets;
+
+    private BitmapIndex(ConcurrentMap<K, DocSet> sets) {
+        this.sets = sets;
+    }
+
+    public static <K> BitmapIndex<K> hashed() {
+        return new BitmapIndex<>(new ConcurrentHashMap<>());
+    }
+
+    public static <K extends Comparable<? super K>> BitmapIndex<K> ordered() {
+        return new BitmapIndex<>(new ConcurrentSkipListMap<>());
+    }
+
+    public void add(K key, int doc) {
+        DocSet set = sets.get(key);
+        if (set == null) {
+            // emptied sets are never removed, so the winner of this race stays valid
+            DocSet fresh = new DocSet();
+            set = sets.putIfAbsent(key, fresh);
+            if (set == null) set = fresh;
+        }
+        set.add(doc);
+    }
+
+    public void remove(K key, int doc) {
+        DocSet set = sets.get(key);
+        if (set != null) set.remove(doc);
+    }
+
+    /** Number of documents with this value. */
+    public int count(K key) {
+        DocSet set = sets.get(key);
+        return set == null ? 0 : set.count();
+    }
+
+    /** Number of documents with a value in {@code [from, to]}; ordered indexes only. */
+    public int countRange(K from, K to) {
+        int n = 0;
+        for (DocSet set : range(from, to).values()) n += set.count();
+        return n;
+    }
+
+    /** Adds the documents with this value to {@code target}. */
+    public void orInto(K key, BitSet target) {
+        DocSet set = sets.get(key);
+        if (set != null) set.orInto(target);
+    }
+
+    /** Adds the documents with a value in {@code [from, to]} to {@code target}; ordered indexes only. */
+    public void orRangeInto(K from, K to, BitSet target) {
+        for (DocSet set : range(from, to).values()) set.orInto(target);
+    }
+
+    private Map<K, DocSet> range(K from, K to) {
+        if (!(sets instanceof NavigableMap)) throw new UnsupportedOperationException("not an ordered index");
+        return ((NavigableMap<K, DocSet>) sets).subMap(from, true, to, true);
+    }
+
+    private static class DocSet {
+        private int[] docs = new int[4];
+        private BitSet bits;
+        private int count;
+
+        synchronized void add(int doc) {
+            if (bits != null) {
+                if (!bits.get(doc)) { bits.set(doc); count++; }
+                return;
+            }
+            if (count == ARRAY_LIMIT) {
+                bits = new BitSet();
+                for (int i = 0; i < count; i++) bits.set(docs[i]);
+                docs = null;
+                bits.set(doc);
+                count++;
+                return;
+            }
+            if (count == docs.length) docs = Arrays.copyOf(docs, count * 2);
+            docs[count++] = doc;
+        }
+
+        synchronized void remove(int doc) {
+            if (bits != null) {
+                if (bits.get(doc)) { bits.clear(doc); count--; }
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                if (docs[i] == doc) {
+                    docs[i] = docs[--count];
+                    return;
+                }
+            }
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized void orInto(BitSet target) {
+            if (bits != null) target.or(bits);
+            else for (int i = 0; i < count; i++) target.set(docs[i]);
+        }
+    }
+}
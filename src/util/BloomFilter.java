@@ -0,0 +1,62 @@
+package util;
+
+/**
+ * A fixed-size Bloom filter over strings: {@link #mightContain} never misses a string that was
+ * added, and with about 10 bits per distinct string answers "yes" for roughly 1% of the others.
+ * Used as a sparse index, to skip blocks of rows that cannot hold a key without reading them.
+ */
+public final class BloomFilter {
+    private static final int HASHES = 4;
+    private static final int BITS_PER_KEY = 10;
+
+    private final long[] words;
+
+    /** A filter sized for about {@code expectedKeys} distinct strings. */
+    public BloomFilter(int expectedKeys) {
+        this(new long[Math.max(1, (Math.max(1, expectedKeys) * BITS_PER_KEY + 63) / 64)]);
+    }
+
+    private BloomFilter(long[] words) {
+        this.words = words;
+    }
+
+    /** A filter over bits previously taken from {@link #words()}. */
+    public static BloomFilter of(long[] words) {
+        if (words.length == 0) throw new IllegalArgumentException("empty filter");
+        return new BloomFilter(words.clone());
+    }
+
+    public void add(String key) {
+        long bits = (long) words.length * 64;
+        int h1 = key.hashCode(), h2 = mix(h1);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long bits = (long) words.length * 64;
+        int h1 = key.hashCode(), h2 = mix(h1);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bits);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /** A copy of the filter's bits, for saving. */
+    public long[] words() {
+        return words.clone();
+    }
+
+    // a second, independent hash (murmur3 finalizer), odd so successive probes cover the table
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+}
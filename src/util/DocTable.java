@@ -0,0 +1,50 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int document ids to objects so that sets of them can be kept as bitmaps. Ids of
+ * removed objects are reused. Lookups are lock-free; add and remove are synchronized.
+ */
+public class DocTable<T> {
+    private volatile Object[] slots = new Object[1024];
+    private int next;
+    private int[] free = new int[16];
+    private int freeCount;
+    private int size;
+
+    public synchronized int add(T value) {
+        int id = freeCount > 0 ? free[--freeCount] : next++;
+        Object[] s = slots;
+        if (id >= s.length) s = Arrays.copyOf(s, s.length * 2);
+        s[id] = value;
+        slots = s;
+        size++;
+        return id;
+    }
+
+    /** Makes room for {@code n} more ids without further growth. */
+    public synchronized void reserve(int n) {
+        Object[] s = slots;
+        long needed = (long) next + n;
+        if (needed > s.length) slots = Arrays.copyOf(s, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, s.length * 2L)));
+    }
+
+    public synchronized void remove(int id) {
+        slots[id] = null;
+        if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = id;
+        size--;
+    }
+
+    /** The object with this id, or null if the id is unused. */
+    @SuppressWarnings("unchecked")
+    public T get(int id) {
+        Object[] s = slots;
+        return id < s.length ? (T) s[id] : null;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,54 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A growable column of ints stored in fixed-size chunks, either on the heap or in direct
+ * (off-heap) buffers. Growing never copies existing values.
+ *
+ * One writer at a time; readers may run concurrently as long as they only read indexes that were
+ * published to them through a happens-before edge (e.g. a volatile size).
+ */
+public class IntColumn {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+    private static final int MASK = CHUNK - 1;
+
+    private final boolean offHeap;
+    private volatile IntBuffer[] chunks = new IntBuffer[0];
+
+    public IntColumn(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    public int get(int index) {
+        return chunks[index >>> CHUNK_BITS].get(index & MASK);
+    }
+
+    public void set(int index, int value) {
+        if (index >>> CHUNK_BITS >= chunks.length) grow(index);
+        chunks[index >>> CHUNK_BITS].put(index & MASK, value);
+    }
+
+    /** Bytes reserved by the column's chunks. */
+    public long capacityBytes() {
+        return (long) chunks.length * CHUNK * Integer.BYTES;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    private void grow(int index) {
+        IntBuffer[] old = chunks;
+        IntBuffer[] next = java.util.Arrays.copyOf(old, (index >>> CHUNK_BITS) + 1);
+        for (int i = old.length; i < next.length; i++) {
+            next[i] = offHeap
+                    ? ByteBuffer.allocateDirect(CHUNK * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer()
+                    : IntBuffer.allocate(CHUNK);
+        }
+        chunks = next;
+    }
+}
@@ -0,0 +1,44 @@
+package util;
+
+/**
+ * ISBNs packed into a long: a plain ISBN-13 (13 digits) or ISBN-10 (9 digits and a digit or 'X')
+ * round-trips exactly through {@link #pack} and {@link #unpack}, in 8 bytes instead of a String.
+ * Anything else (hyphens, other lengths) does not pack and has to be kept as text.
+ */
+public final class Isbn {
+    /** What {@link #pack} returns for a string that is not a plain ISBN. */
+    public static final long NONE = -1;
+
+    private static final long TEN = 1L << 62;
+
+    private Isbn() {
+    }
+
+    public static long pack(String isbn) {
+        int n = isbn.length();
+        if (n != 10 && n != 13) return NONE;
+        long v = 0;
+        for (int i = 0; i < n - 1; i++) {
+            char c = isbn.charAt(i);
+            if (c < '0' || c > '9') return NONE;
+            v = v * 10 + (c - '0');
+        }
+        char last = isbn.charAt(n - 1);
+        if (n == 13) return last >= '0' && last <= '9' ? v * 10 + (last - '0') : NONE;
+        // ISBN-10: the check "digit" is 0-10, with 10 written as X
+        if (last == 'X') return TEN | (v * 11 + 10);
+        return last >= '0' && last <= '9' ? TEN | (v * 11 + (last - '0')) : NONE;
+    }
+
+    public static String unpack(long packed) {
+        if (packed < 0) throw new IllegalArgumentException("not a packed ISBN: " + packed);
+        if ((packed & TEN) == 0) return pad(Long.toString(packed), 13);
+        long v = packed & ~TEN;
+        int check = (int) (v % 11);
+        return pad(Long.toString(v / 11), 9) + (check == 10 ? "X" : Integer.toString(check));
+    }
+
+    private static String pad(String digits, int width) {
+        return digits.length() >= width ? digits : "0".repeat(width - digits.length()) + digits;
+    }
+}
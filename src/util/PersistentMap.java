@@ -0,0 +1,415 @@
+package util;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An immutable hash map (a hash array mapped trie). {@link #plus} and {@link #minus} return a new
+ * map that shares all untouched nodes with this one, so an update copies only the O(log32 n) nodes
+ * on the key's path and holding on to an old version costs nothing. That makes any instance a
+ * snapshot that can be handed out and iterated, sequentially or with a splitting
+ * {@link Spliterator}, while writers publish newer versions.
+ *
+ * Keys and values must not be null. The {@link Map} mutators throw.
+ */
+public final class PersistentMap<K, V> extends AbstractMap<K, V> {
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return key == null ? null : (V) root.find(0, key.hashCode(), key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /** This map with {@code key} mapped to {@code value}. */
+    public PersistentMap<K, V> plus(K key, V value) {
+        Objects.requireNonNull(value);
+        boolean[] added = new boolean[1];
+        Node r = root.assoc(null, 0, key.hashCode(), key, value, added);
+        return r == root ? this : new PersistentMap<>(r, added[0] ? size + 1 : size);
+    }
+
+    /** A builder that starts from this map; see {@link Builder}. */
+    public Builder<K, V> toBuilder() {
+        return new Builder<>(root, size);
+    }
+
+    /** This map without {@code key}. */
+    public PersistentMap<K, V> minus(Object key) {
+        Node r = root.without(0, key.hashCode(), key);
+        if (r == root) return this;
+        return r == null ? empty() : new PersistentMap<>(r, size - 1);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            public int size() { return size; }
+            public Iterator<Entry<K, V>> iterator() { return Spliterators.iterator(spliterator()); }
+            public Spliterator<Entry<K, V>> spliterator() { return new TrieSpliterator<>(root, size, ENTRIES); }
+        };
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+            public int size() { return size; }
+            public boolean contains(Object o) { return containsKey(o); }
+            public Iterator<K> iterator() { return Spliterators.iterator(spliterator()); }
+            public Spliterator<K> spliterator() { return new TrieSpliterator<>(root, size, KEYS); }
+        };
+    }
+
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            public int size() { return size; }
+            public Iterator<V> iterator() { return Spliterators.iterator(spliterator()); }
+            public Spliterator<V> spliterator() { return new TrieSpliterator<>(root, size, VALUES); }
+        };
+    }
+
+    /** The values as a stream; {@code parallel} splits the trie between workers. */
+    public Stream<V> valueStream(boolean parallel) {
+        return StreamSupport.stream(new TrieSpliterator<V>(root, size, VALUES), parallel);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        throw new UnsupportedOperationException("immutable; use plus()");
+    }
+
+    @Override
+    public V remove(Object key) {
+        throw new UnsupportedOperationException("immutable; use minus()");
+    }
+
+    /**
+     * Adds many entries in one pass. Nodes the builder created itself are updated in place instead
+     * of being copied for every key, so a bulk load costs about what filling a hash map does.
+     * Maps obtained earlier are never affected. Not thread-safe; unusable after {@link #build()}.
+     */
+    public static final class Builder<K, V> {
+        private Node root;
+        private int size;
+        private Object edit = new Object();
+
+        private Builder(Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public Builder<K, V> put(K key, V value) {
+            if (edit == null) throw new IllegalStateException("already built");
+            Objects.requireNonNull(value);
+            boolean[] added = new boolean[1];
+            root = root.assoc(edit, 0, key.hashCode(), key, value, added);
+            if (added[0]) size++;
+            return this;
+        }
+
+        public PersistentMap<K, V> build() {
+            // nodes tagged with the old token can no longer be edited in place
+            edit = null;
+            return size == 0 ? empty() : new PersistentMap<>(root, size);
+        }
+    }
+
+    // ---------- trie nodes ----------
+    // A node's array holds pairs: (key, value) for an entry, or (null, child) for a subtree.
+    // Nodes carry the token of the builder that created them (null when persistent); only that
+    // builder may modify them in place.
+
+    private abstract static class Node {
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node assoc(Object edit, int shift, int hash, Object key, Object value, boolean[] added);
+
+        /** This node without the key: itself if absent, null if it became empty. */
+        abstract Node without(int shift, int hash, Object key);
+
+        abstract Object[] array();
+    }
+
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        final Object edit;
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        Object[] array() {
+            return array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return null;
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if (k == null) return ((Node) array[i + 1]).find(shift + 5, hash, key);
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        Node assoc(Object edit, int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, i);
+                a[i] = key;
+                a[i + 1] = value;
+                System.arraycopy(array, i, a, i + 2, array.length - i);
+                added[0] = true;
+                if (owned(edit)) {
+                    array = a;
+                    bitmap |= bit;
+                    return this;
+                }
+                return new BitmapNode(edit, bitmap | bit, a);
+            }
+            Object k = array[i], v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).assoc(edit, shift + 5, hash, key, value, added);
+                return child == v ? this : with(edit, i + 1, child);
+            }
+            if (key.equals(k)) return v == value ? this : with(edit, i + 1, value);
+            added[0] = true;
+            BitmapNode n = owned(edit) ? this : new BitmapNode(edit, bitmap, array.clone());
+            n.array[i] = null;
+            n.array[i + 1] = pair(edit, shift + 5, k, v, hash, key, value);
+            return n;
+        }
+
+        private boolean owned(Object edit) {
+            return edit != null && this.edit == edit;
+        }
+
+        Node without(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) return this;
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if (k == null) {
+                Node child = (Node) array[i + 1];
+                Node n = child.without(shift + 5, hash, key);
+                if (n == child) return this;
+                if (n != null) return with(null, i + 1, n);
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) return null;
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new BitmapNode(null, bitmap & ~bit, a);
+        }
+
+        private BitmapNode with(Object edit, int i, Object o) {
+            if (owned(edit)) {
+                array[i] = o;
+                return this;
+            }
+            Object[] a = array.clone();
+            a[i] = o;
+            return new BitmapNode(edit, bitmap, a);
+        }
+
+        private static Node pair(Object edit, int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+            int h1 = k1.hashCode();
+            if (h1 == h2) return new CollisionNode(h1, new Object[] {k1, v1, k2, v2});
+            boolean[] ignored = new boolean[1];
+            return EMPTY.assoc(edit, shift, h1, k1, v1, ignored).assoc(edit, shift, h2, k2, v2, ignored);
+        }
+    }
+
+    /** Entries whose full 32-bit hashes are equal. */
+    private static final class CollisionNode extends Node {
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        Object[] array() {
+            return array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        Object find(int shift, int hash, Object key) {
+            if (hash != this.hash) return null;
+            int i = indexOf(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        Node assoc(Object edit, int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                // push this node one level down next to the new key
+                BitmapNode parent = new BitmapNode(edit, 1 << ((this.hash >>> shift) & 31), new Object[] {null, this});
+                return parent.assoc(edit, shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) return this;
+                Object[] a = array.clone();
+                a[i + 1] = value;
+                return new CollisionNode(hash, a);
+            }
+            Object[] a = Arrays.copyOf(array, array.length + 2);
+            a[array.length] = key;
+            a[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, a);
+        }
+
+        Node without(int shift, int hash, Object key) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            if (i < 0) return this;
+            if (array.length == 2) return null;
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new CollisionNode(hash, a);
+        }
+    }
+
+    // ---------- traversal ----------
+
+    private static final int KEYS = 0, VALUES = 1, ENTRIES = 2;
+
+    /**
+     * Walks pairs [lo, hi) of one node's array, descending into subtrees. Splitting hands off half
+     * of the remaining pairs, or the children of a lone remaining subtree.
+     */
+    private static final class TrieSpliterator<T> implements Spliterator<T> {
+        private Object[] array;
+        private int lo, hi;
+        private long estimate;
+        private final int mode;
+        private TrieSpliterator<T> current;
+
+        TrieSpliterator(Node node, long estimate, int mode) {
+            this(node.array(), 0, node.array().length / 2, estimate, mode);
+        }
+
+        private TrieSpliterator(Object[] array, int lo, int hi, long estimate, int mode) {
+            this.array = array;
+            this.lo = lo;
+            this.hi = hi;
+            this.estimate = estimate;
+            this.mode = mode;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (true) {
+                if (current != null) {
+                    if (current.tryAdvance(action)) return true;
+                    current = null;
+                }
+                if (lo >= hi) return false;
+                int i = 2 * lo++;
+                Object k = array[i];
+                if (k == null) {
+                    current = new TrieSpliterator<>((Node) array[i + 1], 0, mode);
+                } else {
+                    action.accept(emit(k, array[i + 1]));
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            if (current != null) {
+                current.forEachRemaining(action);
+                current = null;
+            }
+            for (; lo < hi; lo++) {
+                Object k = array[2 * lo];
+                if (k == null) new TrieSpliterator<T>((Node) array[2 * lo + 1], 0, mode).forEachRemaining(action);
+                else action.accept(emit(k, array[2 * lo + 1]));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private T emit(Object k, Object v) {
+            switch (mode) {
+                case KEYS: return (T) k;
+                case VALUES: return (T) v;
+                default: return (T) new AbstractMap.SimpleImmutableEntry<>(k, v);
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (current != null) return null;
+            while (hi - lo == 1 && array[2 * lo] == null) {
+                // a single subtree left: continue inside it so its children can be split
+                Object[] child = ((Node) array[2 * lo + 1]).array();
+                array = child;
+                lo = 0;
+                hi = child.length / 2;
+            }
+            if (hi - lo < 2) return null;
+            int mid = (lo + hi) >>> 1;
+            estimate >>>= 1;
+            TrieSpliterator<T> prefix = new TrieSpliterator<>(array, lo, mid, estimate, mode);
+            lo = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return IMMUTABLE | NONNULL | (mode == VALUES ? 0 : DISTINCT);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package util;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Spliterator;
+
+/** An immutable set backed by a {@link PersistentMap}; {@link #plus} and {@link #minus} return new versions. */
+public final class PersistentSet<E> extends AbstractSet<E> {
+    private static final PersistentSet<?> EMPTY = new PersistentSet<>(PersistentMap.empty());
+
+    private final PersistentMap<E, E> map;
+
+    private PersistentSet(PersistentMap<E, E> map) {
+        this.map = map;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentSet<E> empty() {
+        return (PersistentSet<E>) EMPTY;
+    }
+
+    public PersistentSet<E> plus(E e) {
+        PersistentMap<E, E> m = map.plus(e, e);
+        return m == map ? this : new PersistentSet<>(m);
+    }
+
+    /** This set plus every element of {@code elements}, built in one pass. */
+    public PersistentSet<E> plusAll(Iterable<? extends E> elements) {
+        PersistentMap.Builder<E, E> b = map.toBuilder();
+        for (E e : elements) b.put(e, e);
+        PersistentMap<E, E> m = b.build();
+        return m.size() == map.size() ? this : new PersistentSet<>(m);
+    }
+
+    public PersistentSet<E> minus(Object e) {
+        PersistentMap<E, E> m = map.minus(e);
+        return m == map ? this : m.isEmpty() ? empty() : new PersistentSet<>(m);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return map.containsKey(o);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return map.keySet().iterator();
+    }
+
+    @Override
+    public Spliterator<E> spliterator() {
+        return map.keySet().spliterator();
+    }
+}
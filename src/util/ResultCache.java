@@ -0,0 +1,209 @@
+package util;
+
+import metrics.Metrics;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded memo of computed results, evicting least recently used entries once the summed entry
+ * weights (e.g. result rows) exceed a budget, so one huge result displaces many small ones.
+ *
+ * Entries fall into groups (by default one), and an invalidation only looks at one group, so a change
+ * event costs the entries it could affect rather than the whole cache. Loads run outside the lock;
+ * an invalidation that removes something, or that meets loads of its group in flight, bumps the
+ * group's epoch, and a load that started before that is returned to its caller but not cached.
+ * Hits, misses, evictions and invalidations are counted and published as {@code cache.<name>.*} gauges.
+ */
+public final class ResultCache<K, V> {
+    /** Counters since creation, plus the current size. */
+    public static class Stats {
+        public final long hits, misses, evictions, invalidations, entries, weight, maxWeight;
+
+        Stats(long hits, long misses, long evictions, long invalidations, long entries, long weight, long maxWeight) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.entries = entries;
+            this.weight = weight;
+            this.maxWeight = maxWeight;
+        }
+
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%,d misses=%,d (%.1f%% hits) evictions=%,d invalidations=%,d entries=%,d weight=%,d/%,d",
+                    hits, misses, hitRate() * 100, evictions, invalidations, entries, weight, maxWeight);
+        }
+    }
+
+    private static final class Slot<K, V> {
+        final V value;
+        final int weight;
+        final Group<K, V> group;
+
+        Slot(V value, int weight, Group<K, V> group) {
+            this.value = value;
+            this.weight = weight;
+            this.group = group;
+        }
+    }
+
+    // the entries of one group (looked up here, so scanning a group does not refresh their recency)
+    // and the loads of that group still running
+    private static final class Group<K, V> {
+        final Object id;
+        final Map<K, Slot<K, V>> slots = new HashMap<>();
+        int loading;
+        long epoch;
+
+        Group(Object id) {
+            this.id = id;
+        }
+    }
+
+    private static final Object ONE_GROUP = new Object();
+
+    private final long maxWeight;
+    private final ToIntFunction<? super V> weigher;
+    private final Function<? super K, ?> grouping;
+    private final LinkedHashMap<K, Slot<K, V>> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Object, Group<K, V>> groups = new HashMap<>();
+    private long weight;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder(), invalidations = new LongAdder();
+
+    /** {@code weigher} gives an entry's cost (at least 1 is charged); {@code maxWeight} bounds their sum. */
+    public ResultCache(String name, long maxWeight, ToIntFunction<? super V> weigher) {
+        this(name, maxWeight, weigher, k -> ONE_GROUP);
+    }
+
+    /** As above, with keys split into groups by {@code grouping} for {@link #invalidateIf(Object, BiPredicate)}. */
+    public ResultCache(String name, long maxWeight, ToIntFunction<? super V> weigher, Function<? super K, ?> grouping) {
+        if (maxWeight <= 0) throw new IllegalArgumentException("maxWeight must be positive");
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.grouping = grouping;
+        String prefix = "cache." + name + ".";
+        Metrics.gauge(prefix + "hits", hits::sum);
+        Metrics.gauge(prefix + "misses", misses::sum);
+        Metrics.gauge(prefix + "evictions", evictions::sum);
+        Metrics.gauge(prefix + "invalidations", invalidations::sum);
+        Metrics.gauge(prefix + "weight", this::weight);
+    }
+
+    /** The cached value for {@code key}, loading and caching it on a miss. Null results are not cached. */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        Object id = grouping.apply(key);
+        Group<K, V> group;
+        long seen;
+        synchronized (this) {
+            Slot<K, V> slot = entries.get(key);
+            if (slot != null) {
+                hits.increment();
+                return slot.value;
+            }
+            group = groups.computeIfAbsent(id, Group::new);
+            group.loading++;
+            seen = group.epoch;
+        }
+        misses.increment();
+        V value = null;
+        int w = 0;
+        try {
+            value = loader.apply(key);
+            if (value != null) w = Math.max(1, weigher.applyAsInt(value));
+        } finally {
+            synchronized (this) {
+                group.loading--;
+                if (value != null && w <= maxWeight && group.epoch == seen) {
+                    Slot<K, V> slot = new Slot<>(value, w, group);
+                    Slot<K, V> old = entries.put(key, slot);
+                    if (old != null) weight -= old.weight;
+                    weight += w;
+                    group.slots.put(key, slot);
+                    Iterator<Map.Entry<K, Slot<K, V>>> lru = entries.entrySet().iterator();
+                    while (weight > maxWeight) {
+                        Map.Entry<K, Slot<K, V>> e = lru.next();
+                        lru.remove();
+                        forget(e.getKey(), e.getValue());
+                        evictions.increment();
+                    }
+                }
+                release(group);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Drops every entry of group {@code group} for which {@code affected} holds; other groups are not
+     * looked at. Loads of the group already in flight are not cached.
+     */
+    public synchronized void invalidateIf(Object group, BiPredicate<? super K, ? super V> affected) {
+        Group<K, V> g = groups.get(group);
+        if (g == null) return;
+        boolean removed = false;
+        Iterator<Map.Entry<K, Slot<K, V>>> it = g.slots.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, Slot<K, V>> e = it.next();
+            if (affected.test(e.getKey(), e.getValue().value)) {
+                it.remove();
+                entries.remove(e.getKey());
+                weight -= e.getValue().weight;
+                invalidations.increment();
+                removed = true;
+            }
+        }
+        if (removed || g.loading > 0) g.epoch++;
+        release(g);
+    }
+
+    /** Whether {@code group} has entries or loads in flight, i.e. whether invalidating it could matter. */
+    public synchronized boolean isActive(Object group) {
+        return groups.containsKey(group);
+    }
+
+    public synchronized void invalidateAll() {
+        invalidations.add(entries.size());
+        entries.clear();
+        weight = 0;
+        Iterator<Group<K, V>> it = groups.values().iterator();
+        while (it.hasNext()) {
+            Group<K, V> g = it.next();
+            g.slots.clear();
+            g.epoch++;
+            if (g.loading == 0) it.remove();
+        }
+    }
+
+    // an evicted entry leaves its group
+    private void forget(K key, Slot<K, V> slot) {
+        weight -= slot.weight;
+        slot.group.slots.remove(key);
+        release(slot.group);
+    }
+
+    // groups with no entries and no loads are dropped, so one-off groups do not pile up
+    private void release(Group<K, V> g) {
+        if (g.slots.isEmpty() && g.loading == 0) groups.remove(g.id);
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), invalidations.sum(), entries.size(), weight, maxWeight);
+    }
+}
@@ -22,4 +22,9 @@ public class SearchUtils {
         }
         return null;
     }
+
+    // same contract as above, answered by the tree descent of an already-sorted index
+    public static Book binarySearchByTitle(TitleIndex index, String title) {
+        return index.first(title);
+    }
 }
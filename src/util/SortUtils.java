@@ -2,28 +2,221 @@ package util;
 
 import model.Book;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * Stable sorting of books by one field. Each book's field is turned into a byte key once (strings
+ * case-folded the way {@link String#compareToIgnoreCase} folds them), so comparisons are plain
+ * unsigned byte compares. The merge sort ping-pongs between the input arrays and one scratch
+ * buffer allocated per call; inputs above {@link #PARALLEL_THRESHOLD} are sorted on the common
+ * fork-join pool.
+ */
 public class SortUtils {
+    public enum Key { TITLE, AUTHOR, CATEGORY, YEAR }
+
+    static final int PARALLEL_THRESHOLD = 1 << 13;
+    private static final int INSERTION_THRESHOLD = 24;
+
+    /** Sorts {@code books} in place by title, ignoring case; equal titles keep their order. */
     public static void mergeSortByTitle(List<Book> books) {
-        if (books.size() < 2) return;
-        int mid = books.size() / 2;
-        List<Book> left = new ArrayList<>(books.subList(0, mid));
-        List<Book> right = new ArrayList<>(books.subList(mid, books.size()));
-        mergeSortByTitle(left);
-        mergeSortByTitle(right);
-        merge(books, left, right);
-    }
-
-    private static void merge(List<Book> books, List<Book> left, List<Book> right) {
-        int i = 0, j = 0, k = 0;
-        while (i < left.size() && j < right.size()) {
-            if (left.get(i).title.compareToIgnoreCase(right.get(j).title) <= 0) {
-                books.set(k++, left.get(i++));
+        sort(books, Key.TITLE);
+    }
+
+    /** Sorts {@code books} in place by {@code key}; equal keys keep their order. */
+    public static void sort(List<Book> books, Key key) {
+        int n = books.size();
+        if (n < 2) return;
+        Book[] items = books.toArray(new Book[0]);
+        byte[][] keys = keys(items, key);
+        Book[] scratchItems = items.clone();
+        byte[][] scratchKeys = keys.clone();
+        Sorter task = new Sorter(keys, items, scratchKeys, scratchItems, 0, n);
+        if (n > PARALLEL_THRESHOLD) ForkJoinPool.commonPool().invoke(task);
+        else task.compute();
+        ListIterator<Book> it = books.listIterator();
+        for (Book b : items) {
+            it.next();
+            it.set(b);
+        }
+    }
+
+    /** The first {@code k} books in {@code key} order (stable), without sorting the rest. */
+    public static List<Book> topK(Collection<Book> books, Key key, int k) {
+        if (k <= 0 || books.isEmpty()) return new ArrayList<>();
+        Book[] items = books.toArray(new Book[0]);
+        byte[][] keys = keys(items, key);
+        k = Math.min(k, items.length);
+        // max-heap of the k best indexes seen so far; the root is the worst of them
+        int[] heap = new int[k];
+        int size = 0;
+        for (int i = 0; i < items.length; i++) {
+            if (size < k) {
+                heap[size] = i;
+                siftUp(heap, size++, keys);
+            } else if (before(keys, i, heap[0])) {
+                heap[0] = i;
+                siftDown(heap, size, keys);
+            }
+        }
+        Book[] out = new Book[size];
+        for (int n = size; n > 0; n--) {
+            out[n - 1] = items[heap[0]];
+            heap[0] = heap[n - 1];
+            siftDown(heap, n - 1, keys);
+        }
+        return new ArrayList<>(Arrays.asList(out));
+    }
+
+    /** One page of the {@code key} ordering: entries {@code [offset, offset + limit)}. */
+    public static List<Book> page(Collection<Book> books, Key key, int offset, int limit) {
+        List<Book> top = topK(books, key, offset + limit);
+        return offset >= top.size() ? new ArrayList<>() : top.subList(offset, top.size());
+    }
+
+    /**
+     * Case-folded sort key: each char is folded like {@code compareToIgnoreCase} and written in a
+     * variable-length encoding whose unsigned byte order matches char order.
+     */
+    public static byte[] collationKey(String s) {
+        if (s == null || s.isEmpty()) return new byte[0];
+        byte[] out = new byte[s.length() * 3];
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xC0 | c >> 6);
+                out[n++] = (byte) (0x80 | c & 0x3F);
+            } else {
+                out[n++] = (byte) (0xE0 | c >> 12);
+                out[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                out[n++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private static byte[][] keys(Book[] items, Key key) {
+        byte[][] keys = new byte[items.length][];
+        for (int i = 0; i < items.length; i++) {
+            Book b = items[i];
+            switch (key) {
+                case TITLE: keys[i] = collationKey(b.title); break;
+                case AUTHOR: keys[i] = collationKey(b.author); break;
+                case CATEGORY: keys[i] = collationKey(b.category); break;
+                default:
+                    // sign bit flipped so negative years order before positive ones
+                    int y = b.year ^ Integer.MIN_VALUE;
+                    keys[i] = new byte[] {(byte) (y >>> 24), (byte) (y >>> 16), (byte) (y >>> 8), (byte) y};
+            }
+        }
+        return keys;
+    }
+
+    // heap order: a key that sorts later (or the same key seen later) is "greater"
+    private static boolean before(byte[][] keys, int a, int b) {
+        int c = Arrays.compareUnsigned(keys[a], keys[b]);
+        return c < 0 || c == 0 && a < b;
+    }
+
+    private static void siftUp(int[] heap, int i, byte[][] keys) {
+        int x = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(keys, heap[parent], x)) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = x;
+    }
+
+    private static void siftDown(int[] heap, int size, byte[][] keys) {
+        int i = 0, x = heap[0];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && before(keys, heap[child], heap[child + 1])) child++;
+            if (!before(keys, x, heap[child])) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = x;
+    }
+
+    /**
+     * Sorts [from, to) so the result lands in (keys, items); (scratchKeys, scratchItems) hold the
+     * same data on entry and serve as the merge source, swapping roles at each level.
+     */
+    @SuppressWarnings("serial")
+    private static class Sorter extends RecursiveAction {
+        private final byte[][] keys, scratchKeys;
+        private final Book[] items, scratchItems;
+        private final int from, to;
+
+        Sorter(byte[][] keys, Book[] items, byte[][] scratchKeys, Book[] scratchItems, int from, int to) {
+            this.keys = keys;
+            this.items = items;
+            this.scratchKeys = scratchKeys;
+            this.scratchItems = scratchItems;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int n = to - from;
+            if (n <= INSERTION_THRESHOLD) {
+                insertionSort(keys, items, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            Sorter left = new Sorter(scratchKeys, scratchItems, keys, items, from, mid);
+            Sorter right = new Sorter(scratchKeys, scratchItems, keys, items, mid, to);
+            if (n > PARALLEL_THRESHOLD) {
+                invokeAll(left, right);
             } else {
-                books.set(k++, right.get(j++));
+                left.compute();
+                right.compute();
+            }
+            merge(scratchKeys, scratchItems, keys, items, from, mid, to);
+        }
+
+        private static void insertionSort(byte[][] keys, Book[] items, int from, int to) {
+            for (int i = from + 1; i < to; i++) {
+                byte[] k = keys[i];
+                Book b = items[i];
+                int j = i - 1;
+                while (j >= from && Arrays.compareUnsigned(keys[j], k) > 0) {
+                    keys[j + 1] = keys[j];
+                    items[j + 1] = items[j];
+                    j--;
+                }
+                keys[j + 1] = k;
+                items[j + 1] = b;
+            }
+        }
+
+        private static void merge(byte[][] srcKeys, Book[] src, byte[][] dstKeys, Book[] dst, int from, int mid, int to) {
+            if (Arrays.compareUnsigned(srcKeys[mid - 1], srcKeys[mid]) <= 0) {
+                // already in order
+                System.arraycopy(srcKeys, from, dstKeys, from, to - from);
+                System.arraycopy(src, from, dst, from, to - from);
+                return;
+            }
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to) {
+                if (Arrays.compareUnsigned(srcKeys[i], srcKeys[j]) <= 0) {
+                    dstKeys[k] = srcKeys[i];
+                    dst[k++] = src[i++];
+                } else {
+                    dstKeys[k] = srcKeys[j];
+                    dst[k++] = src[j++];
+                }
             }
+            while (i < mid) { dstKeys[k] = srcKeys[i]; dst[k++] = src[i++]; }
+            while (j < to) { dstKeys[k] = srcKeys[j]; dst[k++] = src[j++]; }
         }
-        while (i < left.size()) books.set(k++, left.get(i++));
-        while (j < right.size()) books.set(k++, right.get(j++));
     }
 }
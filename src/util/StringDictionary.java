@@ -0,0 +1,49 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns strings to dense int codes (0, 1, 2, ...) and back. Looking up a known string is
+ * lock-free; assigning a new code is synchronized.
+ */
+public class StringDictionary {
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private volatile int size;
+
+    /** The code of {@code s}, assigning the next one if it is new. */
+    public int intern(String s) {
+        Integer code = codes.get(s);
+        return code != null ? code : assign(s);
+    }
+
+    /** The code of {@code s}, or -1 if it was never interned. */
+    public int find(String s) {
+        Integer code = codes.get(s);
+        return code == null ? -1 : code;
+    }
+
+    public String value(int code) {
+        return values[code];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private synchronized int assign(String s) {
+        Integer code = codes.get(s);
+        if (code != null) return code;
+        int c = size;
+        String[] v = values;
+        if (c == v.length) v = Arrays.copyOf(v, c * 2);
+        v[c] = s;
+        values = v;
+        size = c + 1;
+        // published last, so anyone who finds the code can also read its value
+        codes.put(s, c);
+        return c;
+    }
+}
@@ -0,0 +1,24 @@
+package util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of repeated strings, so equal values read from different lines or files
+ * share one {@link String}. Meant for low-cardinality fields (categories, publishers, shelves):
+ * every distinct value stays pooled for the life of the pool. Lookups are lock-free.
+ */
+public final class StringPool {
+    private final Map<String, String> strings = new ConcurrentHashMap<>();
+
+    /** The pooled string equal to {@code s}, pooling {@code s} itself if it is new; null stays null. */
+    public String canonical(String s) {
+        if (s == null) return null;
+        String pooled = strings.putIfAbsent(s, s);
+        return pooled != null ? pooled : s;
+    }
+
+    public int size() {
+        return strings.size();
+    }
+}
@@ -0,0 +1,55 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks selected by key hash. Operations on the same key serialize, operations on
+ * different keys only contend when they hash to the same stripe.
+ */
+public class StripedLock {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    public StripedLock() {
+        this(Runtime.getRuntime().availableProcessors() * 16);
+    }
+
+    public StripedLock(int minStripes) {
+        int n = Integer.highestOneBit(Math.max(16, minStripes - 1)) << 1;
+        locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) locks[i] = new ReentrantLock();
+        mask = n - 1;
+    }
+
+    public ReentrantLock get(Object key) {
+        return locks[stripe(key)];
+    }
+
+    /**
+     * Locks the stripes of all {@code keys}, each once and in stripe order so that two batches
+     * cannot deadlock; returns the locks to pass to {@link #unlockAll}.
+     */
+    public List<ReentrantLock> lockAll(Iterable<?> keys) {
+        BitSet stripes = new BitSet(locks.length);
+        for (Object key : keys) stripes.set(stripe(key));
+        List<ReentrantLock> held = new ArrayList<>(stripes.cardinality());
+        for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+            locks[i].lock();
+            held.add(locks[i]);
+        }
+        return held;
+    }
+
+    public static void unlockAll(List<ReentrantLock> held) {
+        for (int i = held.size() - 1; i >= 0; i--) held.get(i).unlock();
+    }
+
+    private int stripe(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h * 0x9E3779B9) >>> 16 & mask;
+    }
+}
@@ -0,0 +1,216 @@
+package util;
+
+import model.Book;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Inverted index over the text fields of a book. Whole tokens answer keyword queries and
+ * character trigrams answer substring queries, so neither has to lowercase and scan the
+ * catalogue; work is proportional to the posting lists touched and the hits returned.
+ * Posting sets are concurrent, so queries may run while books are added or removed.
+ */
+public class TextIndex {
+    public enum Field {
+        TITLE(4, b -> b.title),
+        AUTHOR(3, b -> b.author),
+        PUBLISHER(2, b -> b.publisher),
+        CATEGORY(1, b -> b.category);
+
+        final int weight;
+        final Function<Book, String> value;
+
+        Field(int weight, Function<Book, String> value) {
+            this.weight = weight;
+            this.value = value;
+        }
+    }
+
+    /** One page of ranked keyword hits plus the total number of matching books. */
+    public static class SearchResult {
+        public final List<Book> books;
+        public final int total;
+
+        SearchResult(List<Book> books, int total) {
+            this.books = books;
+            this.total = total;
+        }
+    }
+
+    private static final int GRAM = 3;
+    private static final Comparator<Book> BY_TITLE = (a, b) -> a.title.compareToIgnoreCase(b.title);
+
+    private final Map<String, Set<Book>> tokens = new ConcurrentHashMap<>();
+    private final Map<Field, Map<String, Set<Book>>> grams = new EnumMap<>(Field.class);
+
+    public TextIndex() {
+        for (Field f : Field.values()) grams.put(f, new ConcurrentHashMap<>());
+    }
+
+    public void add(Book book) {
+        for (Field f : Field.values()) {
+            String text = normalize(f.value.apply(book));
+            for (String token : tokenize(text)) link(tokens, token, book);
+            Map<String, Set<Book>> fieldGrams = grams.get(f);
+            for (String gram : gramsOf(text)) link(fieldGrams, gram, book);
+        }
+    }
+
+    public void remove(Book book) {
+        for (Field f : Field.values()) {
+            String text = normalize(f.value.apply(book));
+            for (String token : tokenize(text)) unlink(tokens, token, book);
+            Map<String, Set<Book>> fieldGrams = grams.get(f);
+            for (String gram : gramsOf(text)) unlink(fieldGrams, gram, book);
+        }
+    }
+
+    /** Books whose {@code field} contains {@code query} ignoring case, ordered by title. */
+    public List<Book> containing(Field field, String query) {
+        String q = normalize(query);
+        if (q.isEmpty()) return new ArrayList<>();
+        Map<String, Set<Book>> fieldGrams = grams.get(field);
+        Set<Book> candidates;
+        if (q.length() >= GRAM) {
+            // intersect the posting lists of every trigram, smallest first
+            List<Set<Book>> lists = new ArrayList<>();
+            for (String gram : gramsOf(q)) {
+                Set<Book> list = fieldGrams.get(gram);
+                if (list == null) return new ArrayList<>();
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(Set::size));
+            candidates = new LinkedHashSet<>(lists.get(0));
+            for (int i = 1; i < lists.size() && !candidates.isEmpty(); i++) candidates.retainAll(lists.get(i));
+        } else {
+            // a query shorter than a trigram lies inside some indexed gram: scan the gram vocabulary
+            candidates = new LinkedHashSet<>();
+            for (Map.Entry<String, Set<Book>> e : fieldGrams.entrySet()) {
+                if (e.getKey().contains(q)) candidates.addAll(e.getValue());
+            }
+        }
+        List<Book> out = new ArrayList<>(candidates.size());
+        for (Book b : candidates) {
+            if (normalize(field.value.apply(b)).contains(q)) out.add(b);
+        }
+        out.sort(BY_TITLE);
+        return out;
+    }
+
+    /**
+     * Keyword search over every field. With {@code matchAll} a book must contain every term (AND),
+     * otherwise any term (OR). Hits are ranked by matched terms, then field weight, then title.
+     */
+    public SearchResult search(String query, boolean matchAll, int page, int pageSize) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(tokenize(normalize(query))));
+        if (terms.isEmpty()) return new SearchResult(new ArrayList<>(), 0);
+        if (matchAll) {
+            terms.sort(Comparator.comparingInt(t -> tokens.getOrDefault(t, Collections.emptySet()).size()));
+        }
+        Map<Book, int[]> scores = new HashMap<>(); // [matched terms, field weight]
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            Set<Book> postings = tokens.getOrDefault(term, Collections.emptySet());
+            if (matchAll && i > 0) {
+                // candidates only shrink: walk the survivors, not the posting list
+                Iterator<Map.Entry<Book, int[]>> it = scores.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Book, int[]> e = it.next();
+                    if (!postings.contains(e.getKey())) { it.remove(); continue; }
+                    e.getValue()[0]++;
+                    e.getValue()[1] += weightOf(e.getKey(), term);
+                }
+                if (scores.isEmpty()) break;
+            } else {
+                for (Book b : postings) {
+                    int[] s = scores.computeIfAbsent(b, k -> new int[2]);
+                    s[0]++;
+                    s[1] += weightOf(b, term);
+                }
+            }
+        }
+        List<Map.Entry<Book, int[]>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort((a, b) -> {
+            int c = Integer.compare(b.getValue()[0], a.getValue()[0]);
+            if (c == 0) c = Integer.compare(b.getValue()[1], a.getValue()[1]);
+            return c != 0 ? c : BY_TITLE.compare(a.getKey(), b.getKey());
+        });
+        int from = Math.min(Math.max(page, 0) * pageSize, ranked.size());
+        int to = Math.min(from + pageSize, ranked.size());
+        List<Book> books = new ArrayList<>(to - from);
+        for (Map.Entry<Book, int[]> e : ranked.subList(from, to)) books.add(e.getKey());
+        return new SearchResult(books, ranked.size());
+    }
+
+    /** Whether {@link #containing} would match {@code book} for this query. */
+    public static boolean contains(Field field, Book book, String query) {
+        String q = normalize(query);
+        return !q.isEmpty() && normalize(field.value.apply(book)).contains(q);
+    }
+
+    /** Whether any term of the keyword {@code query} is a token of one of the book's fields. */
+    public static boolean mentions(Book book, String query) {
+        List<String> terms = tokenize(normalize(query));
+        if (terms.isEmpty()) return false;
+        for (Field f : Field.values()) {
+            for (String token : tokenize(normalize(f.value.apply(book)))) {
+                if (terms.contains(token)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static int weightOf(Book b, String term) {
+        int w = 0;
+        for (Field f : Field.values()) {
+            if (tokenize(normalize(f.value.apply(b))).contains(term)) w += f.weight;
+        }
+        return w;
+    }
+
+    // compute() keeps add/remove of the same key atomic, so an emptied set is never resurrected
+    private static void link(Map<String, Set<Book>> postings, String key, Book book) {
+        postings.compute(key, (k, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(book);
+            return set;
+        });
+    }
+
+    private static void unlink(Map<String, Set<Book>> postings, String key, Book book) {
+        postings.computeIfPresent(key, (k, set) -> {
+            set.remove(book);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static String normalize(String s) {
+        return s == null ? "" : s.toLowerCase(Locale.ROOT).trim();
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) start = i;
+            else if (!word && start >= 0) {
+                out.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return out;
+    }
+
+    private static Set<String> gramsOf(String text) {
+        Set<String> out = new HashSet<>();
+        if (text.isEmpty()) return out;
+        if (text.length() < GRAM) {
+            out.add(text);
+            return out;
+        }
+        for (int i = 0; i + GRAM <= text.length(); i++) out.add(text.substring(i, i + GRAM));
+        return out;
+    }
+}
@@ -0,0 +1,78 @@
+package util;
+
+import model.Book;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Case-insensitive sorted index of books by title, kept up to date on add/remove so lookups and
+ * ordered listings never need to re-sort the catalogue. Titles compare exactly like
+ * {@link String#compareToIgnoreCase}; books sharing a title keep their insertion order.
+ *
+ * Backed by a concurrent skip list whose values are small immutable lists replaced on every
+ * change, so readers can iterate while writers continue.
+ */
+public class TitleIndex {
+    private final ConcurrentSkipListMap<String, List<Book>> byTitle = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final AtomicInteger size = new AtomicInteger();
+
+    public void add(Book book) {
+        byTitle.merge(book.title, List.of(book), (old, one) -> {
+            List<Book> list = new ArrayList<>(old.size() + 1);
+            list.addAll(old);
+            list.add(book);
+            return Collections.unmodifiableList(list);
+        });
+        size.incrementAndGet();
+    }
+
+    public boolean remove(Book book) {
+        boolean[] removed = new boolean[1];
+        byTitle.computeIfPresent(book.title, (t, old) -> {
+            List<Book> list = new ArrayList<>(old);
+            removed[0] = list.remove(book);
+            return list.isEmpty() ? null : Collections.unmodifiableList(list);
+        });
+        if (removed[0]) size.decrementAndGet();
+        return removed[0];
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /** First book (in insertion order) whose title equals {@code title} ignoring case, or null. */
+    public Book first(String title) {
+        List<Book> list = byTitle.get(title);
+        return list == null ? null : list.get(0);
+    }
+
+    public List<Book> exact(String title) {
+        List<Book> list = byTitle.get(title);
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    /** Books whose title starts with {@code prefix} ignoring case, in title order. */
+    public List<Book> prefix(String prefix) {
+        List<Book> out = new ArrayList<>();
+        for (Map.Entry<String, List<Book>> e : byTitle.tailMap(prefix, true).entrySet()) {
+            if (!e.getKey().regionMatches(true, 0, prefix, 0, prefix.length())) break;
+            out.addAll(e.getValue());
+        }
+        return out;
+    }
+
+    /** Books with {@code from <= title < to} ignoring case, in title order. */
+    public List<Book> range(String from, String to) {
+        List<Book> out = new ArrayList<>();
+        if (String.CASE_INSENSITIVE_ORDER.compare(from, to) >= 0) return out;
+        for (List<Book> list : byTitle.subMap(from, true, to, false).values()) out.addAll(list);
+        return out;
+    }
+
+    /** Live, title-ordered view of every indexed book. */
+    public Iterable<Book> inOrder() {
+        return () -> byTitle.values().stream().flatMap(List::stream).iterator();
+    }
+}